@@ -0,0 +1,95 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.*;
+
+/**
+ * Provides the metrics of a single context (web application), for Tomcat instances hosting many tenants that each only
+ * need the metrics of their own application. These are the samples with a context label equal to the requested
+ * context, e.g. the session, servlet, request and connection pool metrics of that context.
+ *
+ * <p>
+ * The registry is collected once into a snapshot that is shared by all contexts, and the snapshot is split per context
+ * in a single pass, so scrapes of N contexts cost about one collection. A snapshot is reused until it is older than
+ * the configured time to live, which should be lower than the scrape interval.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   ContextScopedSnapshot snapshot = new ContextScopedSnapshot(CollectorRegistry.defaultRegistry, 5000);
+ *   TextFormat.write004(writer, Collections.enumeration(snapshot.get("/foo")));
+ * }
+ * </pre>
+ */
+public class ContextScopedSnapshot {
+
+    private static final String CONTEXT_LABEL = "context";
+    private final CollectorRegistry registry;
+    private final long ttlMillis;
+    private Snapshot snapshot;
+
+    /**
+     * @param registry  the registry to collect
+     * @param ttlMillis the time a snapshot is reused
+     */
+    public ContextScopedSnapshot(CollectorRegistry registry, long ttlMillis) {
+        this.registry = registry;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the metric families with the samples of the given context, or an empty list if there are none.
+     */
+    public List<MetricFamilySamples> get(String context) {
+        List<MetricFamilySamples> mfs = current().contexts.get(context);
+        return mfs != null ? mfs : Collections.<MetricFamilySamples>emptyList();
+    }
+
+    /**
+     * Returns the current snapshot, collecting a new one if it expired. Concurrent scrapes wait for the collection of
+     * the first instead of collecting themselves.
+     */
+    private synchronized Snapshot current() {
+        long now = System.currentTimeMillis();
+        if (snapshot == null || now - snapshot.timestamp >= ttlMillis) {
+            snapshot = new Snapshot(now, registry.metricFamilySamples());
+        }
+        return snapshot;
+    }
+
+    private static class Snapshot {
+        private final long timestamp;
+        private final Map<String, List<MetricFamilySamples>> contexts = new HashMap<String, List<MetricFamilySamples>>();
+
+        Snapshot(long timestamp, Enumeration<MetricFamilySamples> mfs) {
+            this.timestamp = timestamp;
+            while (mfs.hasMoreElements()) {
+                MetricFamilySamples family = mfs.nextElement();
+                Map<String, List<Sample>> samplesByContext = new HashMap<String, List<Sample>>();
+                for (Sample sample : family.samples) {
+                    int index = sample.labelNames.indexOf(CONTEXT_LABEL);
+                    if (index >= 0) {
+                        String context = sample.labelValues.get(index);
+                        List<Sample> samples = samplesByContext.get(context);
+                        if (samples == null) {
+                            samples = new ArrayList<Sample>();
+                            samplesByContext.put(context, samples);
+                        }
+                        samples.add(sample);
+                    }
+                }
+                for (Map.Entry<String, List<Sample>> entry : samplesByContext.entrySet()) {
+                    List<MetricFamilySamples> contextFamilies = contexts.get(entry.getKey());
+                    if (contextFamilies == null) {
+                        contextFamilies = new ArrayList<MetricFamilySamples>();
+                        contexts.put(entry.getKey(), contextFamilies);
+                    }
+                    contextFamilies.add(new MetricFamilySamples(family.name, family.unit, family.type, family.help, entry.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package nl.nlighten.prometheus.tomcat;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the previous values of cumulative JMX attributes so collectors can export them as monotonic counters
+ * and derive averages over fixed time windows.
+ * <p>
+ * Many Tomcat statistics, e.g. the session and servlet counters, start from zero again when a context is reloaded.
+ * When a value is lower than the previous value of the same series, the tracker assumes such a reset and adds the
+ * last value seen before the reset to all following values, so the exported counter never decreases.
+ * <p>
+ * Series that have not been updated for the configured retention time are forgotten, so the tracker does not grow when
+ * contexts or connectors are removed.
+ * <p>
+ * Averages are computed over fixed wall clock windows rather than between two calls, so the same value is returned to
+ * all consumers of a collector, e.g. a scraping Prometheus, a second HA Prometheus and the push thread, regardless of
+ * how often each of them collects.
+ * <p>
+ * Example usage in a collector:
+ * <pre>
+ * {@code
+ *   private final CounterTracker tracker = new CounterTracker();
+ *   ...
+ *   counter.addMetric(labelValueList, tracker.counter("tomcat_session_created", labelValueList, sessionCounter));
+ *   average.addMetric(labelValueList, tracker.intervalAverage("tomcat_servlet_processing", labelValueList, requestCount, processingTime));
+ *   ...
+ *   tracker.removeStale();
+ * }
+ * </pre>
+ */
+public class CounterTracker {
+
+    private static final long DEFAULT_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private final long retentionMillis;
+    private final long windowMillis;
+    private final Map<List<String>, Series> series = new HashMap<List<String>, Series>();
+
+    public CounterTracker() {
+        this(DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * @param retentionMillis the time after which series that have not been updated are forgotten
+     */
+    public CounterTracker(long retentionMillis) {
+        this(retentionMillis, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param retentionMillis the time after which series that have not been updated are forgotten
+     * @param windowMillis    the length of the wall clock windows averages are computed over
+     */
+    public CounterTracker(long retentionMillis, long windowMillis) {
+        this.retentionMillis = retentionMillis;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Returns a monotonic value for the given cumulative value, compensating for resets of the underlying value.
+     *
+     * @param name        the name of the metric
+     * @param labelValues the label values of the series
+     * @param value       the current cumulative value
+     */
+    public synchronized double counter(String name, List<String> labelValues, double value) {
+        Series s = getSeries(name, labelValues);
+        if (s.initialized && value < s.lastValue) {
+            s.offset += s.lastValue;
+        }
+        s.lastValue = value;
+        s.initialized = true;
+        return s.offset + value;
+    }
+
+    /**
+     * Returns the average of a cumulative total per cumulative count over the last complete window, e.g. the average
+     * processing time of the requests processed in the previous minute. The window boundaries are those of the wall
+     * clock, and a window is taken to start at the first call for the series after its boundary, so a window spans
+     * from the first call in the previous window to the first call in the current one, or longer when no calls were
+     * made for a while. Further calls within the same window return the same value, so multiple consumers do not
+     * shorten each other's window. On the first call, or after a reset, the average since the start (or reset) is
+     * returned until the window ends. If no events occurred in the window the average is 0.
+     *
+     * @param name        the name of the metric
+     * @param labelValues the label values of the series
+     * @param count       the current cumulative count, e.g. the request count
+     * @param total       the current cumulative total, e.g. the processing time
+     */
+    public synchronized double intervalAverage(String name, List<String> labelValues, double count, double total) {
+        Series s = getSeries(name, labelValues);
+        long window = s.lastUpdate / windowMillis;
+        if (!s.initialized || count < s.windowCount || total < s.windowTotal) {
+            s.average = average(count, total);
+        } else if (window != s.window) {
+            s.average = average(count - s.windowCount, total - s.windowTotal);
+        } else {
+            return s.average;
+        }
+        s.window = window;
+        s.windowCount = count;
+        s.windowTotal = total;
+        s.initialized = true;
+        return s.average;
+    }
+
+    /**
+     * Forgets the series that have not been updated within the retention time.
+     */
+    public synchronized void removeStale() {
+        long threshold = currentTimeMillis() - retentionMillis;
+        Iterator<Series> iterator = series.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastUpdate < threshold) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static double average(double count, double total) {
+        return count > 0 ? total / count : 0.0;
+    }
+
+    synchronized int size() {
+        return series.size();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private Series getSeries(String name, List<String> labelValues) {
+        List<String> key = new ArrayList<String>(labelValues.size() + 1);
+        key.add(name);
+        key.addAll(labelValues);
+        Series s = series.get(key);
+        if (s == null) {
+            s = new Series();
+            series.put(key, s);
+        }
+        s.lastUpdate = currentTimeMillis();
+        return s;
+    }
+
+    private static class Series {
+        private boolean initialized;
+        private double lastValue;
+        private double offset;
+        private long window;
+        private double windowCount;
+        private double windowTotal;
+        private double average;
+        private long lastUpdate;
+    }
+}
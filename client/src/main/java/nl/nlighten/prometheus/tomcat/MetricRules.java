@@ -0,0 +1,347 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Predicate;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Rules that reduce the number of series exported by collectors:
+ *
+ * - include: regular expressions of the metrics to export, defaults to all metrics
+ * - exclude: regular expressions of the metrics not to export
+ * - drop.&lt;regular expression&gt;: labels to remove from the matching metrics, combining the samples that only
+ * differed in those labels, e.g. to export the session metrics of all contexts together
+ * - limit.&lt;regular expression&gt;: the maximum number of series exported for each of the matching metrics
+ *
+ * <p>
+ * When labels are dropped, counters, histograms and gauges of amounts are summed and gauges named _max or _min keep the
+ * maximum or minimum. Gauges that can not be combined, such as averages (_avg), ratios (_ratio), durations and
+ * timestamps (_seconds), and the quantiles of summaries, are left out when they have one of the dropped labels. The limit keeps the series with the lowest
+ * label values, so the same series are exported by every scrape.
+ *
+ * <p>
+ * Regular expressions must match the complete metric name, as reported by the collector or with the suffix of the
+ * sample, e.g. _total, _bucket or _count. Multiple expressions are separated by commas. Rules are compiled once, and
+ * the decision for each metric name is cached. The tomcat_info metric cannot be excluded, as the metrics servlet uses it
+ * to detect that the collectors are already registered.
+ * <p>
+ * Collectors wrapped with {@link #wrap(Collector)} receive the include and exclude rules as sample name filter, so
+ * collectors that evaluate the filter before querying JMX, see {@link SampleNameFilters}, do not read the attributes
+ * of excluded metrics at all. The label and limit rules are applied to the collected samples.
+ * <p>
+ * Example rules file:
+ * <pre>
+ *   exclude=tomcat_session_alivetime_seconds_.*,tomcat_requestprocessor_time_seconds_avg
+ *   drop.tomcat_session_.*=context
+ *   limit.tomcat_servlet_.*=100
+ * </pre>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   MetricRules rules = MetricRules.load("/etc/tomcat/metric-rules.properties");
+ *   rules.wrap(new TomcatGenericExports(false)).register();
+ * }
+ * </pre>
+ */
+public class MetricRules {
+
+    private static final String[] SAMPLE_SUFFIXES = new String[]{"_total", "_created", "_bucket", "_count", "_sum", "_info", "_gcount", "_gsum"};
+    private static final String ALWAYS_ALLOWED = "tomcat_info";
+    private static final Set<String> SERIES_LABELS_IGNORED = new HashSet<String>(Arrays.asList("le", "quantile"));
+    private static final Comparator<List<String>> SERIES_ORDER = new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> a, List<String> b) {
+            for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+                int result = a.get(i).compareTo(b.get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return a.size() - b.size();
+        }
+    };
+    private final Pattern include;
+    private final Pattern exclude;
+    private final Map<Pattern, Set<String>> dropRules = new LinkedHashMap<Pattern, Set<String>>();
+    private final Map<Pattern, Integer> limitRules = new LinkedHashMap<Pattern, Integer>();
+    private final Map<String, Boolean> allowedNames = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, FamilyRules> familyRules = new ConcurrentHashMap<String, FamilyRules>();
+
+    public MetricRules(Properties properties) {
+        include = compile(properties.getProperty("include"));
+        exclude = compile(properties.getProperty("exclude"));
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            if (key.startsWith("drop.")) {
+                Set<String> labels = new HashSet<String>();
+                for (String label : value.split(",")) {
+                    if (!label.trim().isEmpty()) {
+                        labels.add(label.trim());
+                    }
+                }
+                dropRules.put(compile(key.substring("drop.".length())), labels);
+            } else if (key.startsWith("limit.")) {
+                limitRules.put(compile(key.substring("limit.".length())), Integer.parseInt(value));
+            } else if (!key.equals("include") && !key.equals("exclude")) {
+                throw new IllegalArgumentException("Unknown metric rule: " + key);
+            }
+        }
+    }
+
+    /**
+     * Loads the rules from a properties file.
+     */
+    public static MetricRules load(String file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new MetricRules(properties);
+    }
+
+    /**
+     * Returns a collector applying these rules to the metrics of the given collector.
+     */
+    public Collector wrap(Collector collector) {
+        return new RuleCollector(collector);
+    }
+
+    /**
+     * Returns true if the metric with the given sample name is exported according to the include and exclude rules.
+     */
+    public boolean isAllowed(String sampleName) {
+        Boolean allowed = allowedNames.get(sampleName);
+        if (allowed == null) {
+            String familyName = sampleName;
+            for (String suffix : SAMPLE_SUFFIXES) {
+                if (sampleName.endsWith(suffix)) {
+                    familyName = sampleName.substring(0, sampleName.length() - suffix.length());
+                    break;
+                }
+            }
+            allowed = ALWAYS_ALLOWED.equals(sampleName) || ((include == null || matches(include, sampleName, familyName))
+                    && (exclude == null || !matches(exclude, sampleName, familyName)));
+            allowedNames.put(sampleName, allowed);
+        }
+        return allowed;
+    }
+
+    /**
+     * Applies the rules to collected metric families.
+     */
+    List<MetricFamilySamples> apply(List<MetricFamilySamples> mfs) {
+        List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(mfs.size());
+        for (MetricFamilySamples family : mfs) {
+            List<Sample> samples = new ArrayList<Sample>(family.samples.size());
+            for (Sample sample : family.samples) {
+                if (isAllowed(sample.name)) {
+                    samples.add(sample);
+                }
+            }
+            FamilyRules rules = getFamilyRules(family.name);
+            if (!rules.dropLabels.isEmpty()) {
+                samples = aggregate(family, samples, rules.dropLabels);
+            }
+            if (rules.limit >= 0) {
+                samples = limit(samples, rules.limit);
+            }
+            if (!samples.isEmpty()) {
+                result.add(new MetricFamilySamples(family.name, family.unit, family.type, family.help, samples));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the given labels, combining the samples that have the same name and remaining labels, see
+     * {@link #getAggregation(MetricFamilySamples)}. Quantiles of summaries cannot be combined, so these are left out.
+     */
+    private List<Sample> aggregate(MetricFamilySamples family, List<Sample> samples, Set<String> dropLabels) {
+        Aggregation aggregation = getAggregation(family);
+        Map<List<String>, Sample> aggregated = new LinkedHashMap<List<String>, Sample>();
+        for (Sample sample : samples) {
+            if (family.type == Collector.Type.SUMMARY && sample.labelNames.contains("quantile")) {
+                continue;
+            }
+            List<String> labelNames = new ArrayList<String>(sample.labelNames.size());
+            List<String> labelValues = new ArrayList<String>(sample.labelNames.size());
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!dropLabels.contains(sample.labelNames.get(i))) {
+                    labelNames.add(sample.labelNames.get(i));
+                    labelValues.add(sample.labelValues.get(i));
+                }
+            }
+            if (aggregation == Aggregation.DROP && labelNames.size() < sample.labelNames.size()) {
+                continue;
+            }
+            List<String> key = new ArrayList<String>(labelValues.size() + 1);
+            key.add(sample.name);
+            key.addAll(labelValues);
+            Sample previous = aggregated.get(key);
+            aggregated.put(key, new Sample(sample.name, labelNames, labelValues, previous == null ? sample.value : aggregation.apply(previous.value, sample.value)));
+        }
+        return new ArrayList<Sample>(aggregated.values());
+    }
+
+    /**
+     * Returns how the samples of a family are combined. Only gauges can hold values that are not amounts, so the other
+     * types are summed, except info and state set metrics of which the value is 0 or 1.
+     */
+    private static Aggregation getAggregation(MetricFamilySamples family) {
+        switch (family.type) {
+            case GAUGE:
+            case UNKNOWN:
+                String name = family.name;
+                if (name.endsWith("_max") || name.contains("_max_")) {
+                    return Aggregation.MAX;
+                } else if (name.endsWith("_min") || name.contains("_min_")) {
+                    return Aggregation.MIN;
+                } else if (name.endsWith("_avg") || name.endsWith("_ratio") || name.endsWith("_seconds")) {
+                    return Aggregation.DROP;
+                }
+                return Aggregation.SUM;
+            case INFO:
+            case STATE_SET:
+                return Aggregation.MAX;
+            default:
+                return Aggregation.SUM;
+        }
+    }
+
+    /**
+     * Keeps the samples of the series with the lowest labels, ignoring the bucket and quantile labels so histograms and
+     * summaries are kept complete.
+     */
+    private List<Sample> limit(List<Sample> samples, int limit) {
+        Set<List<String>> series = new TreeSet<List<String>>(SERIES_ORDER);
+        for (Sample sample : samples) {
+            List<String> key = seriesKey(sample);
+            series.add(key);
+        }
+        // keep the same series between scrapes, independent of the order in which the collector reports them
+        Set<List<String>> kept = new HashSet<List<String>>();
+        for (List<String> key : series) {
+            if (kept.size() == limit) {
+                break;
+            }
+            kept.add(key);
+        }
+        List<Sample> limited = new ArrayList<Sample>(samples.size());
+        for (Sample sample : samples) {
+            if (kept.contains(seriesKey(sample))) {
+                limited.add(sample);
+            }
+        }
+        return limited;
+    }
+
+    private static List<String> seriesKey(Sample sample) {
+        List<String> key = new ArrayList<String>(sample.labelValues.size() * 2);
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+            if (!SERIES_LABELS_IGNORED.contains(sample.labelNames.get(i))) {
+                key.add(sample.labelNames.get(i));
+                key.add(sample.labelValues.get(i));
+            }
+        }
+        return key;
+    }
+
+    private FamilyRules getFamilyRules(String familyName) {
+        FamilyRules rules = familyRules.get(familyName);
+        if (rules == null) {
+            Set<String> dropLabels = new HashSet<String>();
+            for (Map.Entry<Pattern, Set<String>> rule : dropRules.entrySet()) {
+                if (rule.getKey().matcher(familyName).matches()) {
+                    dropLabels.addAll(rule.getValue());
+                }
+            }
+            int limit = -1;
+            for (Map.Entry<Pattern, Integer> rule : limitRules.entrySet()) {
+                if (rule.getKey().matcher(familyName).matches()) {
+                    limit = limit < 0 ? rule.getValue() : Math.min(limit, rule.getValue());
+                }
+            }
+            rules = new FamilyRules(dropLabels, limit);
+            familyRules.put(familyName, rules);
+        }
+        return rules;
+    }
+
+    private static boolean matches(Pattern pattern, String sampleName, String familyName) {
+        return pattern.matcher(sampleName).matches() || pattern.matcher(familyName).matches();
+    }
+
+    /**
+     * Compiles comma separated regular expressions into a single pattern, or returns null if there are none.
+     */
+    private static Pattern compile(String expressions) {
+        if (expressions == null || expressions.trim().isEmpty()) {
+            return null;
+        }
+        StringBuilder pattern = new StringBuilder();
+        for (String expression : expressions.split(",")) {
+            if (!expression.trim().isEmpty()) {
+                pattern.append(pattern.length() > 0 ? "|" : "").append("(?:").append(expression.trim()).append(')');
+            }
+        }
+        return pattern.length() > 0 ? Pattern.compile(pattern.toString()) : null;
+    }
+
+    private enum Aggregation {
+        SUM, MAX, MIN, DROP;
+
+        double apply(double a, double b) {
+            switch (this) {
+                case MAX:
+                    return Math.max(a, b);
+                case MIN:
+                    return Math.min(a, b);
+                default:
+                    return a + b;
+            }
+        }
+    }
+
+    private static class FamilyRules {
+        private final Set<String> dropLabels;
+        private final int limit;
+
+        FamilyRules(Set<String> dropLabels, int limit) {
+            this.dropLabels = dropLabels;
+            this.limit = limit;
+        }
+    }
+
+    private class RuleCollector extends Collector {
+        private final Collector collector;
+
+        RuleCollector(Collector collector) {
+            this.collector = collector;
+        }
+
+        public List<MetricFamilySamples> collect() {
+            return collect(null);
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect(final Predicate<String> sampleNameFilter) {
+            return apply(collector.collect(new Predicate<String>() {
+                @Override
+                public boolean test(String sampleName) {
+                    return isAllowed(sampleName) && (sampleNameFilter == null || sampleNameFilter.test(sampleName));
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package nl.nlighten.prometheus.tomcat;
+
+import org.apache.catalina.loader.WebappClassLoaderBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The settings of {@link TomcatServletMetricsFilter} and {@link TomcatJdbcInterceptor} that can be changed while Tomcat
+ * is running, through the nl.nlighten.prometheus:type=MetricsConfig MBean or a watched properties file:
+ *
+ * - buckets: the buckets of the servlet response time histogram
+ * - stuckRequestThreshold: the threshold of the stuck request detection in seconds, 0 to disable
+ * - resourceSampleRate: the fraction of requests of which CPU time and allocated bytes are measured, 0 to disable
+ * - exemplars: if set to 'false' no exemplars are recorded, only applies when an exemplar source is configured
+ * - jdbc.buckets: the buckets of the global query histogram
+ * - jdbc.slowQueryBuckets: the buckets of the slow query histogram
+ * - jdbc.threshold: the threshold in ms above which queries are recorded as slow, for all pools
+ * - jdbc.logSlow: if set to 'true' provide metrics on slow queries, for all pools
+ * - jdbc.logFailed: if set to 'true' provide metrics on failed queries, for all pools
+ *
+ * <p>
+ * Buckets are separated by commas or pipe ("|") symbols. The initial values are the configuration of the filter and the
+ * interceptor. A new value is validated and applied before it is stored, so an invalid value is rejected and the
+ * previous value remains in effect. Histograms are re-bucketed by swapping in a new histogram, see
+ * {@link ReconfigurableHistogram}, so requests and queries in flight are recorded in the new histogram when they
+ * complete.
+ * <p>
+ * The file configured with the configFile parameter of the filter is checked for changes every configFileInterval
+ * seconds, and the settings in it that differ from the current values are applied. Settings removed from the file keep
+ * their last value. Example config file:
+ * <pre>
+ *   buckets=.005,.01,.025,.05,.1,.25,.5,1,2.5
+ *   resourceSampleRate=0
+ *   jdbc.logSlow=true
+ *   jdbc.threshold=250
+ * </pre>
+ * When the client jar is deployed inside a web application, the MBean name has a context key with the name of the
+ * context, e.g. nl.nlighten.prometheus:type=MetricsConfig,context="/foo", so the configs of several applications do
+ * not replace each other. A config only unregisters the MBean it registered itself, so a config that is closed after a
+ * newer config of the same application was registered leaves the newer MBean in place.
+ */
+public class MetricsConfig implements MetricsConfigMBean, Closeable {
+
+    public static final String OBJECT_NAME = "nl.nlighten.prometheus:type=MetricsConfig";
+    public static final String SERVLET_BUCKETS = "buckets";
+    public static final String STUCK_REQUEST_THRESHOLD = "stuckRequestThreshold";
+    public static final String RESOURCE_SAMPLE_RATE = "resourceSampleRate";
+    public static final String EXEMPLARS = "exemplars";
+    public static final String JDBC_BUCKETS = "jdbc.buckets";
+    public static final String JDBC_SLOW_QUERY_BUCKETS = "jdbc.slowQueryBuckets";
+    public static final String JDBC_THRESHOLD = "jdbc.threshold";
+    public static final String JDBC_LOG_SLOW = "jdbc.logSlow";
+    public static final String JDBC_LOG_FAILED = "jdbc.logFailed";
+
+    private static final Log log = LogFactory.getLog(MetricsConfig.class);
+    // the config that registered each MBean name, guarded by the class lock
+    private static final Map<ObjectName, MetricsConfig> registered = new HashMap<ObjectName, MetricsConfig>();
+    private static final Set<String> BUCKET_KEYS = new HashSet<String>(Arrays.asList(SERVLET_BUCKETS, JDBC_BUCKETS, JDBC_SLOW_QUERY_BUCKETS));
+    private static final Set<String> LONG_KEYS = new HashSet<String>(Arrays.asList(STUCK_REQUEST_THRESHOLD, JDBC_THRESHOLD));
+    private static final Set<String> BOOLEAN_KEYS = new HashSet<String>(Arrays.asList(EXEMPLARS, JDBC_LOG_SLOW, JDBC_LOG_FAILED));
+    private final Map<String, String> values = new ConcurrentHashMap<String, String>();
+    private final Set<String> changed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile String configFile;
+    private ObjectName objectName;
+    private Thread watcher;
+    private long lastModified;
+    private long lastLength;
+
+    /**
+     * Receives the changes of the settings.
+     */
+    public interface Listener {
+        /**
+         * Applies a changed setting.
+         *
+         * @throws IllegalArgumentException if the value cannot be applied, in which case the change is rejected
+         */
+        void configChanged(String key, String value);
+    }
+
+    MetricsConfig() {
+    }
+
+    /**
+     * Returns the config shared by the filter and the interceptor, registering its MBean on first use.
+     */
+    public static MetricsConfig getInstance() {
+        return getInstance(MetricsHolder.getInstance());
+    }
+
+    /**
+     * Returns the config of the given holder, registering its MBean on first use.
+     */
+    public static MetricsConfig getInstance(MetricsHolder holder) {
+        return holder.get(MetricsConfig.class.getName(), new MetricsHolder.Factory<MetricsConfig>() {
+            @Override
+            public MetricsConfig create(MetricsHolder holder) {
+                MetricsConfig config = new MetricsConfig();
+                config.register();
+                return config;
+            }
+        });
+    }
+
+    /**
+     * Returns the name of the MBean of this config, or null if it is not registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    private synchronized void register() {
+        synchronized (MetricsConfig.class) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = createObjectName();
+                if (server.isRegistered(name)) {
+                    // registered by a holder of the same application that is not closed yet
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+                registered.put(name, this);
+                objectName = name;
+            } catch (JMException e) {
+                log.error("Error registering metrics config MBean:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the MBean name, with the name of the context when the client jar is deployed inside a web application.
+     */
+    private static ObjectName createObjectName() throws JMException {
+        ClassLoader classLoader = MetricsConfig.class.getClassLoader();
+        if (classLoader instanceof WebappClassLoaderBase) {
+            return new ObjectName(OBJECT_NAME + ",context=" + ObjectName.quote(((WebappClassLoaderBase) classLoader).getContextName()));
+        }
+        return new ObjectName(OBJECT_NAME);
+    }
+
+    /**
+     * Stops watching the config file and unregisters the MBean, when the {@link MetricsHolder} is closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+        listeners.clear();
+        if (objectName != null) {
+            synchronized (MetricsConfig.class) {
+                try {
+                    if (registered.get(objectName) == this) {
+                        registered.remove(objectName);
+                        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                    }
+                } catch (JMException e) {
+                    log.error("Error unregistering metrics config MBean:" + e.getMessage());
+                }
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Sets the initial value of a setting, unless it already has a value, e.g. from the config file.
+     *
+     * @return the current value of the setting
+     */
+    public String initialize(String key, String value) {
+        if (value != null) {
+            validate(key, value);
+            values.putIfAbsent(key, value.trim());
+        }
+        return values.get(key);
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Changes a setting, applying it through the listeners first.
+     *
+     * @throws IllegalArgumentException if the setting is unknown or the value is invalid
+     */
+    public synchronized void set(String key, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("No value for " + key);
+        }
+        value = value.trim();
+        validate(key, value);
+        for (Listener listener : listeners) {
+            listener.configChanged(key, value);
+        }
+        values.put(key, value);
+        changed.add(key);
+    }
+
+    /**
+     * Adds a listener, applying the settings that were changed before it was added.
+     */
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        for (String key : changed) {
+            try {
+                listener.configChanged(key, values.get(key));
+            } catch (IllegalArgumentException e) {
+                log.error("Error applying metrics config " + key + ":" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies the given properties file and checks it for changes at the given interval. Only one file is watched; a
+     * later call replaces the file.
+     */
+    public synchronized void watch(String file, final long intervalMillis) {
+        configFile = file;
+        lastModified = 0;
+        lastLength = 0;
+        checkConfigFile();
+        if (watcher == null) {
+            watcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        checkConfigFile();
+                    }
+                }
+            }, "tomcat-metrics-config-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    private synchronized void checkConfigFile() {
+        File file = new File(configFile);
+        if (file.lastModified() != lastModified || file.length() != lastLength) {
+            lastModified = file.lastModified();
+            lastLength = file.length();
+            try {
+                reload();
+            } catch (IOException e) {
+                log.error("Error loading metrics config from " + configFile + ":" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reload() throws IOException {
+        if (configFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(configFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            if (!value.equals(values.get(key))) {
+                try {
+                    set(key, value);
+                    log.info("Changed metrics config " + key + " to " + value);
+                } catch (IllegalArgumentException e) {
+                    log.error("Error applying metrics config " + key + ":" + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void validate(String key, String value) {
+        if (BUCKET_KEYS.contains(key)) {
+            parseBuckets(value);
+        } else if (LONG_KEYS.contains(key)) {
+            Long.parseLong(value.trim());
+        } else if (BOOLEAN_KEYS.contains(key)) {
+            if (!value.trim().equals("true") && !value.trim().equals("false")) {
+                throw new IllegalArgumentException("Invalid value for " + key + ", expected true or false: " + value);
+            }
+        } else if (RESOURCE_SAMPLE_RATE.equals(key)) {
+            double rate = Double.parseDouble(value.trim());
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Invalid value for " + key + ", expected a fraction between 0 and 1: " + value);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown metrics config: " + key);
+        }
+    }
+
+    /**
+     * Parses buckets separated by commas or pipe symbols.
+     *
+     * @throws IllegalArgumentException if a bucket is not a number or the buckets are not in increasing order
+     */
+    public static double[] parseBuckets(String buckets) {
+        List<Double> parsed = new ArrayList<Double>();
+        for (String bucket : buckets.split("[,|]")) {
+            if (!bucket.trim().isEmpty()) {
+                double value = Double.parseDouble(bucket.trim());
+                if (!parsed.isEmpty() && value <= parsed.get(parsed.size() - 1)) {
+                    throw new IllegalArgumentException("Buckets must be in increasing order: " + buckets);
+                }
+                parsed.add(value);
+            }
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No buckets: " + buckets);
+        }
+        double[] result = new double[parsed.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = parsed.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String getServletBuckets() {
+        return values.get(SERVLET_BUCKETS);
+    }
+
+    @Override
+    public void setServletBuckets(String buckets) {
+        set(SERVLET_BUCKETS, buckets);
+    }
+
+    @Override
+    public long getStuckRequestThreshold() {
+        String value = values.get(STUCK_REQUEST_THRESHOLD);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    @Override
+    public void setStuckRequestThreshold(long thresholdSeconds) {
+        set(STUCK_REQUEST_THRESHOLD, Long.toString(thresholdSeconds));
+    }
+
+    @Override
+    public double getResourceSampleRate() {
+        String value = values.get(RESOURCE_SAMPLE_RATE);
+        return value != null ? Double.parseDouble(value) : 0;
+    }
+
+    @Override
+    public void setResourceSampleRate(double rate) {
+        set(RESOURCE_SAMPLE_RATE, Double.toString(rate));
+    }
+
+    @Override
+    public boolean isExemplarsEnabled() {
+        return Boolean.parseBoolean(values.get(EXEMPLARS));
+    }
+
+    @Override
+    public void setExemplarsEnabled(boolean enabled) {
+        set(EXEMPLARS, Boolean.toString(enabled));
+    }
+
+    @Override
+    public String getJdbcBuckets() {
+        return values.get(JDBC_BUCKETS);
+    }
+
+    @Override
+    public void setJdbcBuckets(String buckets) {
+        set(JDBC_BUCKETS, buckets);
+    }
+
+    @Override
+    public String getJdbcSlowQueryBuckets() {
+        return values.get(JDBC_SLOW_QUERY_BUCKETS);
+    }
+
+    @Override
+    public void setJdbcSlowQueryBuckets(String buckets) {
+        set(JDBC_SLOW_QUERY_BUCKETS, buckets);
+    }
+
+    @Override
+    public long getJdbcSlowQueryThreshold() {
+        String value = values.get(JDBC_THRESHOLD);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    @Override
+    public void setJdbcSlowQueryThreshold(long thresholdMillis) {
+        set(JDBC_THRESHOLD, Long.toString(thresholdMillis));
+    }
+
+    @Override
+    public boolean isJdbcLogSlow() {
+        return Boolean.parseBoolean(values.get(JDBC_LOG_SLOW));
+    }
+
+    @Override
+    public void setJdbcLogSlow(boolean enabled) {
+        set(JDBC_LOG_SLOW, Boolean.toString(enabled));
+    }
+
+    @Override
+    public boolean isJdbcLogFailed() {
+        return Boolean.parseBoolean(values.get(JDBC_LOG_FAILED));
+    }
+
+    @Override
+    public void setJdbcLogFailed(boolean enabled) {
+        set(JDBC_LOG_FAILED, Boolean.toString(enabled));
+    }
+
+    @Override
+    public String getConfigFile() {
+        return configFile;
+    }
+}
@@ -0,0 +1,53 @@
+package nl.nlighten.prometheus.tomcat;
+
+import java.io.IOException;
+
+/**
+ * The management interface of {@link MetricsConfig}, registered as nl.nlighten.prometheus:type=MetricsConfig, with a
+ * context key when the client jar is deployed inside a web application.
+ */
+public interface MetricsConfigMBean {
+
+    String getServletBuckets();
+
+    void setServletBuckets(String buckets);
+
+    long getStuckRequestThreshold();
+
+    void setStuckRequestThreshold(long thresholdSeconds);
+
+    double getResourceSampleRate();
+
+    void setResourceSampleRate(double rate);
+
+    boolean isExemplarsEnabled();
+
+    void setExemplarsEnabled(boolean enabled);
+
+    String getJdbcBuckets();
+
+    void setJdbcBuckets(String buckets);
+
+    String getJdbcSlowQueryBuckets();
+
+    void setJdbcSlowQueryBuckets(String buckets);
+
+    long getJdbcSlowQueryThreshold();
+
+    void setJdbcSlowQueryThreshold(long thresholdMillis);
+
+    boolean isJdbcLogSlow();
+
+    void setJdbcLogSlow(boolean enabled);
+
+    boolean isJdbcLogFailed();
+
+    void setJdbcLogFailed(boolean enabled);
+
+    String getConfigFile();
+
+    /**
+     * Applies the watched config file now, instead of on the next check for changes.
+     */
+    void reload() throws IOException;
+}
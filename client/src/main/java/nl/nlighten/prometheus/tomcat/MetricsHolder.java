@@ -0,0 +1,234 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.loader.WebappClassLoaderBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the collectors and settings shared by all instances of {@link TomcatServletMetricsFilter} and
+ * {@link TomcatJdbcInterceptor}, instead of static fields, so they can be released when they are no longer used.
+ *
+ * <p>
+ * Filters attach to the holder when their context starts and detach when it stops, and interceptors when their pool
+ * starts and closes. The collectors are created by the first user and shared by all contexts and pools, and a filter
+ * removes the series of its context when it detaches, so memory stays flat across redeploys.
+ * <p>
+ * When the client jar is deployed inside a web application, the holder is released when its last user detaches: the
+ * collectors it registered are unregistered from the default registry and its shared objects, e.g. the
+ * {@link MetricsConfig} MBean and its file watcher, are closed, so the registry and the MBean server do not keep the
+ * classes of the stopped application, and the next deployment can register the collectors again. When the client jar
+ * is on the common class path, the holder lives as long as the server, and is released when the server stops if
+ * {@link TomcatMetricsListener} is configured.
+ * <p>
+ * Users attach with {@link #attachInstance(Object)}, which attaches to the current holder while holding the lock that
+ * releases it, so a user never attaches to a holder that is being closed. A holder is released when its last user
+ * detaches, and a shared object requested from a closed holder is created in a new holder.
+ */
+public class MetricsHolder {
+
+    private static final Log log = LogFactory.getLog(MetricsHolder.class);
+    private static volatile MetricsHolder instance;
+    private final CollectorRegistry registry;
+    private final boolean releaseWhenUnused;
+    private final Map<String, Object> shared = new ConcurrentHashMap<String, Object>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<Collector>();
+    private final Set<Object> users = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private boolean closed;
+
+    /**
+     * Creates a shared object on first use.
+     */
+    public interface Factory<T> {
+        T create(MetricsHolder holder);
+    }
+
+    /**
+     * @param registry          the registry to register the collectors in
+     * @param releaseWhenUnused if set to true the holder is closed when its last user detaches
+     */
+    MetricsHolder(CollectorRegistry registry, boolean releaseWhenUnused) {
+        this.registry = registry;
+        this.releaseWhenUnused = releaseWhenUnused;
+    }
+
+    /**
+     * Returns the holder, creating a new one if there is none or the previous one was closed.
+     */
+    public static MetricsHolder getInstance() {
+        MetricsHolder holder = instance;
+        if (holder == null) {
+            synchronized (MetricsHolder.class) {
+                holder = instance;
+                if (holder == null) {
+                    holder = new MetricsHolder(CollectorRegistry.defaultRegistry,
+                            MetricsHolder.class.getClassLoader() instanceof WebappClassLoaderBase);
+                    instance = holder;
+                }
+            }
+        }
+        return holder;
+    }
+
+    /**
+     * Attaches a user, e.g. a filter or a connection pool, to the current holder, creating a new one if there is none or
+     * the previous one was released.
+     *
+     * @return the holder the user is attached to, which must be used to detach
+     */
+    public static MetricsHolder attachInstance(Object user) {
+        synchronized (MetricsHolder.class) {
+            MetricsHolder holder = getInstance();
+            holder.attach(user);
+            return holder;
+        }
+    }
+
+    /**
+     * Detaches a user from the current holder, if any, without creating a new holder.
+     */
+    public static void detachInstance(Object user) {
+        MetricsHolder holder = instance;
+        if (holder != null) {
+            holder.detach(user);
+        }
+    }
+
+    /**
+     * Closes the current holder, if any.
+     */
+    public static void closeInstance() {
+        MetricsHolder holder;
+        synchronized (MetricsHolder.class) {
+            holder = instance;
+            instance = null;
+        }
+        if (holder != null) {
+            holder.close();
+        }
+    }
+
+    /**
+     * Registers a user of the holder, e.g. a filter or a connection pool. Users of the shared holder must use
+     * {@link #attachInstance(Object)} instead.
+     *
+     * @throws IllegalStateException if the holder is closed
+     */
+    public synchronized void attach(Object user) {
+        if (closed) {
+            throw new IllegalStateException("Metrics holder is closed");
+        }
+        users.add(user);
+    }
+
+    /**
+     * Unregisters a user of the holder, closing the holder if it was the last user and the holder is released when
+     * unused.
+     */
+    public void detach(Object user) {
+        boolean release;
+        // the holder is released while holding the lock of attachInstance, so no user can attach to it in between
+        synchronized (MetricsHolder.class) {
+            synchronized (this) {
+                release = users.remove(user) && users.isEmpty() && releaseWhenUnused;
+            }
+            if (release && instance == this) {
+                instance = null;
+            }
+        }
+        if (release) {
+            close();
+        }
+    }
+
+    /**
+     * Returns the shared object with the given key, creating it with the factory on first use. If the holder is closed,
+     * the object is taken from the current holder instead, so it is not created in a holder that is never closed again.
+     * The factory must not look up the current holder, but use the holder it is passed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Factory<T> factory) {
+        Object value = shared.get(key);
+        if (value == null) {
+            synchronized (this) {
+                if (!closed) {
+                    value = shared.get(key);
+                    if (value == null) {
+                        value = factory.create(this);
+                        shared.put(key, value);
+                    }
+                }
+            }
+            if (value == null) {
+                return getInstance().get(key, factory);
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Registers a collector in the registry, to be unregistered when the holder is closed.
+     */
+    public <T extends Collector> T register(T collector) {
+        registry.register(collector);
+        collectors.add(collector);
+        return collector;
+    }
+
+    /**
+     * Unregisters the collectors and closes the shared objects that are {@link Closeable}.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Collector collector : collectors) {
+            registry.unregister(collector);
+        }
+        collectors.clear();
+        for (Object value : shared.values()) {
+            if (value instanceof Closeable) {
+                try {
+                    ((Closeable) value).close();
+                } catch (IOException e) {
+                    log.error("Error closing " + value + ":" + e.getMessage());
+                }
+            }
+        }
+        shared.clear();
+        users.clear();
+    }
+
+    /**
+     * Returns the label values of the series of a collector of which the given label has the given value, excluding
+     * the le and quantile labels, e.g. to remove the children of a stopped context from a collector.
+     */
+    static Set<List<String>> seriesWithLabel(Collector collector, String labelName, String labelValue) {
+        Set<List<String>> series = new LinkedHashSet<List<String>>();
+        for (MetricFamilySamples family : collector.collect()) {
+            for (Sample sample : family.samples) {
+                int index = sample.labelNames.indexOf(labelName);
+                if (index >= 0 && labelValue.equals(sample.labelValues.get(index))) {
+                    List<String> labelValues = new ArrayList<String>(sample.labelValues.size());
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        if (!sample.labelNames.get(i).equals("le") && !sample.labelNames.get(i).equals("quantile")) {
+                            labelValues.add(sample.labelValues.get(i));
+                        }
+                    }
+                    series.add(labelValues);
+                }
+            }
+        }
+        return series;
+    }
+}
@@ -0,0 +1,399 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal HTTP server exposing a registry on its own port, independent of the connectors and thread pools of Tomcat,
+ * so scrapes still succeed when all request processing threads are busy or maxConnections is reached.
+ *
+ * <p>
+ * All connections are handled by a single thread using non-blocking I/O. Only GET and HEAD requests for the metrics
+ * path are supported; the response format is negotiated like {@link io.prometheus.client.exporter.MetricsServlet}
+ * (text, OpenMetrics or protobuf, see {@link ProtobufFormat}), the name[] parameter is supported and responses are gzip
+ * compressed when accepted. Connections are kept alive, and closed after being idle for 30 seconds. When a collector
+ * fails, the request is answered with status 500 and the server continues serving other requests.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   MetricsHttpServer server = new MetricsHttpServer(CollectorRegistry.defaultRegistry, new InetSocketAddress(9404), "/metrics");
+ *   server.start();
+ *   ...
+ *   server.close();
+ * }
+ * </pre>
+ */
+public class MetricsHttpServer implements Runnable, Closeable {
+
+    private static final Log log = LogFactory.getLog(MetricsHttpServer.class);
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+    private final CollectorRegistry registry;
+    private final String path;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ProtobufFormat protobufFormat = new ProtobufFormat();
+    private ResponseBuffer responseBuffer = new ResponseBuffer();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param registry the registry to expose
+     * @param address  the address to listen on
+     * @param path     the path of the metrics, e.g. /metrics
+     */
+    public MetricsHttpServer(CollectorRegistry registry, InetSocketAddress address, String path) throws IOException {
+        this.registry = registry;
+        this.path = path;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "tomcat-metrics-http-" + getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        Thread serverThread;
+        synchronized (this) {
+            serverThread = thread;
+        }
+        if (serverThread == null) {
+            closeSelector();
+        } else if (serverThread != Thread.currentThread()) {
+            try {
+                serverThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            } else if (key.isWritable()) {
+                                write(key, connection);
+                            }
+                        } catch (IOException e) {
+                            closeQuietly(key);
+                        } catch (RuntimeException e) {
+                            log.error("Error serving metrics:" + e.getMessage(), e);
+                            respondError(key, connection);
+                        }
+                    }
+                }
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            log.error("Error serving metrics:" + e.getMessage());
+        } finally {
+            closeSelector();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.request) < 0) {
+            closeQuietly(key);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        process(key, connection);
+    }
+
+    /**
+     * Handles the request in the input buffer once its headers are complete. Request bodies are not supported.
+     */
+    private void process(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer request = connection.request;
+        int end = findHeaderEnd(request);
+        if (end < 0) {
+            if (!request.hasRemaining()) {
+                respond(key, connection, 431, "Request Header Fields Too Large", false, false);
+            }
+            return;
+        }
+        String[] lines = new String(request.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+        // keep pipelined requests for the next exchange
+        int headerLength = end + 4;
+        System.arraycopy(request.array(), headerLength, request.array(), 0, request.position() - headerLength);
+        request.position(request.position() - headerLength);
+
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            respond(key, connection, 400, "Bad Request", false, false);
+            return;
+        }
+        String accept = null;
+        boolean gzip = false;
+        boolean keepAlive = "HTTP/1.1".equals(requestLine[2]);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if ("accept".equals(name)) {
+                    accept = value;
+                } else if ("accept-encoding".equals(name)) {
+                    gzip = value.toLowerCase(Locale.ROOT).contains("gzip");
+                } else if ("connection".equals(name)) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                }
+            }
+        }
+        String method = requestLine[0];
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        String requestPath = query >= 0 ? target.substring(0, query) : target;
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            respond(key, connection, 405, "Method Not Allowed", keepAlive, false);
+        } else if (!path.equals(requestPath)) {
+            respond(key, connection, 404, "Not Found", keepAlive, false);
+        } else {
+            writeMetrics(accept, gzip, query >= 0 ? parseNames(target.substring(query + 1)) : null);
+            respond(key, connection, 200, "OK", keepAlive, "HEAD".equals(method));
+        }
+    }
+
+    private void writeMetrics(String accept, boolean gzip, Set<String> names) throws IOException {
+        responseBuffer.reset();
+        responseBuffer.gzip = gzip;
+        Enumeration<MetricFamilySamples> mfs = names == null
+                ? registry.metricFamilySamples()
+                : registry.filteredMetricFamilySamples(names);
+        OutputStream out = gzip ? new GZIPOutputStream(responseBuffer) : responseBuffer;
+        if (ProtobufFormat.isPreferred(accept)) {
+            responseBuffer.contentType = ProtobufFormat.CONTENT_TYPE_PROTOBUF;
+            protobufFormat.write(out, mfs);
+            out.close();
+        } else {
+            responseBuffer.contentType = TextFormat.chooseContentType(accept);
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            TextFormat.writeFormat(responseBuffer.contentType, writer, mfs);
+            writer.close();
+        }
+    }
+
+    private void respond(SelectionKey key, Connection connection, int status, String reason, boolean keepAlive,
+                         boolean head) throws IOException {
+        boolean hasBody = status == 200;
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (hasBody) {
+            headers.append("Content-Type: ").append(responseBuffer.contentType).append("\r\n");
+            if (responseBuffer.gzip) {
+                headers.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        headers.append("Content-Length: ").append(hasBody ? responseBuffer.size() : 0).append("\r\n");
+        headers.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        int bodyLength = hasBody && !head ? responseBuffer.size() : 0;
+        ByteBuffer[] response = new ByteBuffer[]{
+                ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                ByteBuffer.wrap(responseBuffer.buffer(), 0, bodyLength)};
+        connection.response = response;
+        connection.keepAlive = keepAlive;
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key, connection);
+        if (connection.response == response && bodyLength > 0) {
+            // the rest of the body is written later, so the next request can not reuse the buffer
+            responseBuffer = new ResponseBuffer();
+        }
+    }
+
+    /**
+     * Answers a request that could not be handled with status 500 and closes the connection, or only closes it when a
+     * response was already being written.
+     */
+    private void respondError(SelectionKey key, Connection connection) {
+        if (connection.response != null || !key.isValid()) {
+            closeQuietly(key);
+            return;
+        }
+        try {
+            respond(key, connection, 500, "Internal Server Error", false, false);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(key);
+        }
+    }
+
+    private void write(SelectionKey key, Connection connection) throws IOException {
+        ((SocketChannel) key.channel()).write(connection.response);
+        connection.lastActivity = System.currentTimeMillis();
+        if (connection.response[connection.response.length - 1].hasRemaining()) {
+            return;
+        }
+        connection.response = null;
+        if (!connection.keepAlive) {
+            closeQuietly(key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+            if (connection.request.position() > 0) {
+                process(key, connection);
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long idleSince = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && connection.lastActivity < idleSince) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private static int findHeaderEnd(ByteBuffer request) {
+        byte[] data = request.array();
+        for (int i = 0; i < request.position() - 3; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the values of the name[] parameters in the given query string, or null if there are none.
+     */
+    private static Set<String> parseNames(String queryString) throws UnsupportedEncodingException {
+        Set<String> names = null;
+        for (String parameter : queryString.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && "name[]".equals(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"))) {
+                if (names == null) {
+                    names = new HashSet<String>();
+                }
+                names.add(URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return names;
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static class Connection {
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer[] response;
+        private boolean keepAlive;
+        private long lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * The response body, reused between requests as they are all handled by the same thread. It is written to the
+     * connection without copying, and replaced when a response can not be written at once.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+        private String contentType;
+        private boolean gzip;
+
+        ResponseBuffer() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        @Override
+        public void close() {
+            // keep the buffer usable when closed by a wrapping stream
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.exemplars.Exemplar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes metric family samples in the length delimited protobuf format of the Prometheus client model
+ * (io.prometheus.client.MetricFamily), which is cheaper to produce and to parse than the text formats for large scrapes.
+ * <p>
+ * Messages are encoded directly from the collector output into a buffer that is reused between scrapes, without an
+ * intermediate object model and without a protobuf library. The buffer is written to the output stream whenever it
+ * exceeds a flush threshold, so its size is bounded regardless of the number of series. Exemplars of counters and
+ * histogram buckets are included. Histogram counts that are not integers, e.g. of a {@link WeightedHistogram}, are
+ * written as floating point counts.
+ * <p>
+ * Example usage in a servlet:
+ * <pre>
+ * {@code
+ *   private final ProtobufFormat protobufFormat = new ProtobufFormat();
+ *   ...
+ *   if (ProtobufFormat.isPreferred(request.getHeader("Accept"))) {
+ *       response.setContentType(ProtobufFormat.CONTENT_TYPE_PROTOBUF);
+ *       protobufFormat.write(response.getOutputStream(), CollectorRegistry.defaultRegistry.metricFamilySamples());
+ *   }
+ * }
+ * </pre>
+ */
+public class ProtobufFormat {
+
+    public static final String CONTENT_TYPE_PROTOBUF = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+    private static final int FLUSH_THRESHOLD = 256 * 1024;
+
+    // field numbers and types of the client model, see metrics.proto
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+    private static final int TYPE_GAUGE_HISTOGRAM = 5;
+
+    private final AtomicReference<Buffer> cachedBuffer = new AtomicReference<Buffer>();
+
+    /**
+     * Returns true if the given Accept header prefers the delimited protobuf format over the text formats.
+     */
+    public static boolean isPreferred(String acceptHeader) {
+        if (acceptHeader == null) {
+            return false;
+        }
+        double protobufQuality = -1;
+        double otherQuality = -1;
+        for (String mediaRange : acceptHeader.split(",")) {
+            String[] parameters = mediaRange.split(";");
+            String type = parameters[0].trim();
+            double quality = 1;
+            boolean metricFamily = false;
+            boolean delimited = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                } else if (parameter.equals("proto=io.prometheus.client.MetricFamily")) {
+                    metricFamily = true;
+                } else if (parameter.equals("encoding=delimited")) {
+                    delimited = true;
+                }
+            }
+            if (type.equals("application/vnd.google.protobuf")) {
+                if (metricFamily && delimited) {
+                    protobufQuality = Math.max(protobufQuality, quality);
+                }
+            } else if (type.equals("text/plain") || type.equals("application/openmetrics-text")) {
+                otherQuality = Math.max(otherQuality, quality);
+            }
+        }
+        return protobufQuality > 0 && protobufQuality >= otherQuality;
+    }
+
+    /**
+     * Writes the given metric family samples as length delimited MetricFamily messages.
+     */
+    public void write(OutputStream out, Enumeration<MetricFamilySamples> mfs) throws IOException {
+        Buffer buffer = cachedBuffer.getAndSet(null);
+        if (buffer == null) {
+            buffer = new Buffer();
+        }
+        try {
+            while (mfs.hasMoreElements()) {
+                writeMetricFamilySamples(buffer, mfs.nextElement());
+                if (buffer.size >= FLUSH_THRESHOLD) {
+                    out.write(buffer.data, 0, buffer.size);
+                    buffer.size = 0;
+                }
+            }
+            out.write(buffer.data, 0, buffer.size);
+        } finally {
+            buffer.size = 0;
+            cachedBuffer.set(buffer);
+        }
+    }
+
+    private void writeMetricFamilySamples(Buffer buffer, MetricFamilySamples family) {
+        switch (family.type) {
+            case HISTOGRAM:
+            case GAUGE_HISTOGRAM:
+                writeHistogramFamily(buffer, family);
+                break;
+            case SUMMARY:
+                writeSummaryFamily(buffer, family);
+                break;
+            default:
+                writeSimpleFamily(buffer, family);
+        }
+    }
+
+    /**
+     * Writes families of which each sample is a metric. The client model has no info and state set types, these are
+     * written as gauges. Samples with different names, e.g. the _total and _created samples of a counter, are written
+     * as separate families of which the _created samples are skipped.
+     */
+    private void writeSimpleFamily(Buffer buffer, MetricFamilySamples family) {
+        int type;
+        switch (family.type) {
+            case COUNTER:
+                type = TYPE_COUNTER;
+                break;
+            case GAUGE:
+            case INFO:
+            case STATE_SET:
+                type = TYPE_GAUGE;
+                break;
+            default:
+                type = TYPE_UNTYPED;
+        }
+        String createdName = family.name + "_created";
+        List<String> names = new ArrayList<String>(1);
+        for (Sample sample : family.samples) {
+            if (!names.contains(sample.name) && !(type == TYPE_COUNTER && sample.name.equals(createdName))) {
+                names.add(sample.name);
+            }
+        }
+        for (String name : names) {
+            int familyMark = buffer.beginMessage();
+            writeFamilyHeader(buffer, name, family.help, type);
+            for (Sample sample : family.samples) {
+                if (!sample.name.equals(name)) {
+                    continue;
+                }
+                buffer.writeTag(4, WIRETYPE_LENGTH_DELIMITED);
+                int metricMark = buffer.beginMessage();
+                writeLabels(buffer, 1, sample.labelNames, sample.labelValues, null);
+                // gauge = 2, counter = 3, untyped = 5
+                buffer.writeTag(type == TYPE_COUNTER ? 3 : type == TYPE_GAUGE ? 2 : 5, WIRETYPE_LENGTH_DELIMITED);
+                int valueMark = buffer.beginMessage();
+                buffer.writeDouble(1, sample.value);
+                if (type == TYPE_COUNTER && sample.exemplar != null) {
+                    buffer.writeTag(2, WIRETYPE_LENGTH_DELIMITED);
+                    writeExemplar(buffer, sample.exemplar);
+                }
+                buffer.endMessage(valueMark);
+                writeTimestamp(buffer, sample);
+                buffer.endMessage(metricMark);
+            }
+            buffer.endMessage(familyMark);
+        }
+    }
+
+    private void writeHistogramFamily(Buffer buffer, MetricFamilySamples family) {
+        boolean gauge = family.type == io.prometheus.client.Collector.Type.GAUGE_HISTOGRAM;
+        String bucketName = family.name + "_bucket";
+        String countName = family.name + (gauge ? "_gcount" : "_count");
+        String sumName = family.name + (gauge ? "_gsum" : "_sum");
+        int familyMark = buffer.beginMessage();
+        writeFamilyHeader(buffer, family.name, family.help, gauge ? TYPE_GAUGE_HISTOGRAM : TYPE_HISTOGRAM);
+        for (Group group : groupSamples(family, "le")) {
+            buffer.writeTag(4, WIRETYPE_LENGTH_DELIMITED);
+            int metricMark = buffer.beginMessage();
+            writeLabels(buffer, 1, group.first.labelNames, group.first.labelValues, "le");
+            buffer.writeTag(7, WIRETYPE_LENGTH_DELIMITED);
+            int histogramMark = buffer.beginMessage();
+            Sample timestampSample = null;
+            for (Sample sample : group.samples) {
+                if (sample.name.equals(countName)) {
+                    writeCount(buffer, 1, 4, sample.value);
+                    timestampSample = sample;
+                } else if (sample.name.equals(sumName)) {
+                    buffer.writeDouble(2, sample.value);
+                } else if (sample.name.equals(bucketName)) {
+                    String upperBound = getLabelValue(sample, "le");
+                    if (upperBound == null || upperBound.equals("+Inf")) {
+                        // the +Inf bucket is implied by the sample count
+                        continue;
+                    }
+                    buffer.writeTag(3, WIRETYPE_LENGTH_DELIMITED);
+                    int bucketMark = buffer.beginMessage();
+                    writeCount(buffer, 1, 4, sample.value);
+                    buffer.writeDouble(2, Double.parseDouble(upperBound));
+                    if (sample.exemplar != null) {
+                        buffer.writeTag(3, WIRETYPE_LENGTH_DELIMITED);
+                        writeExemplar(buffer, sample.exemplar);
+                    }
+                    buffer.endMessage(bucketMark);
+                }
+            }
+            buffer.endMessage(histogramMark);
+            if (timestampSample != null) {
+                writeTimestamp(buffer, timestampSample);
+            }
+            buffer.endMessage(metricMark);
+        }
+        buffer.endMessage(familyMark);
+    }
+
+    private void writeSummaryFamily(Buffer buffer, MetricFamilySamples family) {
+        String countName = family.name + "_count";
+        String sumName = family.name + "_sum";
+        int familyMark = buffer.beginMessage();
+        writeFamilyHeader(buffer, family.name, family.help, TYPE_SUMMARY);
+        for (Group group : groupSamples(family, "quantile")) {
+            buffer.writeTag(4, WIRETYPE_LENGTH_DELIMITED);
+            int metricMark = buffer.beginMessage();
+            writeLabels(buffer, 1, group.first.labelNames, group.first.labelValues, "quantile");
+            buffer.writeTag(4, WIRETYPE_LENGTH_DELIMITED);
+            int summaryMark = buffer.beginMessage();
+            for (Sample sample : group.samples) {
+                if (sample.name.equals(countName)) {
+                    buffer.writeTag(1, WIRETYPE_VARINT);
+                    buffer.writeVarint((long) sample.value);
+                } else if (sample.name.equals(sumName)) {
+                    buffer.writeDouble(2, sample.value);
+                } else if (sample.name.equals(family.name)) {
+                    String quantile = getLabelValue(sample, "quantile");
+                    if (quantile == null) {
+                        continue;
+                    }
+                    buffer.writeTag(3, WIRETYPE_LENGTH_DELIMITED);
+                    int quantileMark = buffer.beginMessage();
+                    buffer.writeDouble(1, Double.parseDouble(quantile));
+                    buffer.writeDouble(2, sample.value);
+                    buffer.endMessage(quantileMark);
+                }
+            }
+            buffer.endMessage(summaryMark);
+            buffer.endMessage(metricMark);
+        }
+        buffer.endMessage(familyMark);
+    }
+
+    private void writeFamilyHeader(Buffer buffer, String name, String help, int type) {
+        buffer.writeString(1, name);
+        buffer.writeString(2, help);
+        buffer.writeTag(3, WIRETYPE_VARINT);
+        buffer.writeVarint(type);
+    }
+
+    private void writeLabels(Buffer buffer, int fieldNumber, List<String> labelNames, List<String> labelValues, String excludedLabel) {
+        for (int i = 0; i < labelNames.size(); i++) {
+            if (labelNames.get(i).equals(excludedLabel)) {
+                continue;
+            }
+            writeLabel(buffer, fieldNumber, labelNames.get(i), labelValues.get(i));
+        }
+    }
+
+    private void writeLabel(Buffer buffer, int fieldNumber, String name, String value) {
+        buffer.writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+        int labelMark = buffer.beginMessage();
+        buffer.writeString(1, name);
+        buffer.writeString(2, value);
+        buffer.endMessage(labelMark);
+    }
+
+    private void writeExemplar(Buffer buffer, Exemplar exemplar) {
+        int exemplarMark = buffer.beginMessage();
+        for (int i = 0; i < exemplar.getNumberOfLabels(); i++) {
+            writeLabel(buffer, 1, exemplar.getLabelName(i), exemplar.getLabelValue(i));
+        }
+        buffer.writeDouble(2, exemplar.getValue());
+        if (exemplar.getTimestampMs() != null) {
+            long timestampMs = exemplar.getTimestampMs();
+            buffer.writeTag(3, WIRETYPE_LENGTH_DELIMITED);
+            int timestampMark = buffer.beginMessage();
+            buffer.writeTag(1, WIRETYPE_VARINT);
+            buffer.writeVarint(Math.floorDiv(timestampMs, 1000L));
+            buffer.writeTag(2, WIRETYPE_VARINT);
+            buffer.writeVarint(Math.floorMod(timestampMs, 1000L) * 1000000L);
+            buffer.endMessage(timestampMark);
+        }
+        buffer.endMessage(exemplarMark);
+    }
+
+    private void writeTimestamp(Buffer buffer, Sample sample) {
+        if (sample.timestampMs != null) {
+            buffer.writeTag(6, WIRETYPE_VARINT);
+            buffer.writeVarint(sample.timestampMs);
+        }
+    }
+
+    /**
+     * Writes an integer count in the integer field, or a count with a fraction in the floating point field.
+     */
+    private void writeCount(Buffer buffer, int intFieldNumber, int floatFieldNumber, double value) {
+        if (value >= 0 && value == Math.rint(value) && value < Long.MAX_VALUE) {
+            buffer.writeTag(intFieldNumber, WIRETYPE_VARINT);
+            buffer.writeVarint((long) value);
+        } else {
+            buffer.writeDouble(floatFieldNumber, value);
+        }
+    }
+
+    private String getLabelValue(Sample sample, String labelName) {
+        int index = sample.labelNames.indexOf(labelName);
+        return index >= 0 ? sample.labelValues.get(index) : null;
+    }
+
+    /**
+     * Groups the samples of a histogram or summary by their labels, excluding the bucket or quantile label. Collectors
+     * return the samples of a series consecutively, so the previous group is checked before looking up the others.
+     */
+    private List<Group> groupSamples(MetricFamilySamples family, String excludedLabel) {
+        List<Group> groups = new ArrayList<Group>();
+        Map<List<String>, Group> groupsByLabels = null;
+        Group current = null;
+        for (Sample sample : family.samples) {
+            if (current != null && sameLabels(current.first, sample, excludedLabel)) {
+                current.samples.add(sample);
+                continue;
+            }
+            if (groupsByLabels == null) {
+                groupsByLabels = new HashMap<List<String>, Group>();
+            }
+            List<String> key = new ArrayList<String>(sample.labelNames.size() * 2);
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!sample.labelNames.get(i).equals(excludedLabel)) {
+                    key.add(sample.labelNames.get(i));
+                    key.add(sample.labelValues.get(i));
+                }
+            }
+            current = groupsByLabels.get(key);
+            if (current == null) {
+                current = new Group(sample);
+                groupsByLabels.put(key, current);
+                groups.add(current);
+            }
+            current.samples.add(sample);
+        }
+        return groups;
+    }
+
+    private boolean sameLabels(Sample a, Sample b, String excludedLabel) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < a.labelNames.size() && a.labelNames.get(i).equals(excludedLabel)) {
+                i++;
+            }
+            while (j < b.labelNames.size() && b.labelNames.get(j).equals(excludedLabel)) {
+                j++;
+            }
+            if (i == a.labelNames.size() || j == b.labelNames.size()) {
+                return i == a.labelNames.size() && j == b.labelNames.size();
+            }
+            if (!a.labelNames.get(i).equals(b.labelNames.get(j)) || !a.labelValues.get(i).equals(b.labelValues.get(j))) {
+                return false;
+            }
+            i++;
+            j++;
+        }
+    }
+
+    private static class Group {
+        private final Sample first;
+        private final List<Sample> samples = new ArrayList<Sample>();
+
+        Group(Sample first) {
+            this.first = first;
+        }
+    }
+
+    /**
+     * A growable byte buffer with the protobuf encoding primitives. Nested messages are written with a one byte length
+     * placeholder, which is widened when the message turns out to be 128 bytes or longer.
+     */
+    private static class Buffer {
+        private byte[] data = new byte[64 * 1024];
+        private int size;
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + additional));
+            }
+        }
+
+        void writeTag(int fieldNumber, int wireType) {
+            writeVarint((fieldNumber << 3) | wireType);
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeDouble(int fieldNumber, double value) {
+            writeTag(fieldNumber, WIRETYPE_FIXED64);
+            ensureCapacity(8);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                data[size++] = (byte) (bits >>> (8 * i));
+            }
+        }
+
+        void writeString(int fieldNumber, String value) {
+            writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+            int mark = beginMessage();
+            ensureCapacity(value.length() * 3);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    data[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    data[size++] = (byte) (0xC0 | (c >> 6));
+                    data[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    data[size++] = (byte) (0xF0 | (codePoint >> 18));
+                    data[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    data[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    data[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    data[size++] = (byte) '?';
+                } else {
+                    data[size++] = (byte) (0xE0 | (c >> 12));
+                    data[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    data[size++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            endMessage(mark);
+        }
+
+        /**
+         * Reserves a byte for the length of a message and returns the position of its content.
+         */
+        int beginMessage() {
+            ensureCapacity(1);
+            size++;
+            return size;
+        }
+
+        /**
+         * Writes the length of the message started at the given position, moving its content if needed.
+         */
+        void endMessage(int mark) {
+            int length = size - mark;
+            int lengthSize = 1;
+            for (long value = length >>> 7; value != 0; value >>>= 7) {
+                lengthSize++;
+            }
+            if (lengthSize > 1) {
+                ensureCapacity(lengthSize - 1);
+                System.arraycopy(data, mark, data, mark + lengthSize - 1, length);
+                size += lengthSize - 1;
+            }
+            int position = mark - 1;
+            while ((length & ~0x7F) != 0) {
+                data[position++] = (byte) ((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            data[position] = (byte) length;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A histogram of which the buckets can be changed at runtime, see {@link MetricsConfig}. A change builds a new histogram
+ * with the new buckets and swaps it in atomically, so observations are never blocked and scrapes always see a single,
+ * consistent bucket layout. The counts start at zero again after a change, which Prometheus handles as a counter reset.
+ * <p>
+ * Callers must look up the child when recording an observation, instead of keeping a child or timer while the measured
+ * work is in flight, so a request that was started before a change is recorded in the new histogram.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   ReconfigurableHistogram histogram = new ReconfigurableHistogram("servlet_request_seconds", "...",
+ *           new double[]{.1, 1, 10}, "context").register();
+ *   long start = System.nanoTime();
+ *   ...
+ *   histogram.labels("/foo").observe((System.nanoTime() - start) / 1e9);
+ *   ...
+ *   histogram.setBuckets(new double[]{.05, .25, 1, 5});
+ * }
+ * </pre>
+ */
+public class ReconfigurableHistogram extends Collector {
+
+    private final String name;
+    private final String help;
+    private final String[] labelNames;
+    private volatile double[] buckets;
+    private volatile Histogram histogram;
+
+    /**
+     * @param name       the name of the histogram
+     * @param help       the help text of the histogram
+     * @param buckets    the upper bounds of the buckets in increasing order, excluding +Inf
+     * @param labelNames the label names of the histogram
+     */
+    public ReconfigurableHistogram(String name, String help, double[] buckets, String... labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+        this.histogram = create(buckets);
+        this.buckets = buckets.clone();
+    }
+
+    /**
+     * Returns the child histogram for the given label values of the current bucket layout.
+     */
+    public Histogram.Child labels(String... labelValues) {
+        return histogram.labels(labelValues);
+    }
+
+    /**
+     * Removes the child with the given label values.
+     */
+    public void remove(String... labelValues) {
+        histogram.remove(labelValues);
+    }
+
+    public double[] getBuckets() {
+        return buckets.clone();
+    }
+
+    /**
+     * Replaces the histogram with one that has the given buckets, unless these are the current buckets. All series
+     * and exemplars of the previous histogram are dropped, so every series starts again at zero.
+     *
+     * @throws IllegalArgumentException if the buckets are not in increasing order
+     */
+    public synchronized void setBuckets(double[] buckets) {
+        if (!Arrays.equals(this.buckets, buckets)) {
+            histogram = create(buckets);
+            this.buckets = buckets.clone();
+        }
+    }
+
+    private Histogram create(double[] buckets) {
+        for (int i = 1; i < buckets.length; i++) {
+            if (buckets[i] <= buckets[i - 1]) {
+                throw new IllegalArgumentException("Buckets must be in increasing order: " + buckets[i - 1] + " >= " + buckets[i]);
+            }
+        }
+        return Histogram.build()
+                .name(name)
+                .help(help)
+                .labelNames(labelNames)
+                .buckets(buckets)
+                .create();
+    }
+
+    public List<MetricFamilySamples> collect() {
+        return histogram.collect();
+    }
+}
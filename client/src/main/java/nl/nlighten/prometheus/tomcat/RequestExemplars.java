@@ -0,0 +1,197 @@
+package nl.nlighten.prometheus.tomcat;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the trace or request id of the current request, so latency histograms can record it as an exemplar of the
+ * bucket an observation falls in. The id is taken from the first of the following sources that is configured and
+ * present:
+ *
+ * - a request header, e.g. X-Request-ID
+ * - a request attribute, e.g. set by a tracing filter
+ * - a key of the SLF4J MDC of the web application, e.g. traceId
+ *
+ * <p>
+ * {@link TomcatServletMetricsFilter} configures the sources and makes the request available to other instrumentation
+ * running on the request thread, such as {@link TomcatJdbcInterceptor}. Histograms keep the latest exemplar of each
+ * bucket in a lock free slot, and exemplars are only exposed in the OpenMetrics and protobuf formats. When no id is
+ * found the observation is recorded without an exemplar, so the cost for requests without an id is a header or
+ * attribute lookup. As OpenMetrics limits the exemplar label set to 128 characters, ids that are longer than 128 minus
+ * the length of the label name are not recorded, as a truncated id would not identify the trace.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   // without exemplar labels this is a regular observation
+ *   histogram.labels("success").observeWithExemplar(seconds, RequestExemplars.currentLabels());
+ * }
+ * </pre>
+ */
+public class RequestExemplars {
+
+    // the exemplar label set is limited to 128 characters by OpenMetrics
+    private static final int MAX_LABELS_LENGTH = 128;
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+    private static final ThreadLocal<HttpServletRequest> currentRequest = new ThreadLocal<HttpServletRequest>();
+    private static volatile RequestExemplars active;
+    private final String labelName;
+    private final int maxIdLength;
+    private final String header;
+    private final String attribute;
+    private final String mdcKey;
+    // the MDC.get method of each MDC class, stored with the class so it does not keep the class loader alive
+    private static final ClassValue<Method> mdcGetMethods = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            try {
+                return type.getMethod("get", String.class);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+    // copied on write, so requests look up the MDC class of their class loader without locking
+    private volatile MdcClass[] mdcClasses = new MdcClass[0];
+
+    /**
+     * @param labelName the name of the exemplar label, e.g. trace_id
+     * @param header    the request header containing the id, or null
+     * @param attribute the request attribute containing the id, or null
+     * @param mdcKey    the SLF4J MDC key containing the id, or null
+     * @throws IllegalArgumentException if the label name is not a valid label name
+     */
+    public RequestExemplars(String labelName, String header, String attribute, String mdcKey) {
+        if (labelName == null || !LABEL_NAME.matcher(labelName).matches() || labelName.startsWith("__")
+                || labelName.length() >= MAX_LABELS_LENGTH) {
+            throw new IllegalArgumentException("Invalid exemplar label name: " + labelName);
+        }
+        this.labelName = labelName;
+        this.maxIdLength = MAX_LABELS_LENGTH - labelName.length();
+        this.header = header;
+        this.attribute = attribute;
+        this.mdcKey = mdcKey;
+    }
+
+    /**
+     * Makes the given configuration the one used by {@link #currentLabels()}.
+     */
+    public static synchronized void activate(RequestExemplars requestExemplars) {
+        active = requestExemplars;
+    }
+
+    /**
+     * Stops using the given configuration, unless another configuration was activated since, e.g. when the metrics
+     * holder of the filter that activated it is closed.
+     */
+    public static synchronized void deactivate(RequestExemplars requestExemplars) {
+        if (active == requestExemplars) {
+            active = null;
+        }
+    }
+
+    /**
+     * Returns the exemplar labels of the request processed by the current thread, or null if no id is available.
+     */
+    public static String[] currentLabels() {
+        RequestExemplars requestExemplars = active;
+        return requestExemplars != null ? requestExemplars.labels(currentRequest.get()) : null;
+    }
+
+    void begin(HttpServletRequest request) {
+        currentRequest.set(request);
+    }
+
+    void end() {
+        currentRequest.remove();
+    }
+
+    /**
+     * Returns the exemplar labels for the given request, or null if no id is available or the id is too long.
+     */
+    String[] labels(HttpServletRequest request) {
+        String id = null;
+        if (request != null) {
+            if (header != null) {
+                id = request.getHeader(header);
+            }
+            if (id == null && attribute != null) {
+                Object value = request.getAttribute(attribute);
+                id = value != null ? value.toString() : null;
+            }
+        }
+        if (id == null && mdcKey != null) {
+            id = getMdcValue();
+        }
+        if (id == null || id.isEmpty() || id.length() > maxIdLength) {
+            return null;
+        }
+        return new String[]{labelName, id};
+    }
+
+    /**
+     * Returns the MDC value of the web application of the current thread. The MDC class is looked up once per class
+     * loader, as each web application may have its own SLF4J, and is referenced weakly so web applications can be
+     * unloaded. Only the first request of a class loader takes a lock.
+     */
+    private String getMdcValue() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            return null;
+        }
+        Class<?> clazz = findMdcClass(classLoader);
+        Method get = clazz != null ? mdcGetMethods.get(clazz) : null;
+        if (get == null) {
+            return null;
+        }
+        try {
+            Object value = get.invoke(null, mdcKey);
+            return value != null ? value.toString() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Class<?> findMdcClass(ClassLoader classLoader) {
+        for (MdcClass mdcClass : mdcClasses) {
+            if (mdcClass.classLoader.get() == classLoader) {
+                return mdcClass.mdcClass.get();
+            }
+        }
+        synchronized (this) {
+            List<MdcClass> copy = new ArrayList<MdcClass>(mdcClasses.length + 1);
+            for (MdcClass mdcClass : mdcClasses) {
+                if (mdcClass.classLoader.get() == classLoader) {
+                    return mdcClass.mdcClass.get();
+                }
+                // drop the class loaders of undeployed web applications
+                if (mdcClass.classLoader.get() != null) {
+                    copy.add(mdcClass);
+                }
+            }
+            Class<?> clazz;
+            try {
+                clazz = Class.forName("org.slf4j.MDC", false, classLoader);
+            } catch (ClassNotFoundException e) {
+                clazz = null;
+            }
+            copy.add(new MdcClass(classLoader, clazz));
+            mdcClasses = copy.toArray(new MdcClass[0]);
+            return clazz;
+        }
+    }
+
+    private static class MdcClass {
+        private final WeakReference<ClassLoader> classLoader;
+        private final WeakReference<Class<?>> mdcClass;
+
+        MdcClass(ClassLoader classLoader, Class<?> mdcClass) {
+            this.classLoader = new WeakReference<ClassLoader>(classLoader);
+            this.mdcClass = new WeakReference<Class<?>>(mdcClass);
+        }
+    }
+}
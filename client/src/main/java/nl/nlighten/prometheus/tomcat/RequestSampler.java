@@ -0,0 +1,137 @@
+package nl.nlighten.prometheus.tomcat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which requests are used for measurements that are too expensive to perform on every request, and with which
+ * weight they should be recorded so totals derived from the sampled requests remain unbiased, see
+ * {@link WeightedHistogram}.
+ * <p>
+ * The following strategies are supported:
+ *
+ * - fixed rate: each request is sampled with the same probability
+ * - rate limited: each context samples approximately a maximum number of requests per second, regardless of its load
+ * - tail biased: requests that take longer than a threshold are always recorded, in addition to one of the above
+ *
+ * <p>
+ * The decision itself is a check of a thread local random number against a probability. For rate limited sampling the
+ * probability of a context is recomputed once per second from the number of requests in the previous second, which
+ * approximates a token bucket without a shared token counter on the request path. A sampled request is recorded with
+ * weight 1/probability. With tail biased sampling a request taking longer than the threshold is recorded with weight 1,
+ * whether it was sampled or not, so the measurement has to be started for every request.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   // sample at most 10 requests per second per context and all requests taking longer than 1 second
+ *   RequestSampler sampler = new RequestSampler(1.0, 10, 1000);
+ *   ...
+ *   double weight = sampler.sample(context);
+ *   long start = sampler.isTailBiased() || weight > 0 ? measure() : -1;
+ *   ...
+ *   weight = sampler.weight(weight, System.nanoTime() - startTime);
+ *   if (weight > 0) {
+ *       histogram.labels(context).observe(measure() - start, weight);
+ *   }
+ * }
+ * </pre>
+ */
+public class RequestSampler {
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final double rate;
+    private final double samplesPerSecond;
+    private final long tailThresholdNanos;
+    private final ConcurrentMap<String, ContextRate> contextRates = new ConcurrentHashMap<String, ContextRate>();
+
+    /**
+     * @param rate                the probability with which a request is sampled, between 0 and 1
+     * @param samplesPerSecond    the approximate maximum number of requests sampled per second per context, 0 or less
+     *                            for no limit
+     * @param tailThresholdMillis the duration above which requests are always recorded, 0 or less to disable
+     */
+    public RequestSampler(double rate, double samplesPerSecond, long tailThresholdMillis) {
+        this.rate = Math.max(0, Math.min(1, rate));
+        this.samplesPerSecond = samplesPerSecond;
+        this.tailThresholdNanos = tailThresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(tailThresholdMillis) : -1;
+    }
+
+    /**
+     * Decides whether a request for the given context is sampled.
+     *
+     * @return the weight with which the request should be recorded, 0 if the request is not sampled
+     */
+    public double sample(String context) {
+        double probability = rate;
+        if (samplesPerSecond > 0) {
+            probability = Math.min(probability, getContextRate(context).probability(samplesPerSecond));
+        }
+        if (probability >= 1) {
+            return 1;
+        }
+        if (probability <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextDouble() < probability ? 1 / probability : 0;
+    }
+
+    /**
+     * @return true if requests above the tail threshold are always recorded
+     */
+    public boolean isTailBiased() {
+        return tailThresholdNanos > 0;
+    }
+
+    /**
+     * Returns the weight with which a completed request should be recorded.
+     *
+     * @param weight       the weight returned by {@link #sample(String)} for the request
+     * @param elapsedNanos the duration of the request
+     * @return the weight with which the request should be recorded, 0 if it should not be recorded
+     */
+    public double weight(double weight, long elapsedNanos) {
+        // requests above the threshold are recorded with certainty, requests below it keep their sampling weight
+        if (tailThresholdNanos > 0 && elapsedNanos >= tailThresholdNanos) {
+            return 1;
+        }
+        return weight;
+    }
+
+    private ContextRate getContextRate(String context) {
+        ContextRate contextRate = contextRates.get(context);
+        if (contextRate == null) {
+            contextRates.putIfAbsent(context, new ContextRate());
+            contextRate = contextRates.get(context);
+        }
+        return contextRate;
+    }
+
+    /**
+     * Removes the sampling state of a stopped context.
+     */
+    public void removeContext(String context) {
+        contextRates.remove(context);
+    }
+
+    private static class ContextRate {
+        private final LongAdder requests = new LongAdder();
+        private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+        private volatile double probability = 1;
+
+        double probability(double samplesPerSecond) {
+            requests.increment();
+            long start = intervalStart.get();
+            long now = System.nanoTime();
+            if (now - start >= INTERVAL_NANOS && intervalStart.compareAndSet(start, now)) {
+                double requestsPerSecond = requests.sumThenReset() * (double) INTERVAL_NANOS / (now - start);
+                probability = requestsPerSecond > samplesPerSecond ? samplesPerSecond / requestsPerSecond : 1;
+            }
+            return probability;
+        }
+    }
+}
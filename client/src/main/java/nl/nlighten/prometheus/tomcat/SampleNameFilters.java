@@ -0,0 +1,101 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for collectors that evaluate the sample name filter of a scrape, e.g. the name[] parameters, before reading
+ * JMX attributes, so sections of a collector that are not requested do not cost any MBean queries or attribute reads.
+ * <p>
+ * The filter is applied to sample names, so counters must be checked with their _total suffix. A null filter requests
+ * all samples.
+ * <p>
+ * Example usage in a collector:
+ * <pre>
+ * {@code
+ *   public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+ *       if (SampleNameFilters.isRequested(sampleNameFilter, "tomcat_threads_current", "tomcat_threads_max")) {
+ *           ...
+ *       }
+ *   }
+ * }
+ * </pre>
+ */
+public class SampleNameFilters {
+
+    private SampleNameFilters() {
+    }
+
+    /**
+     * Returns true if any of the given sample names is requested.
+     */
+    public static boolean isRequested(Predicate<String> sampleNameFilter, String... sampleNames) {
+        if (sampleNameFilter == null) {
+            return true;
+        }
+        for (String sampleName : sampleNames) {
+            if (sampleNameFilter.test(sampleName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the samples of any of the given, still empty, metric families are requested.
+     */
+    public static boolean isRequested(Predicate<String> sampleNameFilter, MetricFamilySamples... families) {
+        if (sampleNameFilter == null) {
+            return true;
+        }
+        for (MetricFamilySamples family : families) {
+            if (sampleNameFilter.test(sampleName(family))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the attributes of which the samples of the corresponding metric family are requested.
+     *
+     * @param attributes the attribute names
+     * @param families   the metric family exported for the attribute at the same index
+     */
+    public static String[] requestedAttributes(Predicate<String> sampleNameFilter, String[] attributes, MetricFamilySamples... families) {
+        if (sampleNameFilter == null) {
+            return attributes;
+        }
+        List<String> requested = new ArrayList<String>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            if (sampleNameFilter.test(sampleName(families[i]))) {
+                requested.add(attributes[i]);
+            }
+        }
+        return requested.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the name of the samples of a metric family without buckets or quantiles, i.e. with the _total suffix for
+     * counters.
+     */
+    static String sampleName(MetricFamilySamples family) {
+        return family.type == Collector.Type.COUNTER ? family.name + "_total" : family.name;
+    }
+
+    /**
+     * Adds the metric families that have samples, so families of which no attributes were read, or no MBeans were
+     * found, are left out.
+     */
+    public static void addNonEmpty(List<MetricFamilySamples> mfs, MetricFamilySamples... families) {
+        for (MetricFamilySamples family : families) {
+            if (!family.samples.isEmpty()) {
+                mfs.add(family);
+            }
+        }
+    }
+}
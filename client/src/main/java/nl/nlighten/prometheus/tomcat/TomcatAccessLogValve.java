@@ -0,0 +1,150 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An access log that aggregates response times and status codes into metrics instead of writing a log file. It
+ * requires neither a filter in the web application nor disk access, so it can be used for applications that cannot be
+ * modified and in place of, or next to, the file writing AccessLogValve.
+ * <p>
+ * Tomcat calls the access log once for every request after the response has been completed, including requests that
+ * were rejected before reaching a web application.
+ *
+ * <p>
+ * The valve can be added to the Engine, a Host or a Context in Tomcat's server.xml, e.g.:
+ * <pre>
+ * {@code
+ * <Host name="localhost" appBase="webapps">
+ *   <Valve className="nl.nlighten.prometheus.tomcat.TomcatAccessLogValve"
+ *          buckets=".01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30"/>
+ *   ...
+ * </Host>
+ * }
+ * </pre>
+ *
+ * The buckets attribute is optional and defaults to the buckets shown above. Note that Tomcat passes the response
+ * time to the access log with millisecond precision.
+ *
+ * Example metrics being exported:
+ * <pre>
+ *    tomcat_access_request_seconds_bucket{host="localhost",context="/foo",method="GET",status="200",le="0.01",} 33102.0
+ *    .....
+ *    tomcat_access_request_seconds_bucket{host="localhost",context="/foo",method="GET",status="200",le="+Inf",} 33709.0
+ *    tomcat_access_request_seconds_count{host="localhost",context="/foo",method="GET",status="200",} 33709.0
+ *    tomcat_access_request_seconds_sum{host="localhost",context="/foo",method="GET",status="200",} 1273.86
+ *    tomcat_access_response_bytes_total{host="localhost",context="/foo",method="GET",status="200",} 1.73015E8
+ * </pre>
+ * To keep the number of time series bounded, non standard request methods are reported as OTHER and requests that
+ * were not mapped to a host or context get an empty host or context label.
+ */
+public class TomcatAccessLogValve extends ValveBase implements AccessLog {
+
+    private static final Set<String> METHODS = new HashSet<String>(Arrays.asList("GET", "HEAD", "POST", "PUT", "DELETE",
+            "CONNECT", "OPTIONS", "TRACE", "PATCH"));
+    private static final String[] STATUS_CODES = new String[600];
+    private static Histogram requestStats;
+    private static Counter responseBytesStats;
+    private String buckets;
+    private boolean requestAttributesEnabled;
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = Integer.toString(i);
+        }
+    }
+
+    public TomcatAccessLogValve() {
+        super(true);
+    }
+
+    public String getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(String buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+        this.requestAttributesEnabled = requestAttributesEnabled;
+    }
+
+    @Override
+    public boolean getRequestAttributesEnabled() {
+        return requestAttributesEnabled;
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        synchronized (TomcatAccessLogValve.class) {
+            if (requestStats == null) {
+                Histogram.Builder builder = Histogram.build()
+                        .name("tomcat_access_request_seconds")
+                        .help("The time taken to process a request as reported to the access log")
+                        .labelNames("host", "context", "method", "status");
+
+                if (buckets != null && !buckets.isEmpty()) {
+                    String[] bucketParams = buckets.split(",");
+                    double[] bucketValues = new double[bucketParams.length];
+                    for (int i = 0; i < bucketParams.length; i++) {
+                        bucketValues[i] = Double.parseDouble(bucketParams[i].trim());
+                    }
+                    builder.buckets(bucketValues);
+                } else {
+                    builder.buckets(.01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30);
+                }
+
+                requestStats = builder.register();
+                responseBytesStats = Counter.build()
+                        .name("tomcat_access_response_bytes_total")
+                        .help("The number of bytes sent in response bodies as reported to the access log")
+                        .labelNames("host", "context", "method", "status")
+                        .register();
+            }
+        }
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        getNext().invoke(request, response);
+    }
+
+    @Override
+    public void log(Request request, Response response, long time) {
+        if (!getState().isAvailable() || requestStats == null) {
+            return;
+        }
+        Host host = request.getHost();
+        Context context = request.getContext();
+        String hostName = host != null ? host.getName() : "";
+        String contextName = context != null ? (context.getName().isEmpty() ? "/" : context.getName()) : "";
+        String method = request.getMethod();
+        if (method == null || !METHODS.contains(method)) {
+            method = "OTHER";
+        }
+        int status = response.getStatus();
+        String statusCode = status >= 0 && status < STATUS_CODES.length ? STATUS_CODES[status] : Integer.toString(status);
+
+        requestStats.labels(hostName, contextName, method, statusCode).observe((double) Math.max(0, time) / 1000);
+        long bytes = response.getBytesWritten(false);
+        if (bytes > 0) {
+            responseBytesStats.labels(hostName, contextName, method, statusCode).inc(bytes);
+        }
+    }
+}
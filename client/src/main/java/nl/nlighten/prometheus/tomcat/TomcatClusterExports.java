@@ -0,0 +1,307 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports Tomcat <a href="https://tomcat.apache.org/tomcat-9.0-doc/cluster-howto.html">session replication</a> metrics:
+ *
+ * - session replication messages sent and received per context and event type (DeltaManager)
+ * - missing state transfers and replaced sessions per context (DeltaManager)
+ * - messages, bytes and send time per channel (requires the ThroughputInterceptor)
+ * - receiver thread pool and sender connection pool usage per channel
+ *
+ * <p>
+ * The channel metrics are only available when the channel of the cluster is registered in JMX, which is the default.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatClusterExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_cluster_session_messages_sent_total{host="localhost",context="/foo",event="session_delta",} 33709.0
+ *     tomcat_cluster_session_messages_received_total{host="localhost",context="/foo",event="session_delta",} 31877.0
+ *     tomcat_cluster_session_state_transfer_missing_total{host="localhost",context="/foo",} 0.0
+ *     tomcat_cluster_session_replaced_total{host="localhost",context="/foo",} 4.0
+ *     tomcat_cluster_messages_sent_total{channel="Catalina-Channel",} 65544.0
+ *     tomcat_cluster_messages_received_total{channel="Catalina-Channel",} 63111.0
+ *     tomcat_cluster_messages_failed_total{channel="Catalina-Channel",} 0.0
+ *     tomcat_cluster_sent_bytes_total{channel="Catalina-Channel",} 1.2E8
+ *     tomcat_cluster_received_bytes_total{channel="Catalina-Channel",} 1.1E8
+ *     tomcat_cluster_send_seconds_total{channel="Catalina-Channel",} 83.4
+ *     tomcat_cluster_receiver_threads_active{channel="Catalina-Channel",} 1.0
+ *     tomcat_cluster_sender_connections_active{channel="Catalina-Channel",} 2.0
+ * </pre>
+ * Session persistence metrics for the PersistentManager are available through {@link TomcatPersistentManager}.
+ */
+
+public class TomcatClusterExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatClusterExports.class);
+    private static final String[] SESSION_EVENTS = new String[]{"GET_ALL_SESSIONS", "ALL_SESSION_DATA", "SESSION_CREATED",
+            "SESSION_DELTA", "SESSION_ACCESSED", "SESSION_EXPIRED", "ALL_SESSION_TRANSFERCOMPLETE", "CHANGE_SESSION_ID",
+            "ALL_SESSION_NOCONTEXTMANAGER"};
+    private static final String SEND_PREFIX = "counterSend_EVT_";
+    private static final String RECEIVE_PREFIX = "counterReceive_EVT_";
+    private static final String[] THROUGHPUT_ATTRIBUTES = new String[]{"MsgTxCnt", "MsgRxCnt", "MsgTxErr", "MbTx", "MbRx", "TimeTx"};
+    private static final String[] RECEIVER_ATTRIBUTES = new String[]{"ActiveCount", "PoolSize", "MaxThreads", "CompletedTaskCount"};
+    private static final String[] SENDER_ATTRIBUTES = new String[]{"InUsePoolSize", "PoolSize"};
+    private static final double BYTES_PER_MB = 1024 * 1024;
+    private final ObjectName managerFilterName;
+    private final ObjectName channelFilterName;
+    private final String[] managerAttributes;
+    private final CounterTracker tracker = new CounterTracker();
+
+    public TomcatClusterExports(boolean embedded) {
+        String jmxDomain = embedded ? "Tomcat" : "Catalina";
+        try {
+            managerFilterName = new ObjectName(jmxDomain + ":type=Manager,context=*,host=*");
+            channelFilterName = new ObjectName(jmxDomain + ":type=Channel,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        List<String> attributes = new ArrayList<String>();
+        for (String event : SESSION_EVENTS) {
+            attributes.add(SEND_PREFIX + event);
+            attributes.add(RECEIVE_PREFIX + event);
+        }
+        attributes.add("counterNoStateTransfered");
+        attributes.add("sessionReplaceCounter");
+        managerAttributes = attributes.toArray(new String[0]);
+    }
+
+    private void addReplicationMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(managerFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("host", "context");
+                List<String> eventLabelNameList = Arrays.asList("host", "context", "event");
+
+                CounterMetricFamily messagesSentCounter = new CounterMetricFamily(
+                        "tomcat_cluster_session_messages_sent",
+                        "Number of session replication messages sent by this manager",
+                        eventLabelNameList);
+
+                CounterMetricFamily messagesReceivedCounter = new CounterMetricFamily(
+                        "tomcat_cluster_session_messages_received",
+                        "Number of session replication messages received by this manager",
+                        eventLabelNameList);
+
+                CounterMetricFamily noStateTransferCounter = new CounterMetricFamily(
+                        "tomcat_cluster_session_state_transfer_missing",
+                        "Number of times the initial session state transfer of this manager did not complete",
+                        labelNameList);
+
+                CounterMetricFamily sessionReplaceCounter = new CounterMetricFamily(
+                        "tomcat_cluster_session_replaced",
+                        "Number of sessions replaced by a replicated version",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    String host = mBeanName.getKeyProperty("host");
+                    String context = mBeanName.getKeyProperty("context");
+                    List<String> labelValueList = Arrays.asList(host, context);
+                    // attributes only exist for replicating managers, other managers return an empty list
+                    AttributeList attributeList = server.getAttributes(mBeanName, managerAttributes);
+                    for (Attribute attribute : attributeList.asList()) {
+                        String name = attribute.getName();
+                        // replication counters start from zero again when a context is reloaded
+                        double value = tracker.counter(name, labelValueList, ((Number) attribute.getValue()).doubleValue());
+                        if (name.startsWith(SEND_PREFIX)) {
+                            messagesSentCounter.addMetric(Arrays.asList(host, context, name.substring(SEND_PREFIX.length()).toLowerCase()), value);
+                        } else if (name.startsWith(RECEIVE_PREFIX)) {
+                            messagesReceivedCounter.addMetric(Arrays.asList(host, context, name.substring(RECEIVE_PREFIX.length()).toLowerCase()), value);
+                        } else if (name.equals("counterNoStateTransfered")) {
+                            noStateTransferCounter.addMetric(labelValueList, value);
+                        } else if (name.equals("sessionReplaceCounter")) {
+                            sessionReplaceCounter.addMetric(labelValueList, value);
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        messagesSentCounter,
+                        messagesReceivedCounter,
+                        noStateTransferCounter,
+                        sessionReplaceCounter);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    private void addChannelMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(channelFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Collections.singletonList("channel");
+
+                CounterMetricFamily messagesSentCounter = new CounterMetricFamily(
+                        "tomcat_cluster_messages_sent",
+                        "Number of messages sent by this channel",
+                        labelNameList);
+
+                CounterMetricFamily messagesReceivedCounter = new CounterMetricFamily(
+                        "tomcat_cluster_messages_received",
+                        "Number of messages received by this channel",
+                        labelNameList);
+
+                CounterMetricFamily messagesFailedCounter = new CounterMetricFamily(
+                        "tomcat_cluster_messages_failed",
+                        "Number of messages this channel failed to send",
+                        labelNameList);
+
+                CounterMetricFamily bytesSentCounter = new CounterMetricFamily(
+                        "tomcat_cluster_sent_bytes",
+                        "Number of bytes sent by this channel",
+                        labelNameList);
+
+                CounterMetricFamily bytesReceivedCounter = new CounterMetricFamily(
+                        "tomcat_cluster_received_bytes",
+                        "Number of bytes received by this channel",
+                        labelNameList);
+
+                CounterMetricFamily sendTimeCounter = new CounterMetricFamily(
+                        "tomcat_cluster_send_seconds",
+                        "Total time spent sending messages by this channel",
+                        labelNameList);
+
+                GaugeMetricFamily receiverActiveThreadsGauge = new GaugeMetricFamily(
+                        "tomcat_cluster_receiver_threads_active",
+                        "Number of receiver threads processing messages",
+                        labelNameList);
+
+                GaugeMetricFamily receiverThreadsGauge = new GaugeMetricFamily(
+                        "tomcat_cluster_receiver_threads_current",
+                        "Number of threads in the receiver thread pool",
+                        labelNameList);
+
+                GaugeMetricFamily receiverMaxThreadsGauge = new GaugeMetricFamily(
+                        "tomcat_cluster_receiver_threads_max",
+                        "Maximum number of threads in the receiver thread pool",
+                        labelNameList);
+
+                CounterMetricFamily receiverCompletedCounter = new CounterMetricFamily(
+                        "tomcat_cluster_receiver_tasks_completed",
+                        "Number of messages processed by the receiver thread pool",
+                        labelNameList);
+
+                GaugeMetricFamily senderActiveGauge = new GaugeMetricFamily(
+                        "tomcat_cluster_sender_connections_active",
+                        "Number of sender connections in use",
+                        labelNameList);
+
+                GaugeMetricFamily senderPoolGauge = new GaugeMetricFamily(
+                        "tomcat_cluster_sender_connections_max",
+                        "Maximum number of sender connections",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    String channel = mBeanName.getKeyProperty("channel");
+                    String component = mBeanName.getKeyProperty("component");
+                    if (channel == null || component == null) {
+                        continue;
+                    }
+                    List<String> labelValueList = Collections.singletonList(channel.replaceAll("[\"\\\\]", ""));
+                    String interceptorName = mBeanName.getKeyProperty("interceptorName");
+                    if (component.equals("Interceptor") && interceptorName != null && interceptorName.contains("Throughput")) {
+                        AttributeList attributeList = server.getAttributes(mBeanName, THROUGHPUT_ATTRIBUTES);
+                        for (Attribute attribute : attributeList.asList()) {
+                            // message counters are AtomicLongs, volumes are doubles in MB
+                            double value = ((Number) attribute.getValue()).doubleValue();
+                            switch (attribute.getName()) {
+                                case "MsgTxCnt":
+                                    messagesSentCounter.addMetric(labelValueList, value);
+                                    break;
+                                case "MsgRxCnt":
+                                    messagesReceivedCounter.addMetric(labelValueList, value);
+                                    break;
+                                case "MsgTxErr":
+                                    messagesFailedCounter.addMetric(labelValueList, value);
+                                    break;
+                                case "MbTx":
+                                    bytesSentCounter.addMetric(labelValueList, value * BYTES_PER_MB);
+                                    break;
+                                case "MbRx":
+                                    bytesReceivedCounter.addMetric(labelValueList, value * BYTES_PER_MB);
+                                    break;
+                                case "TimeTx":
+                                    sendTimeCounter.addMetric(labelValueList, value);
+                            }
+                        }
+                    } else if (component.equals("Receiver")) {
+                        AttributeList attributeList = server.getAttributes(mBeanName, RECEIVER_ATTRIBUTES);
+                        for (Attribute attribute : attributeList.asList()) {
+                            double value = ((Number) attribute.getValue()).doubleValue();
+                            switch (attribute.getName()) {
+                                case "ActiveCount":
+                                    receiverActiveThreadsGauge.addMetric(labelValueList, value);
+                                    break;
+                                case "PoolSize":
+                                    receiverThreadsGauge.addMetric(labelValueList, value);
+                                    break;
+                                case "MaxThreads":
+                                    receiverMaxThreadsGauge.addMetric(labelValueList, value);
+                                    break;
+                                case "CompletedTaskCount":
+                                    receiverCompletedCounter.addMetric(labelValueList, value);
+                            }
+                        }
+                    } else if (component.equals("Sender")) {
+                        AttributeList attributeList = server.getAttributes(mBeanName, SENDER_ATTRIBUTES);
+                        for (Attribute attribute : attributeList.asList()) {
+                            double value = ((Number) attribute.getValue()).doubleValue();
+                            switch (attribute.getName()) {
+                                case "InUsePoolSize":
+                                    senderActiveGauge.addMetric(labelValueList, value);
+                                    break;
+                                case "PoolSize":
+                                    senderPoolGauge.addMetric(labelValueList, value);
+                            }
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        messagesSentCounter,
+                        messagesReceivedCounter,
+                        messagesFailedCounter,
+                        bytesSentCounter,
+                        bytesReceivedCounter,
+                        sendTimeCounter,
+                        receiverActiveThreadsGauge,
+                        receiverThreadsGauge,
+                        receiverMaxThreadsGauge,
+                        receiverCompletedCounter,
+                        senderActiveGauge,
+                        senderPoolGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addReplicationMetrics(mfs);
+        addChannelMetrics(mfs);
+        tracker.removeStale();
+        return mfs;
+    }
+}
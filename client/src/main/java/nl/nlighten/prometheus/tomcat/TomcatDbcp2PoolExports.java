@@ -2,6 +2,7 @@ package nl.nlighten.prometheus.tomcat;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Predicate;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
@@ -21,43 +22,66 @@ import java.util.*;
  * Example metrics being exported:
  * <pre>
  *    tomcat_dpcp2_connections_max{pool="jdbc/mypool"} 20.0
- *    tomcat_dbcp2_connections_active_total{pool="jdbc/mypool"} 2.0
- *    tomcat_dbcp2_connections_idle_total{pool="jdbc/mypool"} 6.0
+ *    tomcat_dbcp2_connections_active{pool="jdbc/mypool"} 2.0
+ *    tomcat_dbcp2_connections_idle{pool="jdbc/mypool"} 6.0
  * </pre>
+ * When only some metrics are requested, e.g. with the name[] parameter, only the attributes of the requested metrics
+ * are read, see {@link SampleNameFilters}.
  */
 
 public class TomcatDbcp2PoolExports extends Collector {
 
     private static final Log log = LogFactory.getLog(TomcatDbcp2PoolExports.class);
+    private static final String[] POOL_ATTRIBUTES = new String[]{"maxTotal", "numActive", "numIdle"};
+    private final MBeanServerConnection server;
+
+    public TomcatDbcp2PoolExports() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param server the connection to the MBean server of Tomcat, e.g. a remote JMX connection
+     */
+    public TomcatDbcp2PoolExports(MBeanServerConnection server) {
+        this.server = server;
+    }
 
     public List<MetricFamilySamples> collect() {
+        return collect(null);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
         List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        List<String> labelList = Arrays.asList("pool", "context");
+
+        GaugeMetricFamily maxActiveConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_dbcp2_connections_max",
+                "Maximum number of active connections that can be allocated from this pool at the same time",
+                labelList);
+
+        GaugeMetricFamily activeConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_dbcp2_connections_active",
+                "Number of active connections allocated from this pool",
+                labelList);
+
+        GaugeMetricFamily idleConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_dbcp2_connections_idle",
+                "Number of idle connections in this pool",
+                labelList);
+
+        String[] poolAttributes = SampleNameFilters.requestedAttributes(sampleNameFilter, POOL_ATTRIBUTES,
+                maxActiveConnectionsGauge,
+                activeConnectionsGauge,
+                idleConnectionsGauge);
+        if (poolAttributes.length == 0) {
+            return mfs;
+        }
         try {
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             ObjectName filterName = new ObjectName("Tomcat:class=javax.sql.DataSource,type=DataSource,*");
             Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
 
             if (mBeans.size() > 0) {
-                List<String> labelList = Arrays.asList("pool", "context");
-
-                GaugeMetricFamily maxActiveConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_dbcp2_connections_max",
-                        "Maximum number of active connections that can be allocated from this pool at the same time",
-                        labelList);
-
-                GaugeMetricFamily activeConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_dbcp2_connections_active_total",
-                        "Number of active connections allocated from this pool",
-                        labelList);
-
-                GaugeMetricFamily idleConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_dbcp2_connections_idle_total",
-                        "Number of idle connections in this pool",
-                        labelList);
-
-                String[] poolAttributes = new String[]{"maxTotal", "numActive", "numIdle"};
-
-
                 for (final ObjectInstance mBean : mBeans) {
                     if (mBean.getObjectName().getKeyProperty("connectionpool") == null) {
                         List<String> labelValueList = Arrays.asList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""), Optional.ofNullable(mBean.getObjectName().getKeyProperty("context")).orElse("global"));
@@ -79,9 +103,7 @@ public class TomcatDbcp2PoolExports extends Collector {
                         }
                     }
                 }
-                mfs.add(maxActiveConnectionsGauge);
-                mfs.add(activeConnectionsGauge);
-                mfs.add(idleConnectionsGauge);
+                SampleNameFilters.addNonEmpty(mfs, maxActiveConnectionsGauge, activeConnectionsGauge, idleConnectionsGauge);
             }
         }
         catch (Exception e) {
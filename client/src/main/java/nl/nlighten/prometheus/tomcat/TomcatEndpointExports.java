@@ -0,0 +1,201 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports connector endpoint internals that are not covered by the thread pool metrics of {@link TomcatGenericExports}:
+ *
+ * - keep-alive connections and accept backlog per connector
+ * - acceptor / poller thread counts and acceptor pause state
+ * - socket processor, event and buffer cache sizes
+ *
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatEndpointExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_connections_keepalive{name="http-nio-8080",} 12.0
+ *     tomcat_connections_backlog_max{name="http-nio-8080",} 100.0
+ *     tomcat_connector_paused{name="http-nio-8080",} 0.0
+ *     tomcat_connector_acceptor_threads{name="http-nio-8080",} 1.0
+ *     tomcat_connector_poller_threads{name="http-nio-8080",} 1.0
+ *     tomcat_socket_processorcache_max{name="http-nio-8080",} 500.0
+ *     tomcat_socket_eventcache_max{name="http-nio-8080",} 500.0
+ *     tomcat_socket_bufferpool_max{name="http-nio-8080",} 500.0
+ *     tomcat_socket_bufferpool_bytes_max{name="http-nio-8080",} 1.048576E8
+ * </pre>
+ * Note that Tomcat does not expose the current fill level or hit rate of the socket caches nor the size of the poller
+ * event queue through JMX, so only the configured limits are exported for these.
+ */
+
+public class TomcatEndpointExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatEndpointExports.class);
+    private final String jmxDomain;
+
+    public TomcatEndpointExports(boolean embedded) {
+        jmxDomain = embedded ? "Tomcat" : "Catalina";
+    }
+
+    private void addEndpointMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName filterName = new ObjectName(jmxDomain + ":type=ThreadPool,name=*");
+            Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
+
+            if (mBeans.size() > 0) {
+                List<String> labelList = Collections.singletonList("name");
+
+                GaugeMetricFamily keepAliveCountGauge = new GaugeMetricFamily(
+                        "tomcat_connections_keepalive",
+                        "Number of connections in keep-alive state waiting for a next request.",
+                        labelList);
+
+                GaugeMetricFamily acceptCountGauge = new GaugeMetricFamily(
+                        "tomcat_connections_backlog_max",
+                        "Maximum length of the accept queue when all connections are in use.",
+                        labelList);
+
+                GaugeMetricFamily pausedGauge = new GaugeMetricFamily(
+                        "tomcat_connector_paused",
+                        "Indication if the acceptor of this connector is paused.",
+                        labelList);
+
+                GaugeMetricFamily acceptorThreadCountGauge = new GaugeMetricFamily(
+                        "tomcat_connector_acceptor_threads",
+                        "Number of acceptor threads of this connector.",
+                        labelList);
+
+                GaugeMetricFamily pollerThreadCountGauge = new GaugeMetricFamily(
+                        "tomcat_connector_poller_threads",
+                        "Number of poller threads of this connector.",
+                        labelList);
+
+                String[] endpointAttributes = new String[]{"keepAliveCount", "acceptCount", "paused", "acceptorThreadCount", "pollerThreadCount"};
+
+                for (final ObjectInstance mBean : mBeans) {
+                    List<String> labelValueList = Collections.singletonList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""));
+                    AttributeList attributeList = server.getAttributes(mBean.getObjectName(), endpointAttributes);
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "keepAliveCount":
+                                keepAliveCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "acceptCount":
+                                acceptCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "paused":
+                                pausedGauge.addMetric(labelValueList, ((Boolean) attribute.getValue()) ? 1.0 : 0.0);
+                                break;
+                            case "acceptorThreadCount":
+                                acceptorThreadCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "pollerThreadCount":
+                                pollerThreadCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        keepAliveCountGauge,
+                        acceptCountGauge,
+                        pausedGauge,
+                        acceptorThreadCountGauge,
+                        pollerThreadCountGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    private void addSocketPropertiesMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName filterName = new ObjectName(jmxDomain + ":type=SocketProperties,name=*");
+            Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
+
+            if (mBeans.size() > 0) {
+                List<String> labelList = Collections.singletonList("name");
+
+                GaugeMetricFamily processorCacheGauge = new GaugeMetricFamily(
+                        "tomcat_socket_processorcache_max",
+                        "Maximum number of idle processors retained in the processor cache.",
+                        labelList);
+
+                GaugeMetricFamily eventCacheGauge = new GaugeMetricFamily(
+                        "tomcat_socket_eventcache_max",
+                        "Maximum number of poller events retained in the event cache.",
+                        labelList);
+
+                GaugeMetricFamily bufferPoolGauge = new GaugeMetricFamily(
+                        "tomcat_socket_bufferpool_max",
+                        "Maximum number of socket buffers retained in the buffer pool.",
+                        labelList);
+
+                GaugeMetricFamily directBufferPoolGauge = new GaugeMetricFamily(
+                        "tomcat_socket_directbufferpool_max",
+                        "Maximum number of direct socket buffers retained in the buffer pool.",
+                        labelList);
+
+                GaugeMetricFamily bufferPoolSizeGauge = new GaugeMetricFamily(
+                        "tomcat_socket_bufferpool_bytes_max",
+                        "Maximum number of bytes retained in the buffer pool.",
+                        labelList);
+
+                String[] socketAttributes = new String[]{"processorCache", "eventCache", "bufferPool", "directBufferPool", "bufferPoolSize"};
+
+                for (final ObjectInstance mBean : mBeans) {
+                    List<String> labelValueList = Collections.singletonList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""));
+                    AttributeList attributeList = server.getAttributes(mBean.getObjectName(), socketAttributes);
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "processorCache":
+                                processorCacheGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "eventCache":
+                                eventCacheGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "bufferPool":
+                                bufferPoolGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "directBufferPool":
+                                directBufferPoolGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "bufferPoolSize":
+                                bufferPoolSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        processorCacheGauge,
+                        eventCacheGauge,
+                        bufferPoolGauge,
+                        directBufferPoolGauge,
+                        bufferPoolSizeGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addEndpointMetrics(mfs);
+        addSocketPropertiesMetrics(mfs);
+        return mfs;
+    }
+}
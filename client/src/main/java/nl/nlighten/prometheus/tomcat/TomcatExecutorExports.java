@@ -0,0 +1,144 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports metrics of shared Tomcat <a href="https://tomcat.apache.org/tomcat-9.0-doc/config/executor.html">executors</a>
+ * (the {@code <Executor>} element in server.xml). When connectors use a shared executor, the thread pool metrics of
+ * {@link TomcatGenericExports} only partly reflect its state, most notably the task queue is not visible there.
+ *
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatExecutorExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_executor_threads_current{name="tomcatThreadPool",} 25.0
+ *     tomcat_executor_threads_active{name="tomcatThreadPool",} 3.0
+ *     tomcat_executor_threads_max{name="tomcatThreadPool",} 200.0
+ *     tomcat_executor_threads_largest{name="tomcatThreadPool",} 42.0
+ *     tomcat_executor_queue_size{name="tomcatThreadPool",} 0.0
+ *     tomcat_executor_queue_max{name="tomcatThreadPool",} 2.147483647E9
+ *     tomcat_executor_tasks_completed_total{name="tomcatThreadPool",} 33709.0
+ * </pre>
+ * The time tasks spend in the queue of an executor is available when the executor is replaced by
+ * {@link TomcatThreadExecutor}.
+ */
+
+public class TomcatExecutorExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatExecutorExports.class);
+    private final String jmxDomain;
+
+    public TomcatExecutorExports(boolean embedded) {
+        jmxDomain = embedded ? "Tomcat" : "Catalina";
+    }
+
+    private void addExecutorMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName filterName = new ObjectName(jmxDomain + ":type=Executor,name=*");
+            Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
+
+            if (mBeans.size() > 0) {
+                List<String> labelList = Collections.singletonList("name");
+
+                GaugeMetricFamily poolSizeGauge = new GaugeMetricFamily(
+                        "tomcat_executor_threads_current",
+                        "Number of threads in this executor.",
+                        labelList);
+
+                GaugeMetricFamily activeCountGauge = new GaugeMetricFamily(
+                        "tomcat_executor_threads_active",
+                        "Number of threads of this executor that are executing a task.",
+                        labelList);
+
+                GaugeMetricFamily maxThreadsGauge = new GaugeMetricFamily(
+                        "tomcat_executor_threads_max",
+                        "Maximum number of threads allowed in this executor.",
+                        labelList);
+
+                GaugeMetricFamily largestPoolSizeGauge = new GaugeMetricFamily(
+                        "tomcat_executor_threads_largest",
+                        "Largest number of threads that have ever been in this executor.",
+                        labelList);
+
+                GaugeMetricFamily queueSizeGauge = new GaugeMetricFamily(
+                        "tomcat_executor_queue_size",
+                        "Number of tasks waiting in the queue of this executor.",
+                        labelList);
+
+                GaugeMetricFamily maxQueueSizeGauge = new GaugeMetricFamily(
+                        "tomcat_executor_queue_max",
+                        "Maximum number of tasks that can wait in the queue of this executor.",
+                        labelList);
+
+                CounterMetricFamily completedTaskCounter = new CounterMetricFamily(
+                        "tomcat_executor_tasks_completed",
+                        "Number of tasks completed by this executor.",
+                        labelList);
+
+                String[] executorAttributes = new String[]{"poolSize", "activeCount", "maxThreads", "largestPoolSize", "queueSize", "maxQueueSize", "completedTaskCount"};
+
+                for (final ObjectInstance mBean : mBeans) {
+                    List<String> labelValueList = Collections.singletonList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""));
+                    AttributeList attributeList = server.getAttributes(mBean.getObjectName(), executorAttributes);
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "poolSize":
+                                poolSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "activeCount":
+                                activeCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "maxThreads":
+                                maxThreadsGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "largestPoolSize":
+                                largestPoolSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "queueSize":
+                                queueSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "maxQueueSize":
+                                maxQueueSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "completedTaskCount":
+                                // declared as int in the MBean descriptor, but implemented as long
+                                completedTaskCounter.addMetric(labelValueList, ((Number) attribute.getValue()).doubleValue());
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        poolSizeGauge,
+                        activeCountGauge,
+                        maxThreadsGauge,
+                        largestPoolSizeGauge,
+                        queueSizeGauge,
+                        maxQueueSizeGauge,
+                        completedTaskCounter);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addExecutorMetrics(mfs);
+        return mfs;
+    }
+}
@@ -0,0 +1,56 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.hotspot.DefaultExports;
+
+/**
+ * The collectors registered by default by the metrics servlet and {@link TomcatMetricsListener}, so both export the
+ * same metrics.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   TomcatExports.registerDefaults(false, false, new TomcatExports.Registrar() {
+ *       public void register(Collector collector) {
+ *           collector.register();
+ *       }
+ *   });
+ * }
+ * </pre>
+ */
+public final class TomcatExports {
+
+    /**
+     * Registers a collector, e.g. in a registry or a {@link MetricsHolder}, optionally wrapped by {@link MetricRules}.
+     */
+    public interface Registrar {
+        void register(Collector collector);
+    }
+
+    private TomcatExports() {
+    }
+
+    /**
+     * Registers the JVM collectors with the default registry and passes the default Tomcat collectors to the registrar.
+     *
+     * @param embedded                        true if Tomcat runs embedded
+     * @param requestProcessorIntervalAverage true to export the average request processing time over the previous minute
+     * @param registrar                       registers the Tomcat collectors
+     */
+    public static void registerDefaults(boolean embedded, boolean requestProcessorIntervalAverage, Registrar registrar) {
+        DefaultExports.initialize();
+        registrar.register(new TomcatGenericExports(embedded, requestProcessorIntervalAverage));
+        registrar.register(new TomcatEndpointExports(embedded));
+        registrar.register(new TomcatExecutorExports(embedded));
+        registrar.register(new TomcatWebResourceCacheExports(embedded));
+        registrar.register(new TomcatClusterExports(embedded));
+        registrar.register(new TomcatUpgradeExports(embedded));
+        registrar.register(new TomcatStuckThreadExports(embedded));
+        registrar.register(new TomcatSslExports(embedded));
+        if (TomcatJdbcPoolExports.isTomcatJdbcUsed()) {
+            registrar.register(new TomcatJdbcPoolExports());
+        } else {
+            registrar.register(new TomcatDbcp2PoolExports());
+        }
+    }
+}
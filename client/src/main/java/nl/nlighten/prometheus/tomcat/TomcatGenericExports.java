@@ -3,6 +3,7 @@ package nl.nlighten.prometheus.tomcat;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CounterMetricFamily;
 import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Predicate;
 import org.apache.catalina.util.ServerInfo;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -28,94 +29,151 @@ import java.util.*;
  * Example metrics being exported:
  * <pre>
  *     tomcat_info{version="7.0.61.0",build="Apr 29 2015 14:58:03 UTC",} 1.0
- *     tomcat_session_active_total{context="/foo",host="default",} 877.0
+ *     tomcat_session_active{context="/foo",host="default",} 877.0
  *     tomcat_session_rejected_total{context="/foo",host="default",} 0.0
  *     tomcat_session_created_total{context="/foo",host="default",} 24428.0
  *     tomcat_session_expired_total{context="/foo",host="default",} 23832.0
  *     tomcat_session_alivetime_seconds_avg{context="/foo",host="default",} 633.0
  *     tomcat_session_alivetime_seconds_max{context="/foo",host="default",} 9883.0
- *     tomcat_requestprocessor_received_bytes{name="http-bio-0.0.0.0-8080",} 0.0
- *     tomcat_requestprocessor_sent_bytes{name="http-bio-0.0.0.0-8080",} 5056098.0
- *     tomcat_requestprocessor_time_seconds{name="http-bio-0.0.0.0-8080",} 127386.0
- *     tomcat_requestprocessor_error_count{name="http-bio-0.0.0.0-8080",} 0.0
- *     tomcat_requestprocessor_request_count{name="http-bio-0.0.0.0-8080",} 33709.0
- *     tomcat_threads_total{pool="http-bio-0.0.0.0-8080",} 10.0
- *     tomcat_threads_active_total{pool="http-bio-0.0.0.0-8080",} 2.0
+ *     tomcat_requestprocessor_received_bytes_total{name="http-bio-0.0.0.0-8080",} 0.0
+ *     tomcat_requestprocessor_sent_bytes_total{name="http-bio-0.0.0.0-8080",} 5056098.0
+ *     tomcat_requestprocessor_time_seconds_total{name="http-bio-0.0.0.0-8080",} 127386.0
+ *     tomcat_requestprocessor_time_seconds_avg{name="http-bio-0.0.0.0-8080",} 0.041
+ *     tomcat_requestprocessor_error_count_total{name="http-bio-0.0.0.0-8080",} 0.0
+ *     tomcat_requestprocessor_request_count_total{name="http-bio-0.0.0.0-8080",} 33709.0
+ *     tomcat_threads_current{pool="http-bio-0.0.0.0-8080",} 10.0
+ *     tomcat_threads_active{pool="http-bio-0.0.0.0-8080",} 2.0
  *     tomcat_threads_active_max{pool="http-bio-0.0.0.0-8080",} 200.0
  *  </pre>
+ * Cumulative values are exported as counters that do not decrease when a context or connector is restarted, see
+ * {@link CounterTracker}. The average request processing time over the last complete minute of the wall clock is only
+ * exported when enabled.
+ * <p>
+ * When only some metrics are requested, e.g. with the name[] parameter, the sessions, request processors and thread
+ * pools are only queried if any of their metrics is requested, see {@link SampleNameFilters}.
  */
 
 public class TomcatGenericExports extends Collector {
 
     private static final Log log = LogFactory.getLog(TomcatGenericExports.class);
+    private static final String[] THREAD_POOL_ATTRIBUTES = new String[]{"currentThreadCount", "currentThreadsBusy", "maxThreads", "connectionCount", "maxConnections"};
     private String jmxDomain = "Catalina";
+    private final boolean intervalAverage;
+    private final CounterTracker tracker = new CounterTracker();
+    private final MBeanServerConnection server;
 
     public TomcatGenericExports(boolean embedded) {
+        this(embedded, false);
+    }
+
+    /**
+     * @param embedded        true if Tomcat runs embedded
+     * @param intervalAverage true to export the average request processing time over the previous minute
+     */
+    public TomcatGenericExports(boolean embedded, boolean intervalAverage) {
+        this(embedded, intervalAverage, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param embedded        true if Tomcat runs embedded
+     * @param intervalAverage true to export the average request processing time over the previous minute
+     * @param server          the connection to the MBean server of Tomcat, e.g. a remote JMX connection
+     */
+    public TomcatGenericExports(boolean embedded, boolean intervalAverage, MBeanServerConnection server) {
         if (embedded) {
             jmxDomain = "Tomcat";
         }
+        this.intervalAverage = intervalAverage;
+        this.server = server;
     }
-    private void addRequestProcessorMetrics(List<MetricFamilySamples> mfs) {
+    private void addRequestProcessorMetrics(List<MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+        List<String> labelNameList = Collections.singletonList("name");
+
+        CounterMetricFamily requestProcessorBytesReceivedCounter = new CounterMetricFamily(
+                "tomcat_requestprocessor_received_bytes",
+                "Number of bytes received by this request processor",
+                labelNameList);
+
+        CounterMetricFamily requestProcessorBytesSentCounter = new CounterMetricFamily(
+                "tomcat_requestprocessor_sent_bytes",
+                "Number of bytes sent by this request processor",
+                labelNameList);
+
+        CounterMetricFamily requestProcessorProcessingTimeCounter = new CounterMetricFamily(
+                "tomcat_requestprocessor_time_seconds",
+                "The total time spend by this request processor",
+                labelNameList);
+
+        GaugeMetricFamily requestProcessorAverageTimeGauge = new GaugeMetricFamily(
+                "tomcat_requestprocessor_time_seconds_avg",
+                "The average time spend on a request by this request processor over the previous minute",
+                labelNameList);
+
+        CounterMetricFamily requestProcessorErrorCounter = new CounterMetricFamily(
+                "tomcat_requestprocessor_error_count",
+                "The number of error request served by this request processor",
+                labelNameList);
+
+        CounterMetricFamily requestProcessorRequestCounter = new CounterMetricFamily(
+                "tomcat_requestprocessor_request_count",
+                "The number of request served by this request processor",
+                labelNameList);
+
+        if (!SampleNameFilters.isRequested(sampleNameFilter,
+                requestProcessorBytesReceivedCounter,
+                requestProcessorBytesSentCounter,
+                requestProcessorProcessingTimeCounter,
+                requestProcessorAverageTimeGauge,
+                requestProcessorErrorCounter,
+                requestProcessorRequestCounter)) {
+            return;
+        }
         try {
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             ObjectName filterName = new ObjectName(jmxDomain + ":type=GlobalRequestProcessor,name=*");
             Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
 
             if (mBeans.size() > 0) {
-                List<String> labelNameList = Collections.singletonList("name");
-
-                GaugeMetricFamily requestProcessorBytesReceivedGauge = new GaugeMetricFamily(
-                        "tomcat_requestprocessor_received_bytes",
-                        "Number of bytes received by this request processor",
-                        labelNameList);
-
-                GaugeMetricFamily requestProcessorBytesSentGauge = new GaugeMetricFamily(
-                        "tomcat_requestprocessor_sent_bytes",
-                        "Number of bytes sent by this request processor",
-                        labelNameList);
-
-                GaugeMetricFamily requestProcessorProcessingTimeGauge = new GaugeMetricFamily(
-                        "tomcat_requestprocessor_time_seconds",
-                        "The total time spend by this request processor",
-                        labelNameList);
-
-                CounterMetricFamily requestProcessorErrorCounter = new CounterMetricFamily(
-                        "tomcat_requestprocessor_error_count",
-                        "The number of error request served by this request processor",
-                        labelNameList);
-
-                CounterMetricFamily requestProcessorRequestCounter = new CounterMetricFamily(
-                        "tomcat_requestprocessor_request_count",
-                        "The number of request served by this request processor",
-                        labelNameList);
-
                 for (final ObjectInstance mBean : mBeans) {
                     List<String> labelValueList = Collections.singletonList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""));
 
-                    requestProcessorBytesReceivedGauge.addMetric(
+                    requestProcessorBytesReceivedCounter.addMetric(
                             labelValueList,
-                            ((Long) server.getAttribute(mBean.getObjectName(), "bytesReceived")).doubleValue());
+                            tracker.counter("tomcat_requestprocessor_received_bytes", labelValueList,
+                                    ((Long) server.getAttribute(mBean.getObjectName(), "bytesReceived")).doubleValue()));
 
-                    requestProcessorBytesSentGauge.addMetric(
+                    requestProcessorBytesSentCounter.addMetric(
                             labelValueList,
-                            ((Long) server.getAttribute(mBean.getObjectName(), "bytesSent")).doubleValue());
+                            tracker.counter("tomcat_requestprocessor_sent_bytes", labelValueList,
+                                    ((Long) server.getAttribute(mBean.getObjectName(), "bytesSent")).doubleValue()));
 
-                    requestProcessorProcessingTimeGauge.addMetric(
+                    double processingTime = ((Long) server.getAttribute(mBean.getObjectName(), "processingTime")).doubleValue() / 1000.0;
+                    requestProcessorProcessingTimeCounter.addMetric(
                             labelValueList,
-                            ((Long) server.getAttribute(mBean.getObjectName(), "processingTime")).doubleValue() / 1000.0);
+                            tracker.counter("tomcat_requestprocessor_time_seconds", labelValueList, processingTime));
 
                     requestProcessorErrorCounter.addMetric(
                             labelValueList,
-                            ((Integer) server.getAttribute(mBean.getObjectName(), "errorCount")).doubleValue());
+                            tracker.counter("tomcat_requestprocessor_error_count", labelValueList,
+                                    ((Integer) server.getAttribute(mBean.getObjectName(), "errorCount")).doubleValue()));
 
+                    double requestCount = ((Integer) server.getAttribute(mBean.getObjectName(), "requestCount")).doubleValue();
                     requestProcessorRequestCounter.addMetric(
                             labelValueList,
-                            ((Integer) server.getAttribute(mBean.getObjectName(), "requestCount")).doubleValue());
+                            tracker.counter("tomcat_requestprocessor_request_count", labelValueList, requestCount));
+
+                    if (intervalAverage) {
+                        requestProcessorAverageTimeGauge.addMetric(
+                                labelValueList,
+                                tracker.intervalAverage("tomcat_requestprocessor_time_seconds_avg", labelValueList, requestCount, processingTime));
+                    }
                 }
 
-                mfs.add(requestProcessorBytesReceivedGauge);
-                mfs.add(requestProcessorBytesSentGauge);
-                mfs.add(requestProcessorProcessingTimeGauge);
+                mfs.add(requestProcessorBytesReceivedCounter);
+                mfs.add(requestProcessorBytesSentCounter);
+                mfs.add(requestProcessorProcessingTimeCounter);
+                if (intervalAverage) {
+                    mfs.add(requestProcessorAverageTimeGauge);
+                }
                 mfs.add(requestProcessorRequestCounter);
                 mfs.add(requestProcessorErrorCounter);
             }
@@ -125,50 +183,59 @@ public class TomcatGenericExports extends Collector {
     }
 
 
-    private void addSessionMetrics(List<MetricFamilySamples> mfs) {
+    private void addSessionMetrics(List<MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+        List<String> labelNameList = Arrays.asList("host", "context");
+
+        GaugeMetricFamily activeSessionCountGauge = new GaugeMetricFamily(
+                "tomcat_session_active",
+                "Number of active sessions",
+                labelNameList);
+
+        CounterMetricFamily rejectedSessionCounter = new CounterMetricFamily(
+                "tomcat_session_rejected",
+                "Number of sessions rejected due to maxActive being reached",
+                labelNameList);
+
+        CounterMetricFamily createdSessionCounter = new CounterMetricFamily(
+                "tomcat_session_created",
+                "Number of sessions created",
+                labelNameList);
+
+        CounterMetricFamily expiredSessionCounter = new CounterMetricFamily(
+                "tomcat_session_expired",
+                "Number of sessions that expired",
+                labelNameList);
+
+        GaugeMetricFamily sessionAvgAliveTimeGauge = new GaugeMetricFamily(
+                "tomcat_session_alivetime_seconds_avg",
+                "Average time an expired session had been alive",
+                labelNameList);
+
+        GaugeMetricFamily sessionMaxAliveTimeGauge = new GaugeMetricFamily(
+                "tomcat_session_alivetime_seconds_max",
+                "Maximum time an expired session had been alive",
+                labelNameList);
+
+        GaugeMetricFamily contextStateGauge = new GaugeMetricFamily(
+                "tomcat_context_state_started",
+                "Indication if the lifecycle state of this context is STARTED",
+                labelNameList);
+
+        if (!SampleNameFilters.isRequested(sampleNameFilter,
+                activeSessionCountGauge,
+                rejectedSessionCounter,
+                createdSessionCounter,
+                expiredSessionCounter,
+                sessionAvgAliveTimeGauge,
+                sessionMaxAliveTimeGauge,
+                contextStateGauge)) {
+            return;
+        }
         try {
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             ObjectName filterName = new ObjectName(jmxDomain + ":type=Manager,context=*,host=*");
             Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
 
             if (mBeans.size() > 0) {
-                List<String> labelNameList = Arrays.asList("host", "context");
-
-                GaugeMetricFamily activeSessionCountGauge = new GaugeMetricFamily(
-                        "tomcat_session_active_total",
-                        "Number of active sessions",
-                        labelNameList);
-
-                GaugeMetricFamily rejectedSessionCountGauge = new GaugeMetricFamily(
-                        "tomcat_session_rejected_total",
-                        "Number of sessions rejected due to maxActive being reached",
-                        labelNameList);
-
-                GaugeMetricFamily createdSessionCountGauge = new GaugeMetricFamily(
-                        "tomcat_session_created_total",
-                        "Number of sessions created",
-                        labelNameList);
-
-                GaugeMetricFamily expiredSessionCountGauge = new GaugeMetricFamily(
-                        "tomcat_session_expired_total",
-                        "Number of sessions that expired",
-                        labelNameList);
-
-                GaugeMetricFamily sessionAvgAliveTimeGauge = new GaugeMetricFamily(
-                        "tomcat_session_alivetime_seconds_avg",
-                        "Average time an expired session had been alive",
-                        labelNameList);
-
-                GaugeMetricFamily sessionMaxAliveTimeGauge = new GaugeMetricFamily(
-                        "tomcat_session_alivetime_seconds_max",
-                        "Maximum time an expired session had been alive",
-                        labelNameList);
-
-                GaugeMetricFamily contextStateGauge = new GaugeMetricFamily(
-                        "tomcat_context_state_started",
-                        "Indication if the lifecycle state of this context is STARTED",
-                        labelNameList);
-
                 for (final ObjectInstance mBean : mBeans) {
                     List<String> labelValueList = Arrays.asList(mBean.getObjectName().getKeyProperty("host"), mBean.getObjectName().getKeyProperty("context"));
 
@@ -176,17 +243,20 @@ public class TomcatGenericExports extends Collector {
                             labelValueList,
                             ((Integer) server.getAttribute(mBean.getObjectName(), "activeSessions")).doubleValue());
 
-                    rejectedSessionCountGauge.addMetric(
+                    rejectedSessionCounter.addMetric(
                             labelValueList,
-                            ((Integer) server.getAttribute(mBean.getObjectName(), "rejectedSessions")).doubleValue());
+                            tracker.counter("tomcat_session_rejected", labelValueList,
+                                    ((Integer) server.getAttribute(mBean.getObjectName(), "rejectedSessions")).doubleValue()));
 
-                    createdSessionCountGauge.addMetric(
+                    createdSessionCounter.addMetric(
                             labelValueList,
-                            ((Long) server.getAttribute(mBean.getObjectName(), "sessionCounter")).doubleValue());
+                            tracker.counter("tomcat_session_created", labelValueList,
+                                    ((Long) server.getAttribute(mBean.getObjectName(), "sessionCounter")).doubleValue()));
 
-                    expiredSessionCountGauge.addMetric(
+                    expiredSessionCounter.addMetric(
                             labelValueList,
-                            ((Long) server.getAttribute(mBean.getObjectName(), "expiredSessions")).doubleValue());
+                            tracker.counter("tomcat_session_expired", labelValueList,
+                                    ((Long) server.getAttribute(mBean.getObjectName(), "expiredSessions")).doubleValue()));
 
                     sessionAvgAliveTimeGauge.addMetric(
                             labelValueList,
@@ -204,9 +274,9 @@ public class TomcatGenericExports extends Collector {
                 }
 
                 mfs.add(activeSessionCountGauge);
-                mfs.add(rejectedSessionCountGauge);
-                mfs.add(createdSessionCountGauge);
-                mfs.add(expiredSessionCountGauge);
+                mfs.add(rejectedSessionCounter);
+                mfs.add(createdSessionCounter);
+                mfs.add(expiredSessionCounter);
                 mfs.add(sessionAvgAliveTimeGauge);
                 mfs.add(sessionMaxAliveTimeGauge);
                 mfs.add(contextStateGauge);
@@ -217,42 +287,48 @@ public class TomcatGenericExports extends Collector {
     }
 
 
-    private void addThreadPoolMetrics(List<MetricFamilySamples> mfs) {
+    private void addThreadPoolMetrics(List<MetricFamilySamples> mfs, Predicate<String> sampleNameFilter) {
+        List<String> labelList = Collections.singletonList("name");
+
+        GaugeMetricFamily threadPoolCurrentCountGauge = new GaugeMetricFamily(
+                "tomcat_threads_current",
+                "Number threads in this pool.",
+                labelList);
+
+        GaugeMetricFamily threadPoolActiveCountGauge = new GaugeMetricFamily(
+                "tomcat_threads_active",
+                "Number of active threads in this pool.",
+                labelList);
+
+        GaugeMetricFamily threadPoolMaxThreadsGauge = new GaugeMetricFamily(
+                "tomcat_threads_max",
+                "Maximum number of threads allowed in this pool.",
+                labelList);
+
+        GaugeMetricFamily threadPoolConnectionCountGauge = new GaugeMetricFamily(
+                "tomcat_connections_active",
+                "Number of connections served by this pool.",
+                labelList);
+
+        GaugeMetricFamily threadPoolMaxConnectionGauge = new GaugeMetricFamily(
+                "tomcat_connections_active_max",
+                "Maximum number of concurrent connections served by this pool.",
+                labelList);
+
+        String[] genericAttributes = SampleNameFilters.requestedAttributes(sampleNameFilter, THREAD_POOL_ATTRIBUTES,
+                threadPoolCurrentCountGauge,
+                threadPoolActiveCountGauge,
+                threadPoolMaxThreadsGauge,
+                threadPoolConnectionCountGauge,
+                threadPoolMaxConnectionGauge);
+        if (genericAttributes.length == 0) {
+            return;
+        }
         try {
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             ObjectName filterName = new ObjectName(jmxDomain + ":type=ThreadPool,name=*");
             Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
 
             if (mBeans.size() > 0) {
-                List<String> labelList = Collections.singletonList("name");
-
-                GaugeMetricFamily threadPoolCurrentCountGauge = new GaugeMetricFamily(
-                        "tomcat_threads_total",
-                        "Number threads in this pool.",
-                        labelList);
-
-                GaugeMetricFamily threadPoolActiveCountGauge = new GaugeMetricFamily(
-                        "tomcat_threads_active_total",
-                        "Number of active threads in this pool.",
-                        labelList);
-
-                GaugeMetricFamily threadPoolMaxThreadsGauge = new GaugeMetricFamily(
-                        "tomcat_threads_max",
-                        "Maximum number of threads allowed in this pool.",
-                        labelList);
-
-                GaugeMetricFamily threadPoolConnectionCountGauge = new GaugeMetricFamily(
-                        "tomcat_connections_active_total",
-                        "Number of connections served by this pool.",
-                        labelList);
-
-                GaugeMetricFamily threadPoolMaxConnectionGauge = new GaugeMetricFamily(
-                        "tomcat_connections_active_max",
-                        "Maximum number of concurrent connections served by this pool.",
-                        labelList);
-
-                String[] genericAttributes = new String[]{"currentThreadCount", "currentThreadsBusy", "maxThreads", "connectionCount", "maxConnections"};
-
                 for (final ObjectInstance mBean : mBeans) {
                     List<String> labelValueList = Collections.singletonList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""));
                     AttributeList attributeList = server.getAttributes(mBean.getObjectName(), genericAttributes);
@@ -277,11 +353,12 @@ public class TomcatGenericExports extends Collector {
                     }
                 }
 
-                addNonEmptyMetricFamily(mfs, threadPoolCurrentCountGauge);
-                addNonEmptyMetricFamily(mfs, threadPoolActiveCountGauge);
-                addNonEmptyMetricFamily(mfs, threadPoolMaxThreadsGauge);
-                addNonEmptyMetricFamily(mfs, threadPoolConnectionCountGauge);
-                addNonEmptyMetricFamily(mfs, threadPoolMaxConnectionGauge);
+                SampleNameFilters.addNonEmpty(mfs,
+                        threadPoolCurrentCountGauge,
+                        threadPoolActiveCountGauge,
+                        threadPoolMaxThreadsGauge,
+                        threadPoolConnectionCountGauge,
+                        threadPoolMaxConnectionGauge);
             }
         } catch (Exception e) {
             log.error("Error retrieving metric:" + e.getMessage());
@@ -294,24 +371,38 @@ public class TomcatGenericExports extends Collector {
                 "tomcat_info",
                 "tomcat version info",
                 Arrays.asList("version", "build"));
-        tomcatInfo.addMetric(Arrays.asList(ServerInfo.getServerNumber(), ServerInfo.getServerBuilt()), 1);
+        if (server == ManagementFactory.getPlatformMBeanServer()) {
+            tomcatInfo.addMetric(Arrays.asList(ServerInfo.getServerNumber(), ServerInfo.getServerBuilt()), 1);
+        } else {
+            try {
+                Map<String, Object> values = new HashMap<String, Object>();
+                for (Attribute attribute : server.getAttributes(new ObjectName(jmxDomain + ":type=Server"), new String[]{"serverNumber", "serverBuilt"}).asList()) {
+                    values.put(attribute.getName(), attribute.getValue());
+                }
+                tomcatInfo.addMetric(Arrays.asList(String.valueOf(values.get("serverNumber")), String.valueOf(values.get("serverBuilt"))), 1);
+            } catch (Exception e) {
+                log.error("Error retrieving metric:" + e.getMessage());
+            }
+        }
         mfs.add(tomcatInfo);
     }
 
 
-    private void addNonEmptyMetricFamily(List<MetricFamilySamples> mfs, GaugeMetricFamily metricFamily) {
-        if (metricFamily.samples.size() > 0) {
-            mfs.add(metricFamily);
-        }
+    public List<MetricFamilySamples> collect() {
+        return collect(null);
     }
 
 
-    public List<MetricFamilySamples> collect() {
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
         List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
-        addSessionMetrics(mfs);
-        addThreadPoolMetrics(mfs);
-        addRequestProcessorMetrics(mfs);
-        addVersionInfo(mfs);
+        addSessionMetrics(mfs, sampleNameFilter);
+        addThreadPoolMetrics(mfs, sampleNameFilter);
+        addRequestProcessorMetrics(mfs, sampleNameFilter);
+        if (SampleNameFilters.isRequested(sampleNameFilter, "tomcat_info")) {
+            addVersionInfo(mfs);
+        }
+        tracker.removeStale();
         return mfs;
 
     }
@@ -0,0 +1,222 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports a snapshot of the requests that are being processed at the moment of the scrape, based on the request
+ * processors of each connector:
+ *
+ * - number of request processors per stage (parse, prepare, service, endinput, endoutput, keepalive, ended, ...)
+ * - distribution of the age of the requests that are currently in flight
+ * - optionally the age, method and URI of the oldest requests in flight that exceed a threshold
+ *
+ * <p>
+ * Unlike the request processor metrics of {@link TomcatGenericExports}, which are totals of completed requests, this
+ * snapshot shows requests that are stuck or slow while they are still running. The cost of a scrape is proportional
+ * to the number of request processors, which is bounded by the processorCache and maxThreads of the connectors. URIs
+ * are only exported when explicitly enabled, and then only for a limited number of requests.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatInFlightRequestExports(false).register();
+ *   // also export the URI of at most 10 requests running longer than 5 seconds
+ *   new TomcatInFlightRequestExports(false, 5000, 10).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_requestprocessor_stage{name="http-nio-8080",stage="service",} 12.0
+ *     tomcat_requestprocessor_stage{name="http-nio-8080",stage="keepalive",} 31.0
+ *     tomcat_inflight_request_age_seconds_bucket{name="http-nio-8080",le="0.1",} 7.0
+ *     .....
+ *     tomcat_inflight_request_age_seconds_bucket{name="http-nio-8080",le="+Inf",} 12.0
+ *     tomcat_inflight_request_age_seconds_gcount{name="http-nio-8080",} 12.0
+ *     tomcat_inflight_request_age_seconds_gsum{name="http-nio-8080",} 41.2
+ *     tomcat_inflight_request_slow_seconds{name="http-nio-8080",method="POST",uri="/foo/report",} 31.7
+ * </pre>
+ */
+
+public class TomcatInFlightRequestExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatInFlightRequestExports.class);
+    private static final String[] STAGES = new String[]{"new", "parse", "prepare", "service", "endinput", "endoutput", "keepalive", "ended"};
+    private static final int STAGE_PARSE = 1;
+    private static final int STAGE_ENDOUTPUT = 5;
+    private static final String[] PROCESSOR_ATTRIBUTES = new String[]{"stage", "requestProcessingTime", "method", "currentUri"};
+    private static final double[] BUCKETS = new double[]{.1, .5, 1, 2.5, 5, 10, 30, 60, 300};
+    private final ObjectName processorFilterName;
+    private final long slowThresholdMillis;
+    private final int maxSlowRequests;
+
+    public TomcatInFlightRequestExports(boolean embedded) {
+        this(embedded, -1, 0);
+    }
+
+    /**
+     * @param embedded            true if Tomcat runs embedded
+     * @param slowThresholdMillis the age above which requests are exported with their method and URI, -1 to disable
+     * @param maxSlowRequests     the maximum number of requests exported with their method and URI per scrape
+     */
+    public TomcatInFlightRequestExports(boolean embedded, long slowThresholdMillis, int maxSlowRequests) {
+        try {
+            processorFilterName = new ObjectName((embedded ? "Tomcat" : "Catalina") + ":type=RequestProcessor,worker=*,name=*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.slowThresholdMillis = slowThresholdMillis;
+        this.maxSlowRequests = maxSlowRequests;
+    }
+
+    private void addInFlightMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(processorFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                // per connector: stage counts followed by the bucket counts and the sum of the ages
+                Map<String, long[]> stageCounts = new TreeMap<String, long[]>();
+                Map<String, double[]> ageBuckets = new TreeMap<String, double[]>();
+                List<SlowRequest> slowRequests = new ArrayList<SlowRequest>();
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    String worker = mBeanName.getKeyProperty("worker").replaceAll("[\"\\\\]", "");
+                    AttributeList attributeList = server.getAttributes(mBeanName, PROCESSOR_ATTRIBUTES);
+                    int stage = -1;
+                    long age = 0;
+                    String method = null;
+                    String uri = null;
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "stage":
+                                stage = (Integer) attribute.getValue();
+                                break;
+                            case "requestProcessingTime":
+                                age = (Long) attribute.getValue();
+                                break;
+                            case "method":
+                                method = (String) attribute.getValue();
+                                break;
+                            case "currentUri":
+                                uri = (String) attribute.getValue();
+                        }
+                    }
+                    if (stage < 0 || stage >= STAGES.length) {
+                        continue;
+                    }
+                    long[] counts = stageCounts.get(worker);
+                    if (counts == null) {
+                        counts = new long[STAGES.length];
+                        stageCounts.put(worker, counts);
+                    }
+                    counts[stage]++;
+
+                    double[] buckets = ageBuckets.get(worker);
+                    if (buckets == null) {
+                        buckets = new double[BUCKETS.length + 2];
+                        ageBuckets.put(worker, buckets);
+                    }
+                    if (stage >= STAGE_PARSE && stage <= STAGE_ENDOUTPUT) {
+                        double ageSeconds = Math.max(0, age) / 1000.0;
+                        for (int i = 0; i < BUCKETS.length; i++) {
+                            if (ageSeconds <= BUCKETS[i]) {
+                                buckets[i]++;
+                            }
+                        }
+                        buckets[BUCKETS.length]++;
+                        buckets[BUCKETS.length + 1] += ageSeconds;
+                        if (slowThresholdMillis >= 0 && age > slowThresholdMillis && uri != null) {
+                            slowRequests.add(new SlowRequest(worker, method == null ? "" : method, uri, age));
+                        }
+                    }
+                }
+
+                GaugeMetricFamily stageGauge = new GaugeMetricFamily(
+                        "tomcat_requestprocessor_stage",
+                        "Number of request processors of this connector in each stage",
+                        Arrays.asList("name", "stage"));
+                for (Map.Entry<String, long[]> entry : stageCounts.entrySet()) {
+                    for (int i = 0; i < STAGES.length; i++) {
+                        stageGauge.addMetric(Arrays.asList(entry.getKey(), STAGES[i]), entry.getValue()[i]);
+                    }
+                }
+                mfs.add(stageGauge);
+
+                List<MetricFamilySamples.Sample> ageSamples = new ArrayList<MetricFamilySamples.Sample>();
+                List<String> labelNames = Collections.singletonList("name");
+                List<String> bucketLabelNames = Arrays.asList("name", "le");
+                for (Map.Entry<String, double[]> entry : ageBuckets.entrySet()) {
+                    double[] buckets = entry.getValue();
+                    for (int i = 0; i < BUCKETS.length; i++) {
+                        ageSamples.add(new MetricFamilySamples.Sample("tomcat_inflight_request_age_seconds_bucket",
+                                bucketLabelNames, Arrays.asList(entry.getKey(), doubleToGoString(BUCKETS[i])), buckets[i]));
+                    }
+                    ageSamples.add(new MetricFamilySamples.Sample("tomcat_inflight_request_age_seconds_bucket",
+                            bucketLabelNames, Arrays.asList(entry.getKey(), "+Inf"), buckets[BUCKETS.length]));
+                    ageSamples.add(new MetricFamilySamples.Sample("tomcat_inflight_request_age_seconds_gcount",
+                            labelNames, Collections.singletonList(entry.getKey()), buckets[BUCKETS.length]));
+                    ageSamples.add(new MetricFamilySamples.Sample("tomcat_inflight_request_age_seconds_gsum",
+                            labelNames, Collections.singletonList(entry.getKey()), buckets[BUCKETS.length + 1]));
+                }
+                mfs.add(new MetricFamilySamples("tomcat_inflight_request_age_seconds", Type.GAUGE_HISTOGRAM,
+                        "Age of the requests that are currently being processed by this connector", ageSamples));
+
+                if (slowThresholdMillis >= 0) {
+                    GaugeMetricFamily slowRequestGauge = new GaugeMetricFamily(
+                            "tomcat_inflight_request_slow_seconds",
+                            "Age of the oldest requests currently being processed that exceed the threshold",
+                            Arrays.asList("name", "method", "uri"));
+                    Collections.sort(slowRequests);
+                    Set<List<String>> seen = new HashSet<List<String>>();
+                    for (SlowRequest slowRequest : slowRequests) {
+                        if (seen.size() >= maxSlowRequests) {
+                            break;
+                        }
+                        List<String> labelValueList = Arrays.asList(slowRequest.worker, slowRequest.method, slowRequest.uri);
+                        // concurrent requests for the same URI are reported by the oldest one
+                        if (seen.add(labelValueList)) {
+                            slowRequestGauge.addMetric(labelValueList, slowRequest.age / 1000.0);
+                        }
+                    }
+                    mfs.add(slowRequestGauge);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addInFlightMetrics(mfs);
+        return mfs;
+    }
+
+    private static class SlowRequest implements Comparable<SlowRequest> {
+        private final String worker;
+        private final String method;
+        private final String uri;
+        private final long age;
+
+        SlowRequest(String worker, String method, String uri, long age) {
+            this.worker = worker;
+            this.method = method;
+            this.uri = uri;
+            this.age = age;
+        }
+
+        @Override
+        public int compareTo(SlowRequest other) {
+            // oldest first
+            return Long.compare(other.age, age);
+        }
+    }
+}
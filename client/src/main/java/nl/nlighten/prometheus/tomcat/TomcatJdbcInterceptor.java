@@ -1,8 +1,7 @@
 package nl.nlighten.prometheus.tomcat;
 
 import java.util.Map;
-import io.prometheus.client.Gauge;
-import io.prometheus.client.Histogram;
+import io.prometheus.client.Counter;
 import org.apache.tomcat.jdbc.pool.ConnectionPool;
 import org.apache.tomcat.jdbc.pool.PoolProperties.InterceptorProperty;
 import org.apache.tomcat.jdbc.pool.PooledConnection;
@@ -42,8 +41,14 @@ import org.apache.tomcat.jdbc.pool.interceptor.AbstractQueryReport;
  * - buckets: the buckets separated by a pipe ("|") symbol to be used for the global query response times, defaults to .01|.05|.1|.25|.5|1|2.5|10
  * - slowQueryBuckets: the buckets separated by a pipe ("|") symbol to be used for the global query response times, defaults to 1|2.5|10|30
  *
+ * The buckets, threshold, logSlow and logFailed can be changed while Tomcat is running, for all pools, see
+ * {@link MetricsConfig}. The collectors are shared by the interceptors of all pools through {@link MetricsHolder}.
+ *
  * NOTE: enabling logFailed and logSlow may lead to a lot of additional metrics., so be careful !!!
  *
+ * When {@link TomcatServletMetricsFilter} is configured with an exemplar source, the query durations are recorded with
+ * the trace or request id of the request that executed the query as exemplar, see {@link RequestExemplars}.
+ *
  * Example metrics being exported:
  * <pre>
  *    tomcat_jdbc_query_seconds_bucket{le="0.005",} 48950.0
@@ -56,9 +61,7 @@ import org.apache.tomcat.jdbc.pool.interceptor.AbstractQueryReport;
  */
 public class TomcatJdbcInterceptor extends AbstractQueryReport {
 
-    private static Histogram globalQueryStats;
-    private static Histogram slowQueryStats;
-    private static Gauge failedQueryStats;
+    private JdbcMetrics metrics;
     private boolean slowQueryStatsEnabled;
     private boolean failedQueryStatsEnabled;
     private long slowQueryThreshold = 1000;
@@ -69,71 +72,50 @@ public class TomcatJdbcInterceptor extends AbstractQueryReport {
 
 
     @Override
-    public void setProperties(Map<String, InterceptorProperty> properties) {
+    public void setProperties(final Map<String, InterceptorProperty> properties) {
       //  super.setProperties(properties);
 
-        InterceptorProperty bucketsProperty = properties.get("buckets");
-        double[] buckets;
-        if (bucketsProperty != null) {
-            String[] bucketParams = bucketsProperty.getValue().split("\\|");
-            buckets = new double[bucketParams.length];
-            for (int i = 0; i < bucketParams.length; i++) {
-                buckets[i] = Double.parseDouble(bucketParams[i]);
-            }
-        } else {
-            buckets = new double[] {.01, .05, .1, .25, .5, 1, 2.5, 10};
-        }
-
-        if (globalQueryStats == null) {
-            Histogram.Builder builder = Histogram.build()
-                    .help("JDBC query duration")
-                    .name("tomcat_jdbc_query_seconds")
-                    .buckets(buckets)
-                    .labelNames("status");
-            globalQueryStats = builder.register();
-        }
-
-        InterceptorProperty slowQueryBucketsProperty = properties.get("slowQueryBuckets");
-        double[] slowQueryBuckets;
-        if (slowQueryBucketsProperty != null) {
-            String[] bucketParams = slowQueryBucketsProperty.getValue().split("\\|");
-            slowQueryBuckets = new double[bucketParams.length];
-            for (int i = 0; i < bucketParams.length; i++) {
-                slowQueryBuckets[i] = Double.parseDouble(bucketParams[i]);
+        metrics = MetricsHolder.getInstance().get(JdbcMetrics.class.getName(), new MetricsHolder.Factory<JdbcMetrics>() {
+            @Override
+            public JdbcMetrics create(MetricsHolder holder) {
+                return new JdbcMetrics(properties, holder);
             }
-        } else {
-            slowQueryBuckets = new double[] { 1, 2.5, 10, 30};
-        }
+        });
 
+        MetricsConfig config = metrics.config;
         InterceptorProperty slowQueryStatsProperty = properties.get("logSlow");
         if (slowQueryStatsProperty != null && slowQueryStatsProperty.getValue().equals("true")) {
             slowQueryStatsEnabled = true;
-            if (slowQueryStats == null) {
-                Histogram.Builder builder = Histogram.build()
-                        .help("JDBC slow query duration in seconds")
-                        .name("tomcat_jdbc_slowquery_seconds")
-                        .buckets(slowQueryBuckets)
-                        .labelNames("query");
-                slowQueryStats = builder.register();
+            if (metrics.slowQueryStats == null) {
+                metrics.createSlowQueryStats();
             }
         }
+        config.initialize(MetricsConfig.JDBC_LOG_SLOW, Boolean.toString(slowQueryStatsEnabled));
 
         InterceptorProperty slowQueryThresholdProperty = properties.get("threshold");
         if (slowQueryThresholdProperty != null) {
             slowQueryThreshold = Long.parseLong(slowQueryThresholdProperty.getValue());
         }
+        config.initialize(MetricsConfig.JDBC_THRESHOLD, Long.toString(slowQueryThreshold));
 
         InterceptorProperty failedQueryStatsProperty = properties.get("logFailed");
         if (failedQueryStatsProperty != null && failedQueryStatsProperty.getValue().equals("true")) {
             failedQueryStatsEnabled = true;
-            if (failedQueryStats == null) {
-                Gauge.Builder builder = Gauge.build()
-                        .help("Number of errors for give JDBC query")
-                        .name("tomcat_jdbc_failedquery_total")
-                        .labelNames("query");
-                failedQueryStats = builder.register();
+            if (metrics.failedQueryStats == null) {
+                metrics.createFailedQueryStats();
             }
         }
+        config.initialize(MetricsConfig.JDBC_LOG_FAILED, Boolean.toString(failedQueryStatsEnabled));
+    }
+
+    /**
+     * Returns true if the query is recorded as slow query, using the settings changed through {@link MetricsConfig}
+     * if any, or else the settings of this pool.
+     */
+    private boolean isSlowQuery(long delta) {
+        Boolean enabled = metrics.slowQueryStatsOverride;
+        Long threshold = metrics.slowQueryThresholdOverride;
+        return (enabled != null ? enabled : slowQueryStatsEnabled) && delta >= (threshold != null ? threshold : slowQueryThreshold);
     }
 
     @Override
@@ -141,9 +123,10 @@ public class TomcatJdbcInterceptor extends AbstractQueryReport {
         String sql = super.reportFailedQuery(query, args, name, start, t);
         long now = System.currentTimeMillis();
         long delta = now - start;
-        globalQueryStats.labels(FAILED_QUERY_STATUS).observe((double) delta/1000);
-        if (failedQueryStatsEnabled) {
-            failedQueryStats.labels(sql).inc();
+        metrics.globalQueryStats.labels(FAILED_QUERY_STATUS).observeWithExemplar((double) delta/1000, RequestExemplars.currentLabels());
+        Boolean enabled = metrics.failedQueryStatsOverride;
+        if (enabled != null ? enabled : failedQueryStatsEnabled) {
+            metrics.failedQueryStats.labels(sql).inc();
         }
         return sql;
     }
@@ -151,9 +134,9 @@ public class TomcatJdbcInterceptor extends AbstractQueryReport {
     @Override
     protected String reportQuery(String query, Object[] args, final String name, long start, long delta) {
         String sql = super.reportQuery(query, args, name, start, delta);
-        globalQueryStats.labels(SUCCESS_QUERY_STATUS).observe((double) delta/1000);
-        if (slowQueryStatsEnabled && delta >= slowQueryThreshold) {
-            slowQueryStats.labels(sql).observe((double) delta/1000);
+        metrics.globalQueryStats.labels(SUCCESS_QUERY_STATUS).observeWithExemplar((double) delta/1000, RequestExemplars.currentLabels());
+        if (isSlowQuery(delta)) {
+            metrics.slowQueryStats.labels(sql).observeWithExemplar((double) delta/1000, RequestExemplars.currentLabels());
         }
         return sql;
     }
@@ -161,9 +144,9 @@ public class TomcatJdbcInterceptor extends AbstractQueryReport {
     @Override
     protected String reportSlowQuery(String query, Object[] args, String name, long start, long delta) {
         String sql = super.reportSlowQuery(query, args, name, start, delta);
-        globalQueryStats.labels(SUCCESS_QUERY_STATUS).observe((double) delta/1000);
-        if (slowQueryStatsEnabled && delta >= slowQueryThreshold) {
-            slowQueryStats.labels(sql).observe((double) delta/1000);
+        metrics.globalQueryStats.labels(SUCCESS_QUERY_STATUS).observeWithExemplar((double) delta/1000, RequestExemplars.currentLabels());
+        if (isSlowQuery(delta)) {
+            metrics.slowQueryStats.labels(sql).observeWithExemplar((double) delta/1000, RequestExemplars.currentLabels());
         }
         return sql;
     }
@@ -186,15 +169,90 @@ public class TomcatJdbcInterceptor extends AbstractQueryReport {
     @Override
     public void poolStarted(ConnectionPool pool) {
         super.poolStarted(pool);
+        MetricsHolder.attachInstance(pool);
     }
 
     @Override
     public void poolClosed(ConnectionPool pool) {
         super.poolClosed(pool);
+        MetricsHolder.detachInstance(pool);
     }
 
     @Override
     public void reset(ConnectionPool parent, PooledConnection con) {
         super.reset(parent, con);
     }
+
+    /**
+     * The collectors and settings shared by the interceptors of all pools.
+     */
+    private static class JdbcMetrics {
+        private final MetricsHolder holder;
+        private final MetricsConfig config;
+        private final ReconfigurableHistogram globalQueryStats;
+        private volatile ReconfigurableHistogram slowQueryStats;
+        private volatile Counter failedQueryStats;
+        private volatile Boolean slowQueryStatsOverride;
+        private volatile Boolean failedQueryStatsOverride;
+        private volatile Long slowQueryThresholdOverride;
+
+        JdbcMetrics(Map<String, InterceptorProperty> properties, MetricsHolder holder) {
+            this.holder = holder;
+            this.config = MetricsConfig.getInstance(holder);
+            InterceptorProperty bucketsProperty = properties.get("buckets");
+            globalQueryStats = holder.register(new ReconfigurableHistogram(
+                    "tomcat_jdbc_query_seconds",
+                    "JDBC query duration",
+                    MetricsConfig.parseBuckets(config.initialize(MetricsConfig.JDBC_BUCKETS,
+                            bucketsProperty != null ? bucketsProperty.getValue() : ".01|.05|.1|.25|.5|1|2.5|10")),
+                    "status"));
+
+            InterceptorProperty slowQueryBucketsProperty = properties.get("slowQueryBuckets");
+            config.initialize(MetricsConfig.JDBC_SLOW_QUERY_BUCKETS,
+                    slowQueryBucketsProperty != null ? slowQueryBucketsProperty.getValue() : "1|2.5|10|30");
+
+            config.addListener(new MetricsConfig.Listener() {
+                @Override
+                public void configChanged(String key, String value) {
+                    if (MetricsConfig.JDBC_BUCKETS.equals(key)) {
+                        globalQueryStats.setBuckets(MetricsConfig.parseBuckets(value));
+                    } else if (MetricsConfig.JDBC_SLOW_QUERY_BUCKETS.equals(key) && slowQueryStats != null) {
+                        slowQueryStats.setBuckets(MetricsConfig.parseBuckets(value));
+                    } else if (MetricsConfig.JDBC_THRESHOLD.equals(key)) {
+                        slowQueryThresholdOverride = Long.parseLong(value);
+                    } else if (MetricsConfig.JDBC_LOG_SLOW.equals(key)) {
+                        if (Boolean.parseBoolean(value)) {
+                            createSlowQueryStats();
+                        }
+                        slowQueryStatsOverride = Boolean.parseBoolean(value);
+                    } else if (MetricsConfig.JDBC_LOG_FAILED.equals(key)) {
+                        if (Boolean.parseBoolean(value)) {
+                            createFailedQueryStats();
+                        }
+                        failedQueryStatsOverride = Boolean.parseBoolean(value);
+                    }
+                }
+            });
+        }
+
+        synchronized void createSlowQueryStats() {
+            if (slowQueryStats == null) {
+                slowQueryStats = holder.register(new ReconfigurableHistogram(
+                        "tomcat_jdbc_slowquery_seconds",
+                        "JDBC slow query duration in seconds",
+                        MetricsConfig.parseBuckets(config.get(MetricsConfig.JDBC_SLOW_QUERY_BUCKETS)),
+                        "query"));
+            }
+        }
+
+        synchronized void createFailedQueryStats() {
+            if (failedQueryStats == null) {
+                Counter.Builder builder = Counter.build()
+                        .help("Number of errors for give JDBC query")
+                        .name("tomcat_jdbc_failedquery")
+                        .labelNames("query");
+                failedQueryStats = holder.register(builder.create());
+            }
+        }
+    }
 }
@@ -1,7 +1,9 @@
 package nl.nlighten.prometheus.tomcat;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
 import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Predicate;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
@@ -21,88 +23,126 @@ import java.util.*;
  * Example metrics being exported:
  * <pre>
  *    tomcat_jdbc_connections_max{context="/foo",pool="jdbc/mypool"} 20.0
- *    tomcat_jdbc_connections_active_total{context="/foo",pool="jdbc/mypool"} 2.0
- *    tomcat_jdbc_connections_idle_total{context="/foo",pool="jdbc/mypool"} 6.0
- *    tomcat_jdbc_connections_total{context="/foo",pool="jdbc/mypool"} 8.0
+ *    tomcat_jdbc_connections_active{context="/foo",pool="jdbc/mypool"} 2.0
+ *    tomcat_jdbc_connections_idle{context="/foo",pool="jdbc/mypool"} 6.0
+ *    tomcat_jdbc_connections_current{context="/foo",pool="jdbc/mypool"} 8.0
  *    tomcat_jdbc_connections_threadswaiting_total{context="/foo",pool="jdbc/mypool"} 0.0
- * </pre> * </pre>
+ *    tomcat_jdbc_connections_borrowed_total{context="/foo",pool="jdbc/mypool"} 33709.0
+ * </pre>
+ * The borrowed, returned, created, released, reconnected and removed connection counts are exported as counters that
+ * do not decrease when a pool is recreated, see {@link CounterTracker}.
+ * <p>
+ * When only some metrics are requested, e.g. with the name[] parameter, only the attributes of the requested metrics
+ * are read, and the pools are not queried at all if none are requested, see {@link SampleNameFilters}.
  */
 
 public class TomcatJdbcPoolExports extends Collector {
 
     private static final Log log = LogFactory.getLog(TomcatJdbcPoolExports.class);
+    private static final String[] POOL_ATTRIBUTES = new String[]{"MaxActive", "Active", "Idle", "Size", "WaitCount", "BorrowedCount", "ReturnedCount", "CreatedCount", "ReleasedCount", "ReconnectedCount", "RemoveAbandonedCount", "ReleasedIdleCount"};
+    private final CounterTracker tracker = new CounterTracker();
+    private final MBeanServerConnection server;
+
+    public TomcatJdbcPoolExports() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param server the connection to the MBean server of Tomcat, e.g. a remote JMX connection
+     */
+    public TomcatJdbcPoolExports(MBeanServerConnection server) {
+        this.server = server;
+    }
 
     public List<MetricFamilySamples> collect() {
+        return collect(null);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
         List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        List<String> labelList = Arrays.asList("pool", "context");
+
+        GaugeMetricFamily maxActiveConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_jdbc_connections_max",
+                "Maximum number of active connections that can be allocated from this pool at the same time",
+                labelList);
+
+        GaugeMetricFamily activeConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_jdbc_connections_active",
+                "Number of active connections allocated from this pool",
+                labelList);
+
+        GaugeMetricFamily idleConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_jdbc_connections_idle",
+                "Number of idle connections in this pool",
+                labelList);
+
+        GaugeMetricFamily totalConnectionsGauge = new GaugeMetricFamily(
+                "tomcat_jdbc_connections_current",
+                "Total number of connections in this pool",
+                labelList);
+
+        GaugeMetricFamily waitingThreadsCountGauge = new GaugeMetricFamily(
+                "tomcat_jdbc_waitingthreads",
+                "Number of threads waiting for connections from this pool",
+                labelList);
+
+        CounterMetricFamily borrowedConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_borrowed",
+                "Number of connections borrowed from this pool",
+                labelList);
+
+        CounterMetricFamily returnedConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_returned",
+                "Number of connections returned to this pool",
+                labelList);
+
+        CounterMetricFamily createdConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_created",
+                "Number of connections created by this pool",
+                labelList);
+        CounterMetricFamily releasedConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_released",
+                "Number of connections released by this pool",
+                labelList);
+
+        CounterMetricFamily reconnectedConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_reconnected",
+                "Number of reconnected connections by this pool",
+                labelList);
+
+        CounterMetricFamily removeAbandonedConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_removeabandoned",
+                "Number of abandoned connections that have been removed",
+                labelList);
+
+        CounterMetricFamily releasedIdleConnectionsCounter = new CounterMetricFamily(
+                "tomcat_jdbc_connections_releasedidle",
+                "Number of idle connections that have been released",
+                labelList);
+
+        String[] poolAttributes = SampleNameFilters.requestedAttributes(sampleNameFilter, POOL_ATTRIBUTES,
+                maxActiveConnectionsGauge,
+                activeConnectionsGauge,
+                idleConnectionsGauge,
+                totalConnectionsGauge,
+                waitingThreadsCountGauge,
+                borrowedConnectionsCounter,
+                returnedConnectionsCounter,
+                createdConnectionsCounter,
+                releasedConnectionsCounter,
+                reconnectedConnectionsCounter,
+                removeAbandonedConnectionsCounter,
+                releasedIdleConnectionsCounter);
+        if (poolAttributes.length == 0) {
+            return mfs;
+        }
         try {
-            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             ObjectName filterName = new ObjectName("tomcat.jdbc:class=org.apache.tomcat.jdbc.pool.DataSource,type=ConnectionPool,*");
             Set<ObjectInstance> mBeans = server.queryMBeans(filterName, null);
 
             if (mBeans.size() > 0) {
-                List<String> labelList = Arrays.asList("pool", "context");
-
-                GaugeMetricFamily maxActiveConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_max",
-                        "Maximum number of active connections that can be allocated from this pool at the same time",
-                        labelList);
-
-                GaugeMetricFamily activeConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_active_total",
-                        "Number of active connections allocated from this pool",
-                        labelList);
-
-                GaugeMetricFamily idleConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_idle_total",
-                        "Number of idle connections in this pool",
-                        labelList);
-
-                GaugeMetricFamily totalConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_total",
-                        "Total number of connections in this pool",
-                        labelList);
-
-                GaugeMetricFamily waitingThreadsCountGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_waitingthreads_total",
-                        "Number of threads waiting for connections from this pool",
-                        labelList);
-
-                GaugeMetricFamily borrowedConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_borrowed_total",
-                        "Number of connections borrowed from this pool",
-                        labelList);
-
-                GaugeMetricFamily returnedConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_returned_total",
-                        "Number of connections returned to this pool",
-                        labelList);
-
-                GaugeMetricFamily createdConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_created_total",
-                        "Number of connections created by this pool",
-                        labelList);
-                GaugeMetricFamily releasedConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_released_total",
-                        "Number of connections released by this pool",
-                        labelList);
-
-                GaugeMetricFamily reconnectedConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_reconnected_total",
-                        "Number of reconnected connections by this pool",
-                        labelList);
-
-                GaugeMetricFamily removeAbandonedConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_removeabandoned_total",
-                        "Number of abandoned connections that have been removed",
-                        labelList);
-
-                GaugeMetricFamily releasedIdleConnectionsGauge = new GaugeMetricFamily(
-                        "tomcat_jdbc_connections_releasedidle_total",
-                        "Number of idle connections that have been released",
-                        labelList);
-
-                String[] poolAttributes = new String[]{"MaxActive", "Active", "Idle", "Size", "WaitCount", "BorrowedCount", "ReturnedCount", "CreatedCount", "ReleasedCount", "ReconnectedCount", "RemoveAbandonedCount", "ReleasedIdleCount"};
-
                 for (final ObjectInstance mBean : mBeans) {
                     List<String> labelValueList = Arrays.asList(mBean.getObjectName().getKeyProperty("name").replaceAll("[\"\\\\]", ""), Optional.ofNullable(mBean.getObjectName().getKeyProperty("context")).orElse("global"));
                     if (mBean.getObjectName().getKeyProperty("connections") == null) {  // Tomcat 8.5.33 ignore PooledConnections
@@ -126,45 +166,47 @@ public class TomcatJdbcPoolExports extends Collector {
                                     waitingThreadsCountGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
                                     break;
                                 case "BorrowedCount":
-                                    borrowedConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    borrowedConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_borrowed", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "ReturnedCount":
-                                    returnedConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    returnedConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_returned", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "CreatedCount":
-                                    createdConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    createdConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_created", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "ReleasedCount":
-                                    releasedConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    releasedConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_released", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "ReconnectedCount":
-                                    reconnectedConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    reconnectedConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_reconnected", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "RemoveAbandonedCount":
-                                    removeAbandonedConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    removeAbandonedConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_removeabandoned", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                                     break;
                                 case "ReleasedIdleCount":
-                                    releasedIdleConnectionsGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                    releasedIdleConnectionsCounter.addMetric(labelValueList, tracker.counter("tomcat_jdbc_connections_releasedidle", labelValueList, ((Long) attribute.getValue()).doubleValue()));
                             }
                         }
                     }
                 }
-                mfs.add(maxActiveConnectionsGauge);
-                mfs.add(activeConnectionsGauge);
-                mfs.add(idleConnectionsGauge);
-                mfs.add(totalConnectionsGauge);
-                mfs.add(waitingThreadsCountGauge);
-                mfs.add(borrowedConnectionsGauge);
-                mfs.add(returnedConnectionsGauge);
-                mfs.add(createdConnectionsGauge);
-                mfs.add(releasedConnectionsGauge);
-                mfs.add(reconnectedConnectionsGauge);
-                mfs.add(removeAbandonedConnectionsGauge);
-                mfs.add(releasedIdleConnectionsGauge);
+                SampleNameFilters.addNonEmpty(mfs,
+                        maxActiveConnectionsGauge,
+                        activeConnectionsGauge,
+                        idleConnectionsGauge,
+                        totalConnectionsGauge,
+                        waitingThreadsCountGauge,
+                        borrowedConnectionsCounter,
+                        returnedConnectionsCounter,
+                        createdConnectionsCounter,
+                        releasedConnectionsCounter,
+                        reconnectedConnectionsCounter,
+                        removeAbandonedConnectionsCounter,
+                        releasedIdleConnectionsCounter);
             }
         } catch (Exception e) {
             log.error("Error retrieving metric:" + e.getMessage());
         }
+        tracker.removeStale();
         return mfs;
     }
 
@@ -0,0 +1,335 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Predicate;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the metrics of {@link TomcatGenericExports}, {@link TomcatJdbcPoolExports} and {@link TomcatDbcp2PoolExports}
+ * from other Tomcat instances over remote JMX, so many small Tomcats on a host can be monitored by a single exporter
+ * process instead of deploying the metrics servlet into each of them.
+ *
+ * <p>
+ * A target is either a JMX service url, or the process id of a local JVM prefixed with "pid:", in which case the local
+ * management agent of that JVM is started and connected to using the attach API. The connection to each target is
+ * kept open between scrapes, and reopened on the next scrape when it fails. Targets are collected in parallel; a
+ * target that does not respond within the timeout is reported as down, and its connection is closed. The samples of
+ * all targets are merged with an instance label. Whether a target runs embedded Tomcat is detected from its JMX domain.
+ * <p>
+ * As the collectors log and skip the sections they fail to read, the failed JMX calls of each target are counted, and
+ * a target with a failed call during a scrape is reported as down for that scrape, while its other samples are kept.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   TomcatJmxAggregator aggregator = new TomcatJmxAggregator(5000);
+ *   aggregator.addTarget("app01", "service:jmx:rmi:///jndi/rmi://localhost:9010/jmxrmi", null);
+ *   aggregator.addTarget("app02", "pid:12345", null);
+ *   aggregator.register();
+ * }
+ * </pre>
+ * Or standalone, serving the metrics on port 9404 using {@link MetricsHttpServer}:
+ * <pre>
+ *   java -cp 'lib/*' nl.nlighten.prometheus.tomcat.TomcatJmxAggregator 9404 app01=service:jmx:rmi:///jndi/rmi://localhost:9010/jmxrmi app02=pid:12345
+ * </pre>
+ * Example metrics being exported, besides the metrics of the collectors labelled with the instance:
+ * <pre>
+ *     tomcat_jmx_target_up{instance="app01",} 1.0
+ *     tomcat_jmx_target_collect_seconds{instance="app01",} 0.012
+ *     tomcat_jmx_target_errors_total{instance="app01",} 0.0
+ * </pre>
+ */
+public class TomcatJmxAggregator extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatJmxAggregator.class);
+    private static final String PID_PREFIX = "pid:";
+    private final long timeoutMillis;
+    private final Map<String, Target> targets = new ConcurrentHashMap<String, Target>();
+    private final ExecutorService executor;
+
+    /**
+     * @param timeoutMillis the maximum time to wait for the metrics of a target
+     */
+    public TomcatJmxAggregator(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tomcat-jmx-aggregator-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a target to collect.
+     *
+     * @param instance    the value of the instance label of the metrics of this target
+     * @param target      a JMX service url, or pid:&lt;process id&gt; of a local JVM
+     * @param environment the environment of the JMX connection, e.g. containing jmx.remote.credentials, or null
+     */
+    public void addTarget(String instance, String target, Map<String, ?> environment) {
+        targets.put(instance, new Target(instance, target, environment));
+    }
+
+    public void removeTarget(String instance) {
+        Target target = targets.remove(instance);
+        if (target != null) {
+            target.disconnect();
+        }
+    }
+
+    /**
+     * Closes the connections to all targets.
+     */
+    public void close() {
+        for (Target target : targets.values()) {
+            target.disconnect();
+        }
+        executor.shutdownNow();
+    }
+
+    public List<MetricFamilySamples> collect() {
+        return collect(null);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(final Predicate<String> sampleNameFilter) {
+        List<String> labelNameList = Collections.singletonList("instance");
+        GaugeMetricFamily upGauge = new GaugeMetricFamily(
+                "tomcat_jmx_target_up",
+                "Indication if the metrics of this target could be collected",
+                labelNameList);
+        GaugeMetricFamily durationGauge = new GaugeMetricFamily(
+                "tomcat_jmx_target_collect_seconds",
+                "The time spent collecting the metrics of this target",
+                labelNameList);
+        CounterMetricFamily errorsCounter = new CounterMetricFamily(
+                "tomcat_jmx_target_errors",
+                "The number of failed JMX calls while collecting the metrics of this target",
+                labelNameList);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Map<Target, Future<List<MetricFamilySamples>>> futures = new LinkedHashMap<Target, Future<List<MetricFamilySamples>>>();
+        for (final Target target : targets.values()) {
+            // a target still busy with a previous scrape that timed out is skipped
+            if (target.busy.compareAndSet(false, true)) {
+                futures.put(target, executor.submit(new Callable<List<MetricFamilySamples>>() {
+                    @Override
+                    public List<MetricFamilySamples> call() throws Exception {
+                        try {
+                            return target.collect(sampleNameFilter);
+                        } finally {
+                            target.busy.set(false);
+                        }
+                    }
+                }));
+            } else {
+                upGauge.addMetric(Collections.singletonList(target.instance), 0);
+            }
+        }
+
+        Map<String, MetricFamilySamples> merged = new LinkedHashMap<String, MetricFamilySamples>();
+        for (Map.Entry<Target, Future<List<MetricFamilySamples>>> entry : futures.entrySet()) {
+            Target target = entry.getKey();
+            try {
+                List<MetricFamilySamples> mfs = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                merge(merged, target.instance, mfs);
+                upGauge.addMetric(Collections.singletonList(target.instance), target.lastCollectFailed ? 0 : 1);
+                durationGauge.addMetric(Collections.singletonList(target.instance), target.lastDuration);
+            } catch (TimeoutException e) {
+                log.warn("Timeout collecting metrics of " + target.instance + " after " + timeoutMillis + " ms");
+                entry.getValue().cancel(true);
+                upGauge.addMetric(Collections.singletonList(target.instance), 0);
+                // the connection is probably broken, so reconnect on the next scrape
+                executor.submit(target.disconnectTask);
+            } catch (Exception e) {
+                log.error("Error collecting metrics of " + target.instance + ":" + e.getMessage());
+                upGauge.addMetric(Collections.singletonList(target.instance), 0);
+            }
+        }
+
+        for (Target target : targets.values()) {
+            errorsCounter.addMetric(Collections.singletonList(target.instance), target.errors.get());
+        }
+
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>(merged.values());
+        mfs.add(upGauge);
+        mfs.add(durationGauge);
+        mfs.add(errorsCounter);
+        return mfs;
+    }
+
+    /**
+     * Adds the samples of a target to the merged families, with the instance label in front of their own labels.
+     */
+    private void merge(Map<String, MetricFamilySamples> merged, String instance, List<MetricFamilySamples> mfs) {
+        for (MetricFamilySamples family : mfs) {
+            MetricFamilySamples target = merged.get(family.name);
+            if (target == null) {
+                target = new MetricFamilySamples(family.name, family.unit, family.type, family.help, new ArrayList<MetricFamilySamples.Sample>());
+                merged.put(family.name, target);
+            }
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                List<String> labelNames = new ArrayList<String>(sample.labelNames.size() + 1);
+                labelNames.add("instance");
+                labelNames.addAll(sample.labelNames);
+                List<String> labelValues = new ArrayList<String>(sample.labelValues.size() + 1);
+                labelValues.add(instance);
+                labelValues.addAll(sample.labelValues);
+                target.samples.add(new MetricFamilySamples.Sample(sample.name, labelNames, labelValues, sample.value, sample.exemplar, sample.timestampMs));
+            }
+        }
+    }
+
+    /**
+     * Runs the aggregator standalone. The arguments are the port to serve the metrics on, followed by the targets as
+     * instance=target pairs.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TomcatJmxAggregator <port> <instance>=<jmx service url|pid:<process id>> ...");
+            System.exit(1);
+        }
+        TomcatJmxAggregator aggregator = new TomcatJmxAggregator(Long.getLong("timeout", 10000));
+        for (int i = 1; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid target, expected instance=target: " + args[i]);
+            }
+            aggregator.addTarget(args[i].substring(0, separator), args[i].substring(separator + 1), null);
+        }
+        CollectorRegistry registry = new CollectorRegistry();
+        aggregator.register(registry);
+        new MetricsHttpServer(registry, new InetSocketAddress(Integer.parseInt(args[0])), "/metrics").run();
+    }
+
+    private static class Target {
+        private final String instance;
+        private final String target;
+        private final Map<String, ?> environment;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final AtomicLong errors = new AtomicLong();
+        private final Runnable disconnectTask = new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        };
+        private JMXConnector connector;
+        private List<Collector> collectors;
+        private volatile double lastDuration;
+        private volatile boolean lastCollectFailed;
+
+        Target(String instance, String target, Map<String, ?> environment) {
+            this.instance = instance;
+            this.target = target;
+            this.environment = environment;
+        }
+
+        List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) throws Exception {
+            long start = System.nanoTime();
+            List<Collector> targetCollectors = connect();
+            long errorsBefore = errors.get();
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            for (Collector collector : targetCollectors) {
+                mfs.addAll(collector.collect(sampleNameFilter));
+            }
+            lastCollectFailed = errors.get() != errorsBefore;
+            lastDuration = (System.nanoTime() - start) / NANOSECONDS_PER_SECOND;
+            return mfs;
+        }
+
+        /**
+         * Returns the collectors of this target, connecting first if needed. As the collectors log and skip JMX
+         * errors, an existing connection is checked with a single call, so a broken connection is replaced.
+         */
+        private synchronized List<Collector> connect() throws Exception {
+            if (connector != null) {
+                try {
+                    connector.getMBeanServerConnection().getMBeanCount();
+                    return collectors;
+                } catch (IOException e) {
+                    disconnect();
+                }
+            }
+            JMXServiceURL url = new JMXServiceURL(target.startsWith(PID_PREFIX) ? attach(target.substring(PID_PREFIX.length())) : target);
+            connector = JMXConnectorFactory.connect(url, environment);
+            MBeanServerConnection server = countErrors(connector.getMBeanServerConnection());
+            boolean embedded = server.isRegistered(new ObjectName("Tomcat:type=Server"));
+            collectors = Arrays.<Collector>asList(
+                    new TomcatGenericExports(embedded, false, server),
+                    new TomcatJdbcPoolExports(server),
+                    new TomcatDbcp2PoolExports(server));
+            return collectors;
+        }
+
+        /**
+         * Wraps the connection of this target so the exceptions thrown to the collectors, which only log them, are
+         * counted.
+         */
+        private MBeanServerConnection countErrors(final MBeanServerConnection server) {
+            return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                    new Class<?>[]{MBeanServerConnection.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            try {
+                                return method.invoke(server, args);
+                            } catch (InvocationTargetException e) {
+                                errors.incrementAndGet();
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        synchronized void disconnect() {
+            if (connector != null) {
+                try {
+                    connector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                connector = null;
+                collectors = null;
+            }
+        }
+
+        /**
+         * Starts the local management agent of the JVM with the given process id and returns its url. The attach API
+         * is used reflectively, as it is not available on all JVMs.
+         */
+        private static String attach(String pid) throws Exception {
+            Class<?> virtualMachineClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+            Object virtualMachine = virtualMachineClass.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                return (String) virtualMachineClass.getMethod("startLocalManagementAgent").invoke(virtualMachine);
+            } finally {
+                virtualMachineClass.getMethod("detach").invoke(virtualMachine);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+
+/**
+ * A Tomcat <a href="https://tomcat.apache.org/tomcat-9.0-doc/config/listeners.html">lifecycle listener</a> that exposes
+ * the metrics on a dedicated port using {@link MetricsHttpServer}, instead of through a connector of Tomcat. Scrapes
+ * then do not compete with application requests for request processing threads and connections, so metrics remain
+ * available when Tomcat is saturated.
+ *
+ * <p>
+ * Unless disabled, the listener registers the same collectors as the metrics servlet when the server has started, see
+ * {@link TomcatExports},
+ * unless they are already registered. The metrics servlet can still be deployed, e.g. to configure its optional
+ * collectors, as both serve the default registry. When the server has stopped, the collectors registered by the
+ * listener, the filters and the interceptors are unregistered, see {@link MetricsHolder}.
+ * <p>
+ * Example usage in $CATALINA_BASE/conf/server.xml, with the client jars in $CATALINA_BASE/lib:
+ * <pre>
+ * {@code
+ * <Server port="8005" shutdown="SHUTDOWN">
+ *   <Listener className="nl.nlighten.prometheus.tomcat.TomcatMetricsListener" port="9404" address="0.0.0.0"/>
+ *   ...
+ * </Server>
+ * }
+ * </pre>
+ *
+ * Configuration options are as shown above and have the following meaning:
+ * - port: the port to listen on, defaults to 9404
+ * - address: the address to listen on, defaults to all addresses
+ * - path: the path of the metrics, defaults to /metrics
+ * - registerCollectors: if set to 'false' only serve the collectors registered by others, defaults to 'true'
+ * - embedded: if set to 'true' use the JMX domain of embedded Tomcat
+ * - requestProcessorIntervalAverage: if set to 'true' also export the average request processing time per connector
+ * - metricRulesFile: a properties file with rules to include, exclude or reduce the registered metrics, see {@link MetricRules}
+ */
+public class TomcatMetricsListener implements LifecycleListener {
+
+    private static final Log log = LogFactory.getLog(TomcatMetricsListener.class);
+    private int port = 9404;
+    private String address;
+    private String path = "/metrics";
+    private boolean registerCollectors = true;
+    private boolean embedded;
+    private boolean requestProcessorIntervalAverage;
+    private String metricRulesFile;
+    private MetricsHttpServer server;
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+            if (registerCollectors) {
+                registerCollectors();
+            }
+            startServer();
+        } else if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())) {
+            stopServer();
+        } else if (Lifecycle.AFTER_STOP_EVENT.equals(event.getType())) {
+            // the contexts have stopped, so release the collectors shared by the filters and interceptors
+            MetricsHolder.closeInstance();
+        }
+    }
+
+    private synchronized void startServer() {
+        if (server != null) {
+            return;
+        }
+        try {
+            InetSocketAddress socketAddress = address == null || address.isEmpty()
+                    ? new InetSocketAddress(port)
+                    : new InetSocketAddress(address, port);
+            server = new MetricsHttpServer(CollectorRegistry.defaultRegistry, socketAddress, path);
+            server.start();
+            log.info("Serving metrics on " + socketAddress + path);
+        } catch (IOException e) {
+            log.error("Error starting metrics server on port " + port + ":" + e.getMessage());
+        }
+    }
+
+    private synchronized void stopServer() {
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+    }
+
+    private void registerCollectors() {
+        Enumeration<Collector.MetricFamilySamples> samples = CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(new HashSet<String>(Arrays.asList("tomcat_info")));
+        if (samples.hasMoreElements()) {
+            return;
+        }
+        final MetricRules rules = loadRules();
+        TomcatExports.registerDefaults(embedded, requestProcessorIntervalAverage, new TomcatExports.Registrar() {
+            @Override
+            public void register(Collector collector) {
+                MetricsHolder.getInstance().register(rules != null ? rules.wrap(collector) : collector);
+            }
+        });
+    }
+
+    private MetricRules loadRules() {
+        if (metricRulesFile != null && !metricRulesFile.isEmpty()) {
+            try {
+                return MetricRules.load(metricRulesFile);
+            } catch (IOException e) {
+                log.error("Error loading metric rules from " + metricRulesFile + ":" + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the port the metrics are served on, or -1 if not started
+     */
+    public synchronized int getLocalPort() {
+        return server != null ? server.getPort() : -1;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public boolean isRegisterCollectors() {
+        return registerCollectors;
+    }
+
+    public void setRegisterCollectors(boolean registerCollectors) {
+        this.registerCollectors = registerCollectors;
+    }
+
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    public void setEmbedded(boolean embedded) {
+        this.embedded = embedded;
+    }
+
+    public boolean isRequestProcessorIntervalAverage() {
+        return requestProcessorIntervalAverage;
+    }
+
+    public void setRequestProcessorIntervalAverage(boolean requestProcessorIntervalAverage) {
+        this.requestProcessorIntervalAverage = requestProcessorIntervalAverage;
+    }
+
+    public String getMetricRulesFile() {
+        return metricRulesFile;
+    }
+
+    public void setMetricRulesFile(String metricRulesFile) {
+        this.metricRulesFile = metricRulesFile;
+    }
+}
@@ -0,0 +1,133 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManagerBase;
+
+import java.io.IOException;
+
+/**
+ * A drop-in replacement for Tomcat's <a href="https://tomcat.apache.org/tomcat-9.0-doc/config/manager.html#Persistent_Manager_Implementation">PersistentManager</a>
+ * that records how often sessions are swapped between memory and the store and how long loading and saving sessions
+ * in the store takes. Slow store operations directly delay the requests that need a swapped out session.
+ *
+ * <p>
+ * Example usage in context.xml:
+ * <pre>
+ * {@code
+ * <Manager className="nl.nlighten.prometheus.tomcat.TomcatPersistentManager"
+ *          maxIdleSwap="600"
+ *          buckets=".001, .005, .01, .05, .1, .5, 1, 5">
+ *     <Store className="org.apache.catalina.session.JDBCStore" ... />
+ * </Manager>
+ * }
+ * </pre>
+ *
+ * The buckets attribute is optional and defaults to the buckets shown above.
+ *
+ * Example metrics being exported:
+ * <pre>
+ *    tomcat_session_store_seconds_bucket{host="localhost",context="/foo",operation="load",le="0.001",} 3.0
+ *    .....
+ *    tomcat_session_store_seconds_bucket{host="localhost",context="/foo",operation="load",le="+Inf",} 17.0
+ *    tomcat_session_store_seconds_count{host="localhost",context="/foo",operation="load",} 17.0
+ *    tomcat_session_store_seconds_sum{host="localhost",context="/foo",operation="load",} 0.128
+ *    tomcat_session_swapped_total{host="localhost",context="/foo",direction="in",} 17.0
+ *    tomcat_session_swapped_total{host="localhost",context="/foo",direction="out",} 212.0
+ * </pre>
+ * Saves include both sessions swapped out and sessions backed up because of the maxIdleBackup attribute.
+ */
+public class TomcatPersistentManager extends PersistentManagerBase {
+
+    private static Histogram storeStats;
+    private static Counter swapStats;
+    private String buckets;
+    private Histogram.Child loadTime;
+    private Histogram.Child saveTime;
+    private Counter.Child swappedIn;
+    private Counter.Child swappedOut;
+
+    public String getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(String buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    public String getName() {
+        return "TomcatPersistentManager";
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        synchronized (TomcatPersistentManager.class) {
+            if (storeStats == null) {
+                Histogram.Builder builder = Histogram.build()
+                        .name("tomcat_session_store_seconds")
+                        .help("The time it took to load a session from or save a session to the session store")
+                        .labelNames("host", "context", "operation");
+
+                if (buckets != null && !buckets.isEmpty()) {
+                    String[] bucketParams = buckets.split(",");
+                    double[] bucketValues = new double[bucketParams.length];
+                    for (int i = 0; i < bucketParams.length; i++) {
+                        bucketValues[i] = Double.parseDouble(bucketParams[i].trim());
+                    }
+                    builder.buckets(bucketValues);
+                } else {
+                    builder.buckets(.001, .005, .01, .05, .1, .5, 1, 5);
+                }
+
+                storeStats = builder.register();
+                swapStats = Counter.build()
+                        .name("tomcat_session_swapped_total")
+                        .help("Number of sessions swapped in from or out to the session store")
+                        .labelNames("host", "context", "direction")
+                        .register();
+            }
+        }
+        Context context = getContext();
+        String host = context.getParent() != null ? context.getParent().getName() : "";
+        String contextPath = context.getName() == null || context.getName().isEmpty() ? "/" : context.getName();
+        loadTime = storeStats.labels(host, contextPath, "load");
+        saveTime = storeStats.labels(host, contextPath, "save");
+        swappedIn = swapStats.labels(host, contextPath, "in");
+        swappedOut = swapStats.labels(host, contextPath, "out");
+        super.startInternal();
+    }
+
+    @Override
+    protected Session swapIn(String id) throws IOException {
+        long start = System.nanoTime();
+        Session session = super.swapIn(id);
+        if (session != null && loadTime != null) {
+            loadTime.observe((System.nanoTime() - start) / 1.0E9);
+            swappedIn.inc();
+        }
+        return session;
+    }
+
+    @Override
+    protected void swapOut(Session session) throws IOException {
+        // the same check as the super class, which returns without writing invalid sessions or without a store
+        boolean written = getStore() != null && session.isValid();
+        super.swapOut(session);
+        if (written && swappedOut != null) {
+            swappedOut.inc();
+        }
+    }
+
+    @Override
+    protected void writeSession(Session session) throws IOException {
+        long start = System.nanoTime();
+        super.writeSession(session);
+        if (saveTime != null) {
+            saveTime.observe((System.nanoTime() - start) / 1.0E9);
+        }
+    }
+}
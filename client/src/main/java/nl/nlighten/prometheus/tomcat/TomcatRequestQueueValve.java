@@ -0,0 +1,135 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Histogram;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+
+import javax.management.ObjectName;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A valve that measures per connector the time between the moment a request was handed to the executor of the
+ * connector and the moment it enters the container pipeline. Under overload this covers the time a request waits for a
+ * worker thread, which does not show up in the servlet response times of {@link TomcatServletMetricsFilter}, plus the
+ * time spent reading and parsing the request line and headers.
+ *
+ * <p>
+ * The moment a request was handed to the executor is recorded by {@link TomcatThreadExecutor}, so the connectors to
+ * measure must use it as their executor. Tomcat does not record it for the internal executor of a connector: the start
+ * time of a Coyote request is only set while parsing the request line on the worker thread, so it cannot show queue
+ * wait. Requests of connectors that do not use a {@link TomcatThreadExecutor} are not measured.
+ * <p>
+ * The valve should be added to the Engine in Tomcat's server.xml, e.g.:
+ * <pre>
+ * {@code
+ * <Executor name="tomcatThreadPool" className="nl.nlighten.prometheus.tomcat.TomcatThreadExecutor" maxThreads="200"/>
+ *
+ * <Connector executor="tomcatThreadPool" port="8080" protocol="HTTP/1.1"/>
+ *
+ * <Engine name="Catalina" defaultHost="localhost">
+ *   <Valve className="nl.nlighten.prometheus.tomcat.TomcatRequestQueueValve"
+ *          buckets=".001, .005, .01, .05, .1, .5, 1, 5"/>
+ *   ...
+ * </Engine>
+ * }
+ * </pre>
+ *
+ * The buckets attribute is optional and defaults to the buckets shown above. When a worker thread processes several
+ * requests of a connection in one go, e.g. pipelined requests, only the first is measured.
+ *
+ * Example metrics being exported:
+ * <pre>
+ *    tomcat_threads_queue_wait_seconds_bucket{name="http-nio-8080",le="0.001",} 33102.0
+ *    .....
+ *    tomcat_threads_queue_wait_seconds_bucket{name="http-nio-8080",le="+Inf",} 33709.0
+ *    tomcat_threads_queue_wait_seconds_count{name="http-nio-8080",} 33709.0
+ *    tomcat_threads_queue_wait_seconds_sum{name="http-nio-8080",} 12.3
+ * </pre>
+ */
+public class TomcatRequestQueueValve extends ValveBase {
+
+    private static Histogram requestQueueStats;
+    private String buckets;
+    private final Map<Connector, Histogram.Child> connectorStats = new ConcurrentHashMap<Connector, Histogram.Child>();
+
+    public TomcatRequestQueueValve() {
+        super(true);
+    }
+
+    public String getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(String buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        synchronized (TomcatRequestQueueValve.class) {
+            if (requestQueueStats == null) {
+                Histogram.Builder builder = Histogram.build()
+                        .name("tomcat_threads_queue_wait_seconds")
+                        .help("The time between handing a request to the executor and the request entering the container")
+                        .labelNames("name");
+
+                if (buckets != null && !buckets.isEmpty()) {
+                    String[] bucketParams = buckets.split(",");
+                    double[] bucketValues = new double[bucketParams.length];
+                    for (int i = 0; i < bucketParams.length; i++) {
+                        bucketValues[i] = Double.parseDouble(bucketParams[i].trim());
+                    }
+                    builder.buckets(bucketValues);
+                } else {
+                    builder.buckets(.001, .005, .01, .05, .1, .5, 1, 5);
+                }
+
+                requestQueueStats = builder.register();
+            }
+        }
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        // async dispatches re-enter the pipeline on a new task, only measure the initial dispatch
+        if (request.getDispatcherType() != DispatcherType.ASYNC) {
+            long enqueued = TomcatThreadExecutor.takeEnqueueTime();
+            if (enqueued != Long.MIN_VALUE && request.getConnector() != null) {
+                getConnectorStats(request.getConnector()).observe(Math.max(0, System.nanoTime() - enqueued) / 1.0E9);
+            }
+        }
+        getNext().invoke(request, response);
+    }
+
+    private Histogram.Child getConnectorStats(Connector connector) {
+        Histogram.Child child = connectorStats.get(connector);
+        if (child == null) {
+            child = requestQueueStats.labels(getConnectorName(connector));
+            connectorStats.put(connector, child);
+        }
+        return child;
+    }
+
+    private String getConnectorName(Connector connector) {
+        ProtocolHandler protocolHandler = connector.getProtocolHandler();
+        if (protocolHandler instanceof AbstractProtocol) {
+            // use the same name as the ThreadPool and GlobalRequestProcessor MBeans
+            ObjectName globalRequestProcessorName = ((AbstractProtocol<?>) protocolHandler).getGlobalRequestProcessorMBeanName();
+            if (globalRequestProcessorName != null) {
+                return globalRequestProcessorName.getKeyProperty("name").replaceAll("[\"\\\\]", "");
+            }
+            return ((AbstractProtocol<?>) protocolHandler).getName().replaceAll("[\"\\\\]", "");
+        }
+        return Integer.toString(connector.getPort());
+    }
+}
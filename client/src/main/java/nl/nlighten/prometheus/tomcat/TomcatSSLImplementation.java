@@ -0,0 +1,502 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.tomcat.util.net.SSLContext;
+import org.apache.tomcat.util.net.SSLHostConfig;
+import org.apache.tomcat.util.net.SSLHostConfigCertificate;
+import org.apache.tomcat.util.net.SSLUtil;
+import org.apache.tomcat.util.net.jsse.JSSEImplementation;
+import org.apache.tomcat.util.net.jsse.JSSEUtil;
+
+import javax.management.ObjectName;
+import javax.net.ssl.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * A drop-in replacement for Tomcat's JSSE based SSL implementation that records the number and duration of TLS
+ * handshakes per connector and SSL host. Handshakes that reuse a cached session are counted separately, so the
+ * session resumption ratio can be derived from these metrics.
+ *
+ * <p>
+ * Example usage in server.xml:
+ * <pre>
+ * {@code
+ * <Connector port="8443" protocol="org.apache.coyote.http11.Http11NioProtocol" SSLEnabled="true"
+ *            sslImplementationName="nl.nlighten.prometheus.tomcat.TomcatSSLImplementation">
+ *     <SSLHostConfig>
+ *         <Certificate certificateKeystoreFile="conf/localhost-rsa.jks" type="RSA" />
+ *     </SSLHostConfig>
+ * </Connector>
+ * }
+ * </pre>
+ *
+ * Example metrics being exported:
+ * <pre>
+ *    tomcat_tls_handshake_seconds_bucket{name="https-jsse-nio-8443",host="_default_",le="0.001",} 1021.0
+ *    .....
+ *    tomcat_tls_handshake_seconds_bucket{name="https-jsse-nio-8443",host="_default_",le="+Inf",} 3407.0
+ *    tomcat_tls_handshake_seconds_count{name="https-jsse-nio-8443",host="_default_",} 3407.0
+ *    tomcat_tls_handshake_seconds_sum{name="https-jsse-nio-8443",host="_default_",} 21.3
+ *    tomcat_tls_handshakes_total{name="https-jsse-nio-8443",host="_default_",resumed="false",} 1922.0
+ *    tomcat_tls_handshakes_total{name="https-jsse-nio-8443",host="_default_",resumed="true",} 1485.0
+ *    tomcat_tls_handshake_failures_total{name="https-jsse-nio-8443",host="_default_",} 17.0
+ * </pre>
+ * The handshake duration is measured from the first handshake message processed by the server until the handshake
+ * completes, so it includes the time spent waiting for the client. A handshake is counted as resumed when the server
+ * did not select a certificate for it: only full handshakes authenticate the server with its certificate, resumed
+ * handshakes reuse the keys of an earlier session. Neither the id nor the object of a resumed session identify it, as
+ * TLS 1.3 and session tickets create a new session with a new id on resumption.
+ * <p>
+ * Session cache and certificate expiry metrics are available through {@link TomcatSslExports}.
+ */
+public class TomcatSSLImplementation extends JSSEImplementation {
+
+    private static final String FULL_HANDSHAKE = TomcatSSLImplementation.class.getName() + ".fullHandshake";
+    private static Histogram handshakeStats;
+    private static Counter handshakeCounter;
+    private static Counter handshakeFailureCounter;
+
+    public TomcatSSLImplementation() {
+        synchronized (TomcatSSLImplementation.class) {
+            if (handshakeStats == null) {
+                handshakeStats = Histogram.build()
+                        .name("tomcat_tls_handshake_seconds")
+                        .help("The time it took to complete a TLS handshake")
+                        .labelNames("name", "host")
+                        .buckets(.001, .005, .01, .025, .05, .1, .25, .5, 1)
+                        .register();
+                handshakeCounter = Counter.build()
+                        .name("tomcat_tls_handshakes_total")
+                        .help("Number of completed TLS handshakes")
+                        .labelNames("name", "host", "resumed")
+                        .register();
+                handshakeFailureCounter = Counter.build()
+                        .name("tomcat_tls_handshake_failures_total")
+                        .help("Number of TLS handshakes that failed")
+                        .labelNames("name", "host")
+                        .register();
+            }
+        }
+    }
+
+    @Override
+    public SSLUtil getSSLUtil(SSLHostConfigCertificate certificate) {
+        return new MetricsSSLUtil(new MetricsJSSEUtil(certificate), certificate.getSSLHostConfig());
+    }
+
+    /**
+     * Tomcat's JSSE utility, of which the key managers mark full handshakes, see {@link FullHandshakeKeyManager}.
+     */
+    private static class MetricsJSSEUtil extends JSSEUtil {
+
+        MetricsJSSEUtil(SSLHostConfigCertificate certificate) {
+            super(certificate);
+        }
+
+        @Override
+        public KeyManager[] getKeyManagers() throws Exception {
+            KeyManager[] keyManagers = super.getKeyManagers();
+            if (keyManagers != null) {
+                for (int i = 0; i < keyManagers.length; i++) {
+                    if (keyManagers[i] instanceof X509ExtendedKeyManager) {
+                        keyManagers[i] = new FullHandshakeKeyManager((X509ExtendedKeyManager) keyManagers[i]);
+                    }
+                }
+            }
+            return keyManagers;
+        }
+    }
+
+    private static class MetricsSSLUtil implements SSLUtil {
+        private final SSLUtil delegate;
+        private final SSLHostConfig sslHostConfig;
+
+        MetricsSSLUtil(SSLUtil delegate, SSLHostConfig sslHostConfig) {
+            this.delegate = delegate;
+            this.sslHostConfig = sslHostConfig;
+        }
+
+        @Override
+        public SSLContext createSSLContext(List<String> negotiableProtocols) throws Exception {
+            return new MetricsSSLContext(delegate.createSSLContext(negotiableProtocols), sslHostConfig);
+        }
+
+        @Override
+        public KeyManager[] getKeyManagers() throws Exception {
+            return delegate.getKeyManagers();
+        }
+
+        @Override
+        public TrustManager[] getTrustManagers() throws Exception {
+            return delegate.getTrustManagers();
+        }
+
+        @Override
+        public void configureSessionContext(SSLSessionContext sslSessionContext) {
+            delegate.configureSessionContext(sslSessionContext);
+        }
+
+        @Override
+        public String[] getEnabledProtocols() throws IllegalArgumentException {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public String[] getEnabledCiphers() throws IllegalArgumentException {
+            return delegate.getEnabledCiphers();
+        }
+    }
+
+    private static class MetricsSSLContext implements SSLContext {
+        private final SSLContext delegate;
+        private final SSLHostConfig sslHostConfig;
+        private volatile String[] labelValues;
+
+        MetricsSSLContext(SSLContext delegate, SSLHostConfig sslHostConfig) {
+            this.delegate = delegate;
+            this.sslHostConfig = sslHostConfig;
+        }
+
+        /**
+         * The SSLHostConfig is registered in JMX after the SSL context has been created, so the connector name is
+         * resolved on first use.
+         */
+        String[] getLabelValues() {
+            String[] result = labelValues;
+            if (result == null) {
+                String name = "";
+                ObjectName objectName = sslHostConfig.getObjectName();
+                if (objectName != null && objectName.getKeyProperty("ThreadPool") != null) {
+                    name = objectName.getKeyProperty("ThreadPool").replaceAll("[\"\\\\]", "");
+                }
+                result = new String[]{name, sslHostConfig.getHostName()};
+                if (objectName != null) {
+                    labelValues = result;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void init(KeyManager[] kms, TrustManager[] tms, SecureRandom sr) throws KeyManagementException {
+            delegate.init(kms, tms, sr);
+        }
+
+        @Override
+        public void destroy() {
+            delegate.destroy();
+        }
+
+        @Override
+        public SSLSessionContext getServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        public SSLEngine createSSLEngine() {
+            return new HandshakeTimedSSLEngine(delegate.createSSLEngine(), this);
+        }
+
+        @Override
+        public SSLServerSocketFactory getServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        public SSLParameters getSupportedSSLParameters() {
+            return delegate.getSupportedSSLParameters();
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+
+    /**
+     * Marks the session of a handshake for which the server selects its certificate, which only happens in full
+     * handshakes. The mark is removed when the handshake completes, so a later resumption of the same session object
+     * is not counted as a full handshake.
+     */
+    private static class FullHandshakeKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+
+        FullHandshakeKeyManager(X509ExtendedKeyManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            SSLSession session = engine != null ? engine.getHandshakeSession() : null;
+            if (session != null) {
+                session.putValue(FULL_HANDSHAKE, Boolean.TRUE);
+            }
+            return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            return delegate.chooseEngineClientAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return delegate.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return delegate.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return delegate.getPrivateKey(alias);
+        }
+    }
+
+    /**
+     * Delegates to the SSLEngine created by Tomcat and observes the handshake status of the results of wrap and unwrap.
+     */
+    private static class HandshakeTimedSSLEngine extends SSLEngine {
+        private final SSLEngine delegate;
+        private final MetricsSSLContext context;
+        private long handshakeStart;
+
+        HandshakeTimedSSLEngine(SSLEngine delegate, MetricsSSLContext context) {
+            super(delegate.getPeerHost(), delegate.getPeerPort());
+            this.delegate = delegate;
+            this.context = context;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            beforeHandshakeStep();
+            try {
+                return afterHandshakeStep(delegate.wrap(srcs, offset, length, dst));
+            } catch (SSLException e) {
+                handshakeFailed();
+                throw e;
+            }
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+            beforeHandshakeStep();
+            try {
+                return afterHandshakeStep(delegate.unwrap(src, dsts, offset, length));
+            } catch (SSLException e) {
+                handshakeFailed();
+                throw e;
+            }
+        }
+
+        private void beforeHandshakeStep() {
+            if (handshakeStart == 0 && delegate.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshakeStart = System.nanoTime();
+            }
+        }
+
+        private SSLEngineResult afterHandshakeStep(SSLEngineResult result) {
+            if (handshakeStart != 0 && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                long duration = System.nanoTime() - handshakeStart;
+                String[] labelValues = context.getLabelValues();
+                SSLSession session = delegate.getSession();
+                boolean resumed = session != null && session.getValue(FULL_HANDSHAKE) == null;
+                if (session != null) {
+                    session.removeValue(FULL_HANDSHAKE);
+                }
+                handshakeStats.labels(labelValues).observe(duration / 1.0E9);
+                handshakeCounter.labels(labelValues[0], labelValues[1], Boolean.toString(resumed)).inc();
+                handshakeStart = 0;
+            }
+            return result;
+        }
+
+        private void handshakeFailed() {
+            if (handshakeStart != 0) {
+                handshakeFailureCounter.labels(context.getLabelValues()).inc();
+                handshakeStart = 0;
+            }
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return delegate.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            delegate.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return delegate.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            delegate.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return delegate.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return delegate.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return delegate.getHandshakeSession();
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            if (handshakeStart == 0) {
+                handshakeStart = System.nanoTime();
+            }
+            delegate.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return delegate.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return delegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return delegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return delegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return delegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return delegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            delegate.setSSLParameters(params);
+        }
+
+        // the ALPN methods below are used by Tomcat through reflection on Java 9 and later
+
+        @Override
+        public String getApplicationProtocol() {
+            return delegate.getApplicationProtocol();
+        }
+
+        @Override
+        public String getHandshakeApplicationProtocol() {
+            return delegate.getHandshakeApplicationProtocol();
+        }
+
+        @Override
+        public void setHandshakeApplicationProtocolSelector(BiFunction<SSLEngine, List<String>, String> selector) {
+            delegate.setHandshakeApplicationProtocolSelector(selector);
+        }
+
+        @Override
+        public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+            return delegate.getHandshakeApplicationProtocolSelector();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Exports the invocation statistics Tomcat keeps per servlet and the JSP statistics of the Jasper JSP engine:
+ *
+ * - request count, error count and processing time per servlet
+ * - maximum processing time and load time per servlet
+ * - optionally the average processing time per servlet over the previous minute
+ * - number of loaded, reloaded and unloaded JSPs per context
+ *
+ * <p>
+ * As these statistics are maintained by Tomcat itself, they provide per servlet latency without adding a filter to
+ * the request path. Servlets can be selected by regular expressions on the servlet name; a servlet is exported when
+ * it matches the include pattern (if any) and does not match the exclude pattern (if any).
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatServletExports(false).register();
+ *   new TomcatServletExports(false, "jsp|.*Servlet", "default", true).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_servlet_request_total{host="localhost",context="/foo",servlet="fooServlet",} 33709.0
+ *     tomcat_servlet_error_total{host="localhost",context="/foo",servlet="fooServlet",} 12.0
+ *     tomcat_servlet_processing_seconds_total{host="localhost",context="/foo",servlet="fooServlet",} 1273.86
+ *     tomcat_servlet_processing_seconds_max{host="localhost",context="/foo",servlet="fooServlet",} 2.113
+ *     tomcat_servlet_processing_seconds_avg{host="localhost",context="/foo",servlet="fooServlet",} 0.034
+ *     tomcat_servlet_load_seconds{host="localhost",context="/foo",servlet="fooServlet",} 0.002
+ *     tomcat_jsp_loaded{host="localhost",context="/foo",} 27.0
+ *     tomcat_jsp_reload_total{host="localhost",context="/foo",} 3.0
+ *     tomcat_jsp_unload_total{host="localhost",context="/foo",} 0.0
+ * </pre>
+ * The average processing time is calculated from the difference in request count and processing time over the last
+ * complete minute of the wall clock, so all scrapers and the push thread see the same value. Counters do not decrease
+ * when a servlet or context is reloaded, see {@link CounterTracker}.
+ */
+
+public class TomcatServletExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatServletExports.class);
+    private static final String[] SERVLET_ATTRIBUTES = new String[]{"requestCount", "errorCount", "processingTime", "maxTime", "loadTime"};
+    private static final String[] JSP_ATTRIBUTES = new String[]{"jspCount", "jspReloadCount", "jspUnloadCount"};
+    private final ObjectName servletFilterName;
+    private final ObjectName jspFilterName;
+    private final Pattern includePattern;
+    private final Pattern excludePattern;
+    private final boolean intervalAverage;
+    private final CounterTracker tracker;
+
+    public TomcatServletExports(boolean embedded) {
+        this(embedded, null, null, false);
+    }
+
+    /**
+     * @param embedded        true if Tomcat runs embedded
+     * @param includePattern  regular expression servlet names must match to be exported, null to include all servlets
+     * @param excludePattern  regular expression of servlet names that are not exported, null to exclude none
+     * @param intervalAverage true to export the average processing time over the previous minute
+     */
+    public TomcatServletExports(boolean embedded, String includePattern, String excludePattern, boolean intervalAverage) {
+        this(embedded, includePattern, excludePattern, intervalAverage, new CounterTracker());
+    }
+
+    TomcatServletExports(boolean embedded, String includePattern, String excludePattern, boolean intervalAverage, CounterTracker tracker) {
+        String jmxDomain = embedded ? "Tomcat" : "Catalina";
+        try {
+            servletFilterName = new ObjectName(jmxDomain + ":j2eeType=Servlet,*");
+            jspFilterName = new ObjectName(jmxDomain + ":type=JspMonitor,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.includePattern = includePattern != null && !includePattern.isEmpty() ? Pattern.compile(includePattern) : null;
+        this.excludePattern = excludePattern != null && !excludePattern.isEmpty() ? Pattern.compile(excludePattern) : null;
+        this.intervalAverage = intervalAverage;
+        this.tracker = tracker;
+    }
+
+    private void addServletMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(servletFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("host", "context", "servlet");
+
+                CounterMetricFamily requestCounter = new CounterMetricFamily(
+                        "tomcat_servlet_request",
+                        "Number of requests processed by this servlet",
+                        labelNameList);
+
+                CounterMetricFamily errorCounter = new CounterMetricFamily(
+                        "tomcat_servlet_error",
+                        "Number of requests processed by this servlet that resulted in an error",
+                        labelNameList);
+
+                CounterMetricFamily processingTimeCounter = new CounterMetricFamily(
+                        "tomcat_servlet_processing_seconds",
+                        "Total time spent processing requests by this servlet",
+                        labelNameList);
+
+                GaugeMetricFamily maxTimeGauge = new GaugeMetricFamily(
+                        "tomcat_servlet_processing_seconds_max",
+                        "Maximum time spent processing a single request by this servlet",
+                        labelNameList);
+
+                GaugeMetricFamily averageTimeGauge = new GaugeMetricFamily(
+                        "tomcat_servlet_processing_seconds_avg",
+                        "Average time spent processing a request by this servlet over the previous minute",
+                        labelNameList);
+
+                GaugeMetricFamily loadTimeGauge = new GaugeMetricFamily(
+                        "tomcat_servlet_load_seconds",
+                        "Time it took to load and initialize this servlet",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    String servletName = mBeanName.getKeyProperty("name");
+                    String webModule = mBeanName.getKeyProperty("WebModule");
+                    if (servletName == null || webModule == null || !isIncluded(servletName)) {
+                        continue;
+                    }
+                    List<String> labelValueList = Arrays.asList(getHost(webModule), getContext(webModule), servletName);
+                    AttributeList attributeList = server.getAttributes(mBeanName, SERVLET_ATTRIBUTES);
+                    double requestCount = -1;
+                    double processingTime = -1;
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "requestCount":
+                                requestCount = ((Integer) attribute.getValue()).doubleValue();
+                                requestCounter.addMetric(labelValueList, tracker.counter("tomcat_servlet_request", labelValueList, requestCount));
+                                break;
+                            case "errorCount":
+                                errorCounter.addMetric(labelValueList, tracker.counter("tomcat_servlet_error", labelValueList, ((Integer) attribute.getValue()).doubleValue()));
+                                break;
+                            case "processingTime":
+                                processingTime = ((Long) attribute.getValue()).doubleValue() / 1000.0;
+                                processingTimeCounter.addMetric(labelValueList, tracker.counter("tomcat_servlet_processing_seconds", labelValueList, processingTime));
+                                break;
+                            case "maxTime":
+                                maxTimeGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue() / 1000.0);
+                                break;
+                            case "loadTime":
+                                loadTimeGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue() / 1000.0);
+                        }
+                    }
+                    if (intervalAverage && requestCount >= 0 && processingTime >= 0) {
+                        averageTimeGauge.addMetric(labelValueList, tracker.intervalAverage("tomcat_servlet_processing_seconds_avg", labelValueList, requestCount, processingTime));
+                    }
+                }
+
+                mfs.add(requestCounter);
+                mfs.add(errorCounter);
+                mfs.add(processingTimeCounter);
+                mfs.add(maxTimeGauge);
+                if (intervalAverage) {
+                    mfs.add(averageTimeGauge);
+                }
+                mfs.add(loadTimeGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    private void addJspMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(jspFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("host", "context");
+
+                GaugeMetricFamily jspCountGauge = new GaugeMetricFamily(
+                        "tomcat_jsp_loaded",
+                        "Number of JSPs that are currently loaded",
+                        labelNameList);
+
+                CounterMetricFamily jspReloadCounter = new CounterMetricFamily(
+                        "tomcat_jsp_reload",
+                        "Number of JSPs that have been reloaded",
+                        labelNameList);
+
+                CounterMetricFamily jspUnloadCounter = new CounterMetricFamily(
+                        "tomcat_jsp_unload",
+                        "Number of JSPs that have been unloaded",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    String webModule = mBeanName.getKeyProperty("WebModule");
+                    if (webModule == null) {
+                        continue;
+                    }
+                    List<String> labelValueList = Arrays.asList(getHost(webModule), getContext(webModule));
+                    AttributeList attributeList = server.getAttributes(mBeanName, JSP_ATTRIBUTES);
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "jspCount":
+                                jspCountGauge.addMetric(labelValueList, ((Number) attribute.getValue()).doubleValue());
+                                break;
+                            case "jspReloadCount":
+                                jspReloadCounter.addMetric(labelValueList, tracker.counter("tomcat_jsp_reload", labelValueList, ((Number) attribute.getValue()).doubleValue()));
+                                break;
+                            case "jspUnloadCount":
+                                jspUnloadCounter.addMetric(labelValueList, tracker.counter("tomcat_jsp_unload", labelValueList, ((Number) attribute.getValue()).doubleValue()));
+                        }
+                    }
+                }
+
+                mfs.add(jspCountGauge);
+                mfs.add(jspReloadCounter);
+                mfs.add(jspUnloadCounter);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    private boolean isIncluded(String servletName) {
+        if (includePattern != null && !includePattern.matcher(servletName).matches()) {
+            return false;
+        }
+        return excludePattern == null || !excludePattern.matcher(servletName).matches();
+    }
+
+    /**
+     * The WebModule key has the form //host/context, e.g. //localhost/foo or //localhost/ for the root context.
+     */
+    private String getHost(String webModule) {
+        String path = webModule.startsWith("//") ? webModule.substring(2) : webModule;
+        int index = path.indexOf('/');
+        return index < 0 ? path : path.substring(0, index);
+    }
+
+    private String getContext(String webModule) {
+        String path = webModule.startsWith("//") ? webModule.substring(2) : webModule;
+        int index = path.indexOf('/');
+        return index < 0 || index == path.length() - 1 ? "/" : path.substring(index);
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addServletMetrics(mfs);
+        addJspMetrics(mfs);
+        tracker.removeStale();
+        return mfs;
+    }
+}
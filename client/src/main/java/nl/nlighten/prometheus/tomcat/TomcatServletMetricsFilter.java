@@ -9,7 +9,13 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A servlet filter that can be configured in Tomcat's global web.xml and that provides the following metrics:
@@ -17,6 +23,9 @@ import java.io.IOException;
  * - A Histogram with response time distribution per context
  * - A Gauge with the number of concurrent request per context
  * - A Gauge with a the number of responses per context and status code
+ * - Optionally the number of stuck requests per context, see {@link TomcatStuckRequestDetector}
+ * - Optionally Histograms with the CPU time and the allocated bytes of requests per context
+ * - Optionally exemplars with the trace or request id of the request on the response time histogram
  *
  * <p>
  * If you are running Tomcat in the conventional non-embedded way you should add the client_tomcat jar and all its
@@ -33,6 +42,10 @@ import java.io.IOException;
  *     <param-name>buckets</param-name>
  *     <param-value>.01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30</param-value>
  *   </init-param>
+ *   <init-param>
+ *     <param-name>stuckRequestThreshold</param-name>
+ *     <param-value>60</param-value>
+ *   </init-param>
  * </filter>
  * }
  * </pre>
@@ -44,56 +57,103 @@ import java.io.IOException;
  *     servlet_request_seconds_bucket{"/foo", "GET", "0.1",} 1.0
  *     ....
  *     servlet_request_seconds_bucket{"/foo", "GET", "+Inf",} 1.0
- *     servlet_request_concurrent_total{"/foo",} 1.0
+ *     servlet_request_concurrent{"/foo",} 1.0
  *     servlet_response_status_total{"/foo", "200",} 1.0
  *  </pre>
+ *
+ * The optional stuckRequestThreshold (seconds), stuckRequestThreadDumps (maximum number of stack traces logged per
+ * interval, defaults to 0) and stuckRequestThreadDumpInterval (seconds, defaults to 300) parameters configure the
+ * detection of stuck requests.
+ * <p>
+ * The optional resourceSampleRate parameter (a fraction between 0 and 1) enables measuring the CPU time and allocated
+ * bytes of that fraction of the requests. The resourceSamplesPerSecond parameter limits the number of measured requests
+ * per second per context and the resourceTailThreshold parameter (ms) measures all requests that take longer, see
+ * {@link RequestSampler}. Sampled requests are weighted, so the histograms estimate the totals of all requests. The CPU
+ * time and allocated bytes are measured on the thread that invokes the filter, so work done by other threads, e.g. for
+ * asynchronous requests, is not included. The cpuBuckets and allocationBuckets parameters configure the buckets of
+ * these histograms.
+ * <p>
+ * The optional exemplarHeader, exemplarAttribute and exemplarMdcKey parameters configure where the trace or request id
+ * of a request is found, which is then recorded as exemplar of the response time histogram and of the query histograms
+ * of {@link TomcatJdbcInterceptor}. The exemplarLabel parameter sets the name of the exemplar label, defaults to
+ * trace_id. Exemplars are exposed in the OpenMetrics format.
+ * <pre>
+ *     servlet_request_cpu_seconds_bucket{"/foo", "0.01",} 71.0
+ *     ....
+ *     servlet_request_cpu_seconds_count{"/foo",} 98.0
+ *     servlet_request_allocated_bytes_bucket{"/foo", "1048576.0",} 88.0
+ *     ....
+ *     servlet_request_allocated_bytes_count{"/foo",} 98.0
+ * </pre>
+ * <p>
+ * The response time buckets, the stuck request threshold, the resource sample rate and exemplars can be changed while
+ * Tomcat is running through the nl.nlighten.prometheus:type=MetricsConfig MBean, or a properties file configured with
+ * the optional configFile parameter that is checked for changes every configFileInterval seconds (defaults to 10), see
+ * {@link MetricsConfig}.
+ * <p>
+ * The collectors are shared by the filters of all contexts through {@link MetricsHolder}. When a context stops, its
+ * series are removed, and when the client jar is deployed inside the web application, the collectors are unregistered.
  */
 public class TomcatServletMetricsFilter implements Filter {
     private static final String BUCKET_CONFIG_PARAM = "buckets";
-    private static Histogram servletLatency;
-    private static Gauge servletConcurrentRequest;
-    private static Gauge servletStatusCodes;
+    private static final String STUCK_THRESHOLD_CONFIG_PARAM = "stuckRequestThreshold";
+    private static final String STUCK_THREAD_DUMPS_CONFIG_PARAM = "stuckRequestThreadDumps";
+    private static final String STUCK_THREAD_DUMP_INTERVAL_CONFIG_PARAM = "stuckRequestThreadDumpInterval";
+    private static final String RESOURCE_SAMPLE_RATE_CONFIG_PARAM = "resourceSampleRate";
+    private static final String RESOURCE_SAMPLES_PER_SECOND_CONFIG_PARAM = "resourceSamplesPerSecond";
+    private static final String RESOURCE_TAIL_THRESHOLD_CONFIG_PARAM = "resourceTailThreshold";
+    private static final String CPU_BUCKET_CONFIG_PARAM = "cpuBuckets";
+    private static final String ALLOCATION_BUCKET_CONFIG_PARAM = "allocationBuckets";
+    private static final String EXEMPLAR_HEADER_CONFIG_PARAM = "exemplarHeader";
+    private static final String EXEMPLAR_ATTRIBUTE_CONFIG_PARAM = "exemplarAttribute";
+    private static final String EXEMPLAR_MDC_KEY_CONFIG_PARAM = "exemplarMdcKey";
+    private static final String EXEMPLAR_LABEL_CONFIG_PARAM = "exemplarLabel";
+    private static final String CONFIG_FILE_CONFIG_PARAM = "configFile";
+    private static final String CONFIG_FILE_INTERVAL_CONFIG_PARAM = "configFileInterval";
+    private static final String DEFAULT_BUCKETS = ".01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30";
+    private MetricsHolder holder;
+    private ServletMetrics metrics;
+    private String context;
 
     private static int UNDEFINED_HTTP_STATUS = 999;
+    private static final boolean ALLOCATED_BYTES_AVAILABLE = isAllocatedBytesAvailable();
 
     @Override
-    public void init(FilterConfig filterConfig) throws ServletException {
-        if (servletLatency == null) {
-            Histogram.Builder servletLatencyBuilder = Histogram.build()
-                    .name("servlet_request_seconds")
-                    .help("The time taken fulfilling servlet requests")
-                    .labelNames("context", "method");
-
-            if ((filterConfig.getInitParameter(BUCKET_CONFIG_PARAM) != null) && (!filterConfig.getInitParameter(BUCKET_CONFIG_PARAM).isEmpty())) {
-                String[] bucketParams = filterConfig.getInitParameter(BUCKET_CONFIG_PARAM).split(",");
-                double[] buckets = new double[bucketParams.length];
-                for (int i = 0; i < bucketParams.length; i++) {
-                    buckets[i] = Double.parseDouble(bucketParams[i].trim());
+    public void init(final FilterConfig filterConfig) throws ServletException {
+        String contextPath = filterConfig.getServletContext().getContextPath();
+        context = contextPath != null && !contextPath.isEmpty() ? contextPath : "/";
+        holder = MetricsHolder.attachInstance(this);
+        try {
+            metrics = holder.get(ServletMetrics.class.getName(), new MetricsHolder.Factory<ServletMetrics>() {
+                @Override
+                public ServletMetrics create(MetricsHolder holder) {
+                    return new ServletMetrics(filterConfig, holder);
                 }
-                servletLatencyBuilder.buckets(buckets);
-            } else {
-                servletLatencyBuilder.buckets(.01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30);
-            }
-
-            servletLatency = servletLatencyBuilder.register();
-
-            Gauge.Builder servletConcurrentRequestBuilder = Gauge.build()
-                    .name("servlet_request_concurrent_total")
-                    .help("Number of concurrent requests for given context.")
-                    .labelNames("context");
-
-            servletConcurrentRequest = servletConcurrentRequestBuilder.register();
-
-            Gauge.Builder servletStatusCodesBuilder = Gauge.build()
-                    .name("servlet_response_status_total")
-                    .help("Number of requests for given context and status code.")
-                    .labelNames("context", "status");
-
-            servletStatusCodes = servletStatusCodesBuilder.register();
+            });
+        } catch (RuntimeException e) {
+            holder.detach(this);
+            holder = null;
+            throw e;
+        }
+    }
 
+    /**
+     * The allocated bytes are measured with com.sun.management.ThreadMXBean, which is not available on every JVM.
+     */
+    private static boolean isAllocatedBytesAvailable() {
+        try {
+            Class.forName("com.sun.management.ThreadMXBean");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
         }
     }
 
+    private static String getNonEmptyInitParameter(FilterConfig filterConfig, String name) {
+        String value = filterConfig.getInitParameter(name);
+        return value != null && !value.trim().isEmpty() ? value.trim() : null;
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
         if (!(servletRequest instanceof HttpServletRequest)) {
@@ -105,25 +165,73 @@ public class TomcatServletMetricsFilter implements Filter {
 
         if (!request.isAsyncStarted()) {
             String context = getContext(request);
+            ServletMetrics metrics = this.metrics;
 
-            servletConcurrentRequest.labels(context).inc();
+            metrics.servletConcurrentRequest.labels(context).inc();
 
-            Histogram.Timer timer = servletLatency
-                    .labels(context, request.getMethod())
-                    .startTimer();
+            // the histogram is looked up when the request completes, so it is recorded with the buckets current then
+            long start = System.nanoTime();
 
+            RequestExemplars exemplars = metrics.activeRequestExemplars;
+            if (exemplars != null) {
+                exemplars.begin(request);
+            }
+            TomcatStuckRequestDetector detector = metrics.activeStuckRequestDetector;
+            Object stuckRequestHandle = detector != null ? detector.start(context, request.getRequestURI()) : null;
+            RequestSampler sampler = metrics.resourceSampler;
+            double resourceWeight = sampler != null ? sampler.sample(context) : 0;
+            boolean measureResources = resourceWeight > 0 || (sampler != null && sampler.isTailBiased());
+            ThreadMXBean threadMXBean = metrics.threadMXBean;
+            WeightedHistogram servletCpuTime = metrics.servletCpuTime;
+            WeightedHistogram servletAllocatedBytes = metrics.servletAllocatedBytes;
+            long threadId = Thread.currentThread().getId();
+            long startCpuTime = measureResources && servletCpuTime != null ? threadMXBean.getCurrentThreadCpuTime() : -1;
+            long startAllocatedBytes = measureResources && servletAllocatedBytes != null ? ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadId) : -1;
             try {
                 filterChain.doFilter(servletRequest, servletResponse);
             } finally {
-                timer.observeDuration();
-                servletConcurrentRequest.labels(context).dec();
-                servletStatusCodes.labels(context, Integer.toString(getStatus((HttpServletResponse) servletResponse))).inc();
+                if (measureResources) {
+                    resourceWeight = sampler.weight(resourceWeight, System.nanoTime() - start);
+                    if (resourceWeight > 0 && startCpuTime >= 0) {
+                        servletCpuTime.labels(context).observe((threadMXBean.getCurrentThreadCpuTime() - startCpuTime) / 1e9, resourceWeight);
+                    }
+                    if (resourceWeight > 0 && startAllocatedBytes >= 0) {
+                        servletAllocatedBytes.labels(context).observe(((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadId) - startAllocatedBytes, resourceWeight);
+                    }
+                }
+                if (stuckRequestHandle != null) {
+                    detector.end(stuckRequestHandle);
+                }
+                try {
+                    metrics.servletLatency.labels(context, request.getMethod())
+                            .observeWithExemplar((System.nanoTime() - start) / 1e9, getExemplarLabels(exemplars, request));
+                } finally {
+                    metrics.servletConcurrentRequest.labels(context).dec();
+                    metrics.servletStatusCodes.labels(context, Integer.toString(getStatus((HttpServletResponse) servletResponse))).inc();
+                }
             }
         } else {
             filterChain.doFilter(servletRequest, servletResponse);
         }
     }
 
+    /**
+     * Returns the exemplar labels of the request, or null if exemplars are disabled or the id can not be resolved, so
+     * the request is always recorded.
+     */
+    private String[] getExemplarLabels(RequestExemplars exemplars, HttpServletRequest request) {
+        if (exemplars == null) {
+            return null;
+        }
+        try {
+            return exemplars.labels(request);
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            exemplars.end();
+        }
+    }
+
     private int getStatus(HttpServletResponse response) {
         try {
             return response.getStatus();
@@ -140,8 +248,231 @@ public class TomcatServletMetricsFilter implements Filter {
         }
     }
 
+    /**
+     * Removes the series of the context of this filter and detaches from the {@link MetricsHolder}.
+     */
     @Override
     public void destroy() {
-        // NOOP
+        if (metrics != null) {
+            metrics.removeContext(context);
+            holder.detach(this);
+            holder = null;
+            metrics = null;
+        }
+    }
+
+    /**
+     * The collectors and settings shared by the filters of all contexts.
+     */
+    private static class ServletMetrics implements Closeable {
+        private final ReconfigurableHistogram servletLatency;
+        private final Gauge servletConcurrentRequest;
+        private final Counter servletStatusCodes;
+        private final MetricsHolder holder;
+        private TomcatStuckRequestDetector stuckRequestDetector;
+        private volatile TomcatStuckRequestDetector activeStuckRequestDetector;
+        private final int stuckRequestThreadDumps;
+        private final long stuckRequestThreadDumpInterval;
+        private volatile WeightedHistogram servletCpuTime;
+        private volatile WeightedHistogram servletAllocatedBytes;
+        private volatile RequestSampler resourceSampler;
+        private final double resourceSamplesPerSecond;
+        private final long resourceTailThresholdMillis;
+        private final double[] cpuBuckets;
+        private final double[] allocationBuckets;
+        private volatile ThreadMXBean threadMXBean;
+        private RequestExemplars requestExemplars;
+        private volatile RequestExemplars activeRequestExemplars;
+
+        ServletMetrics(FilterConfig filterConfig, MetricsHolder holder) {
+            this.holder = holder;
+            MetricsConfig config = MetricsConfig.getInstance(holder);
+            // an invalid exemplar label is rejected before any collector is registered
+            String exemplarHeader = getNonEmptyInitParameter(filterConfig, EXEMPLAR_HEADER_CONFIG_PARAM);
+            String exemplarAttribute = getNonEmptyInitParameter(filterConfig, EXEMPLAR_ATTRIBUTE_CONFIG_PARAM);
+            String exemplarMdcKey = getNonEmptyInitParameter(filterConfig, EXEMPLAR_MDC_KEY_CONFIG_PARAM);
+            if (exemplarHeader != null || exemplarAttribute != null || exemplarMdcKey != null) {
+                String exemplarLabel = getNonEmptyInitParameter(filterConfig, EXEMPLAR_LABEL_CONFIG_PARAM);
+                requestExemplars = new RequestExemplars(exemplarLabel != null ? exemplarLabel : "trace_id",
+                        exemplarHeader, exemplarAttribute, exemplarMdcKey);
+            }
+
+            String buckets = getNonEmptyInitParameter(filterConfig, BUCKET_CONFIG_PARAM);
+            servletLatency = holder.register(new ReconfigurableHistogram(
+                    "servlet_request_seconds",
+                    "The time taken fulfilling servlet requests",
+                    MetricsConfig.parseBuckets(config.initialize(MetricsConfig.SERVLET_BUCKETS, buckets != null ? buckets : DEFAULT_BUCKETS)),
+                    "context", "method"));
+
+            Gauge.Builder servletConcurrentRequestBuilder = Gauge.build()
+                    .name("servlet_request_concurrent")
+                    .help("Number of concurrent requests for given context.")
+                    .labelNames("context");
+
+            servletConcurrentRequest = holder.register(servletConcurrentRequestBuilder.create());
+
+            Counter.Builder servletStatusCodesBuilder = Counter.build()
+                    .name("servlet_response_status")
+                    .help("Number of requests for given context and status code.")
+                    .labelNames("context", "status");
+
+            servletStatusCodes = holder.register(servletStatusCodesBuilder.create());
+
+            String threadDumps = getNonEmptyInitParameter(filterConfig, STUCK_THREAD_DUMPS_CONFIG_PARAM);
+            String threadDumpInterval = getNonEmptyInitParameter(filterConfig, STUCK_THREAD_DUMP_INTERVAL_CONFIG_PARAM);
+            stuckRequestThreadDumps = threadDumps == null ? 0 : Integer.parseInt(threadDumps);
+            stuckRequestThreadDumpInterval = threadDumpInterval == null ? 300 : Long.parseLong(threadDumpInterval);
+
+            String sampleRate = getNonEmptyInitParameter(filterConfig, RESOURCE_SAMPLE_RATE_CONFIG_PARAM);
+            String samplesPerSecond = getNonEmptyInitParameter(filterConfig, RESOURCE_SAMPLES_PER_SECOND_CONFIG_PARAM);
+            String tailThreshold = getNonEmptyInitParameter(filterConfig, RESOURCE_TAIL_THRESHOLD_CONFIG_PARAM);
+            resourceSamplesPerSecond = samplesPerSecond == null ? 0 : Double.parseDouble(samplesPerSecond);
+            resourceTailThresholdMillis = tailThreshold == null ? 0 : Long.parseLong(tailThreshold);
+            if (resourceSamplesPerSecond > 0 && sampleRate == null) {
+                // only limited by the number of samples per second
+                sampleRate = "1";
+            }
+            String cpuBucketConfig = getNonEmptyInitParameter(filterConfig, CPU_BUCKET_CONFIG_PARAM);
+            cpuBuckets = cpuBucketConfig != null
+                    ? MetricsConfig.parseBuckets(cpuBucketConfig)
+                    : new double[]{.001, .005, .01, .025, .05, .1, .25, .5, 1, 2.5};
+            String allocationBucketConfig = getNonEmptyInitParameter(filterConfig, ALLOCATION_BUCKET_CONFIG_PARAM);
+            allocationBuckets = allocationBucketConfig != null
+                    ? MetricsConfig.parseBuckets(allocationBucketConfig)
+                    : new double[]{16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864, 268435456};
+
+            // the settings are only changed while holding the lock of the config, see MetricsConfig.set
+            synchronized (config) {
+                String stuckThreshold = config.initialize(MetricsConfig.STUCK_REQUEST_THRESHOLD, getNonEmptyInitParameter(filterConfig, STUCK_THRESHOLD_CONFIG_PARAM));
+                if (stuckThreshold != null) {
+                    setStuckRequestThreshold(Long.parseLong(stuckThreshold));
+                }
+                setResourceSampleRate(Double.parseDouble(config.initialize(MetricsConfig.RESOURCE_SAMPLE_RATE, sampleRate != null ? sampleRate : "0")));
+                if (requestExemplars != null) {
+                    setExemplarsEnabled(Boolean.parseBoolean(config.initialize(MetricsConfig.EXEMPLARS, "true")));
+                }
+
+                config.addListener(new MetricsConfig.Listener() {
+                    @Override
+                    public void configChanged(String key, String value) {
+                        if (MetricsConfig.SERVLET_BUCKETS.equals(key)) {
+                            servletLatency.setBuckets(MetricsConfig.parseBuckets(value));
+                        } else if (MetricsConfig.STUCK_REQUEST_THRESHOLD.equals(key)) {
+                            setStuckRequestThreshold(Long.parseLong(value));
+                        } else if (MetricsConfig.RESOURCE_SAMPLE_RATE.equals(key)) {
+                            setResourceSampleRate(Double.parseDouble(value));
+                        } else if (MetricsConfig.EXEMPLARS.equals(key)) {
+                            setExemplarsEnabled(Boolean.parseBoolean(value));
+                        }
+                    }
+                });
+            }
+
+            String configFile = getNonEmptyInitParameter(filterConfig, CONFIG_FILE_CONFIG_PARAM);
+            if (configFile != null) {
+                String interval = getNonEmptyInitParameter(filterConfig, CONFIG_FILE_INTERVAL_CONFIG_PARAM);
+                config.watch(configFile, TimeUnit.SECONDS.toMillis(interval == null ? 10 : Long.parseLong(interval)));
+            }
+        }
+
+        /**
+         * Changes the stuck request threshold, creating the detector when first enabled. A threshold of 0 or less stops
+         * tracking new requests.
+         */
+        private void setStuckRequestThreshold(long thresholdSeconds) {
+            if (thresholdSeconds <= 0) {
+                activeStuckRequestDetector = null;
+                return;
+            }
+            if (stuckRequestDetector == null) {
+                stuckRequestDetector = holder.register(new TomcatStuckRequestDetector(thresholdSeconds, stuckRequestThreadDumps, stuckRequestThreadDumpInterval));
+            } else {
+                stuckRequestDetector.setThresholdSeconds(thresholdSeconds);
+            }
+            activeStuckRequestDetector = stuckRequestDetector;
+        }
+
+        /**
+         * Changes the fraction of requests of which the resources are measured, creating the histograms when first
+         * enabled. A rate of 0 without tail threshold stops measuring.
+         */
+        private void setResourceSampleRate(double rate) {
+            if (rate <= 0 && resourceTailThresholdMillis <= 0) {
+                resourceSampler = null;
+                return;
+            }
+            if (threadMXBean == null) {
+                ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+                if (mxBean.isCurrentThreadCpuTimeSupported()) {
+                    if (!mxBean.isThreadCpuTimeEnabled()) {
+                        mxBean.setThreadCpuTimeEnabled(true);
+                    }
+                    servletCpuTime = holder.register(new WeightedHistogram(
+                            "servlet_request_cpu_seconds",
+                            "The CPU time used by the request processing thread for servlet requests, estimated from sampled requests",
+                            Collections.singletonList("context"),
+                            cpuBuckets));
+                }
+                if (ALLOCATED_BYTES_AVAILABLE && mxBean instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemorySupported()) {
+                    if (!((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemoryEnabled()) {
+                        ((com.sun.management.ThreadMXBean) mxBean).setThreadAllocatedMemoryEnabled(true);
+                    }
+                    servletAllocatedBytes = holder.register(new WeightedHistogram(
+                            "servlet_request_allocated_bytes",
+                            "The bytes allocated by the request processing thread for servlet requests, estimated from sampled requests",
+                            Collections.singletonList("context"),
+                            allocationBuckets));
+                }
+                threadMXBean = mxBean;
+            }
+            resourceSampler = new RequestSampler(rate, resourceSamplesPerSecond, resourceTailThresholdMillis);
+        }
+
+        private void setExemplarsEnabled(boolean enabled) {
+            activeRequestExemplars = enabled ? requestExemplars : null;
+            if (enabled) {
+                RequestExemplars.activate(requestExemplars);
+            } else {
+                RequestExemplars.deactivate(requestExemplars);
+            }
+        }
+
+        /**
+         * Called when the holder is closed, so the JDBC interceptor no longer uses the exemplar configuration of a
+         * stopped deployment.
+         */
+        @Override
+        public void close() {
+            RequestExemplars.deactivate(requestExemplars);
+        }
+
+        /**
+         * Removes the series of a stopped context, so the collectors do not keep growing across redeploys.
+         */
+        void removeContext(String context) {
+            for (List<String> labelValues : MetricsHolder.seriesWithLabel(servletLatency, "context", context)) {
+                servletLatency.remove(labelValues.toArray(new String[0]));
+            }
+            for (List<String> labelValues : MetricsHolder.seriesWithLabel(servletConcurrentRequest, "context", context)) {
+                servletConcurrentRequest.remove(labelValues.toArray(new String[0]));
+            }
+            for (List<String> labelValues : MetricsHolder.seriesWithLabel(servletStatusCodes, "context", context)) {
+                servletStatusCodes.remove(labelValues.toArray(new String[0]));
+            }
+            if (servletCpuTime != null) {
+                servletCpuTime.remove(context);
+            }
+            if (servletAllocatedBytes != null) {
+                servletAllocatedBytes.remove(context);
+            }
+            if (stuckRequestDetector != null) {
+                stuckRequestDetector.removeContext(context);
+            }
+            RequestSampler sampler = resourceSampler;
+            if (sampler != null) {
+                sampler.removeContext(context);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,310 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the memory footprint of http sessions by periodically sampling sessions of each web application on a
+ * background thread. The size of a session is estimated as the serialized size of its attributes; attributes that are
+ * not serializable are not included in the size, but counted separately.
+ * <p>
+ * Each sampling cycle inspects at most a fixed number of sessions per context and stops as soon as the cycle has used
+ * its CPU time budget, so the cost of this collector is bounded regardless of the number of sessions. The budget is
+ * shared evenly by the contexts not yet sampled in the cycle, and each cycle starts with the next context, so no
+ * context is starved when the budget runs out. Sessions are picked at random from {@link Manager#findSessions()},
+ * which only copies the references to the sessions. Scrapes only read the results of the last cycle.
+ *
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   // sample up to 100 sessions per context every 60 seconds using at most 100ms CPU time per cycle
+ *   new TomcatSessionSizeExports(false, 60, 100, 100).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_session_size_bytes_bucket{host="localhost",context="/foo",le="1024.0",} 312.0
+ *     ....
+ *     tomcat_session_size_bytes_bucket{host="localhost",context="/foo",le="+Inf",} 400.0
+ *     tomcat_session_size_bytes_count{host="localhost",context="/foo",} 400.0
+ *     tomcat_session_size_bytes_sum{host="localhost",context="/foo",} 1843200.0
+ *     tomcat_session_size_estimated_bytes{host="localhost",context="/foo",} 4.0378E8
+ *     tomcat_session_size_sampled{host="localhost",context="/foo",} 100.0
+ *     tomcat_session_size_unserializable_attributes{host="localhost",context="/foo",} 0.0
+ *     tomcat_session_size_cycle_cpu_seconds 0.043
+ * </pre>
+ */
+
+public class TomcatSessionSizeExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatSessionSizeExports.class);
+    private final ObjectName webModuleFilterName;
+    private final int maxSamplesPerContext;
+    private final long cpuBudgetNanos;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final Histogram sessionSizeStats;
+    private final Map<List<String>, double[]> contextEstimates = new ConcurrentHashMap<List<String>, double[]>();
+    private volatile double lastCycleCpuSeconds;
+    private int cycle;
+
+    /**
+     * @param embedded             true if Tomcat runs embedded
+     * @param intervalSeconds      the interval between sampling cycles
+     * @param maxSamplesPerContext the maximum number of sessions sampled per context in a cycle
+     * @param cpuBudgetMillis      the maximum CPU time (or wall clock time if CPU time is not available) used by a cycle
+     */
+    public TomcatSessionSizeExports(boolean embedded, long intervalSeconds, int maxSamplesPerContext, long cpuBudgetMillis) {
+        try {
+            webModuleFilterName = new ObjectName((embedded ? "Tomcat" : "Catalina") + ":j2eeType=WebModule,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.maxSamplesPerContext = maxSamplesPerContext;
+        this.cpuBudgetNanos = TimeUnit.MILLISECONDS.toNanos(cpuBudgetMillis);
+        this.sessionSizeStats = Histogram.build()
+                .name("tomcat_session_size_bytes")
+                .help("Estimated size of sampled sessions")
+                .labelNames("host", "context")
+                .exponentialBuckets(256, 4, 8)
+                .create();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tomcat-exporter-session-sampler");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background sampling of sessions.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Runs a single sampling cycle over all contexts.
+     */
+    void sample() {
+        long cycleStart = currentTime();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            List<ObjectName> webModules = new ArrayList<ObjectName>(server.queryNames(webModuleFilterName, null));
+            Collections.sort(webModules);
+            List<Manager> managers = new ArrayList<Manager>();
+            List<List<String>> labelValueLists = new ArrayList<List<String>>();
+            for (ObjectName webModule : webModules) {
+                Object manager = server.getAttribute(webModule, "manager");
+                String name = webModule.getKeyProperty("name");
+                if (manager instanceof Manager && name != null) {
+                    managers.add((Manager) manager);
+                    labelValueLists.add(Arrays.asList(getHost(name), getContext(name)));
+                }
+            }
+            contextEstimates.keySet().retainAll(new HashSet<List<String>>(labelValueLists));
+
+            int contexts = managers.size();
+            int first = contexts > 0 ? cycle++ % contexts : 0;
+            for (int i = 0; i < contexts; i++) {
+                long now = currentTime();
+                long remaining = cycleStart + cpuBudgetNanos - now;
+                if (remaining <= 0) {
+                    break;
+                }
+                int index = (first + i) % contexts;
+                sampleContext(managers.get(index), labelValueLists.get(index), now + remaining / (contexts - i));
+            }
+        } catch (Exception e) {
+            log.error("Error sampling sessions:" + e.getMessage());
+        }
+        lastCycleCpuSeconds = (currentTime() - cycleStart) / 1.0E9;
+    }
+
+    /**
+     * Picks at most maxSamplesPerContext sessions at random, so large contexts are not biased towards the oldest
+     * sessions, and stops when the context has used its share of the budget.
+     */
+    private void sampleContext(Manager manager, List<String> labelValueList, long deadline) {
+        Session[] sessions = manager.findSessions();
+        if (sessions.length == 0) {
+            contextEstimates.put(labelValueList, new double[]{0, 0, 0});
+            return;
+        }
+        Histogram.Child child = sessionSizeStats.labels(labelValueList.toArray(new String[0]));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SessionSample sample = new SessionSample();
+        int samples = Math.min(maxSamplesPerContext, sessions.length);
+        for (int i = 0; i < samples && currentTime() <= deadline; i++) {
+            // partial Fisher-Yates shuffle, so no session is picked twice
+            int index = i + random.nextInt(sessions.length - i);
+            Session session = sessions[index];
+            sessions[index] = sessions[i];
+            long size = estimateSize(session, sample);
+            if (size >= 0) {
+                child.observe(size);
+                sample.totalSize += size;
+                sample.sampled++;
+            }
+        }
+        if (sample.sampled > 0) {
+            contextEstimates.put(labelValueList, new double[]{
+                    (double) sample.totalSize / sample.sampled * sessions.length, sample.sampled, sample.unserializable});
+        }
+    }
+
+    /**
+     * Returns the sum of the serialized size of all attributes of the session, or -1 if the session is no longer valid.
+     * Attributes that can not be serialized are counted in the sample instead.
+     */
+    private long estimateSize(Session session, SessionSample sample) {
+        HttpSession httpSession = session.getSession();
+        if (httpSession == null || !session.isValid()) {
+            return -1;
+        }
+        long size = 0;
+        int unserializable = 0;
+        try {
+            Enumeration<String> names = httpSession.getAttributeNames();
+            while (names.hasMoreElements()) {
+                String name = names.nextElement();
+                Object value = httpSession.getAttribute(name);
+                size += name.length() * 2;
+                if (value != null) {
+                    long valueSize = serializedSize(value);
+                    if (valueSize >= 0) {
+                        size += valueSize;
+                    } else {
+                        unserializable++;
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            // session was invalidated while sampling
+            return -1;
+        }
+        sample.unserializable += unserializable;
+        return size;
+    }
+
+    /**
+     * Returns the serialized size of the value, or -1 if it can not be serialized.
+     */
+    private long serializedSize(Object value) {
+        CountingOutputStream counter = new CountingOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(counter);
+            out.writeObject(value);
+            out.close();
+            return counter.count;
+        } catch (IOException | RuntimeException e) {
+            // not serializable or modified concurrently by the application
+            return -1;
+        }
+    }
+
+    private long currentTime() {
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * The WebModule name has the form //host/context, e.g. //localhost/foo or //localhost/ for the root context.
+     */
+    private String getHost(String webModule) {
+        String path = webModule.startsWith("//") ? webModule.substring(2) : webModule;
+        int index = path.indexOf('/');
+        return index < 0 ? path : path.substring(0, index);
+    }
+
+    private String getContext(String webModule) {
+        String path = webModule.startsWith("//") ? webModule.substring(2) : webModule;
+        int index = path.indexOf('/');
+        return index < 0 || index == path.length() - 1 ? "/" : path.substring(index);
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        mfs.addAll(sessionSizeStats.collect());
+
+        List<String> labelNameList = Arrays.asList("host", "context");
+        GaugeMetricFamily estimatedSizeGauge = new GaugeMetricFamily(
+                "tomcat_session_size_estimated_bytes",
+                "Estimated total size of all sessions, extrapolated from the last sampling cycle",
+                labelNameList);
+        GaugeMetricFamily sampledGauge = new GaugeMetricFamily(
+                "tomcat_session_size_sampled",
+                "Number of sessions sampled in the last sampling cycle",
+                labelNameList);
+        GaugeMetricFamily unserializableGauge = new GaugeMetricFamily(
+                "tomcat_session_size_unserializable_attributes",
+                "Number of attributes of the sessions sampled in the last sampling cycle that could not be serialized and are not included in the size",
+                labelNameList);
+        for (Map.Entry<List<String>, double[]> entry : contextEstimates.entrySet()) {
+            estimatedSizeGauge.addMetric(entry.getKey(), entry.getValue()[0]);
+            sampledGauge.addMetric(entry.getKey(), entry.getValue()[1]);
+            unserializableGauge.addMetric(entry.getKey(), entry.getValue()[2]);
+        }
+        mfs.add(estimatedSizeGauge);
+        mfs.add(sampledGauge);
+        mfs.add(unserializableGauge);
+        mfs.add(new GaugeMetricFamily(
+                "tomcat_session_size_cycle_cpu_seconds",
+                "CPU time used by the last session sampling cycle",
+                lastCycleCpuSeconds));
+        return mfs;
+    }
+
+    private static class SessionSample {
+        private long totalSize;
+        private int sampled;
+        private int unserializable;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
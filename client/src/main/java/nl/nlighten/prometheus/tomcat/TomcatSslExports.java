@@ -0,0 +1,274 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.file.ConfigFileLoader;
+import org.apache.tomcat.util.net.SSLContext;
+import org.apache.tomcat.util.net.SSLHostConfig;
+import org.apache.tomcat.util.net.SSLHostConfigCertificate;
+import org.apache.tomcat.util.net.openssl.OpenSSLSessionContext;
+import org.apache.tomcat.util.net.openssl.OpenSSLSessionStats;
+
+import javax.management.*;
+import javax.net.ssl.SSLSessionContext;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Exports metrics of the SSL host configurations of each SSL enabled connector:
+ *
+ * - capacity and timeout of the TLS session cache
+ * - size, hits, misses, timeouts and cache full events of the session cache (OpenSSL only)
+ * - expiry time of the configured certificates
+ *
+ * <p>
+ * Handshake counts and durations are available through {@link TomcatSSLImplementation}. For the OpenSSL implementation
+ * the session cache hit ratio can be derived from the hit and miss counters exported by this collector. The JSSE
+ * implementation only exposes the size of its session cache by listing all session ids, which is too expensive to do
+ * on each scrape, so for JSSE only the configured capacity and timeout are exported.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatSslExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_tls_session_cache_entries{name="https-openssl-nio-8443",host="_default_",} 1622.0
+ *     tomcat_tls_session_cache_max{name="https-jsse-nio-8443",host="_default_",} 20480.0
+ *     tomcat_tls_session_timeout_seconds{name="https-jsse-nio-8443",host="_default_",} 86400.0
+ *     tomcat_tls_session_cache_hits_total{name="https-openssl-nio-8443",host="_default_",} 1485.0
+ *     tomcat_tls_session_cache_misses_total{name="https-openssl-nio-8443",host="_default_",} 22.0
+ *     tomcat_tls_certificate_expiry_timestamp_seconds{name="https-jsse-nio-8443",host="_default_",type="RSA",} 1.7356896E9
+ * </pre>
+ * Certificates are read from the configured keystore or certificate file once per SSL context, so they are read again
+ * after the SSL configuration of a connector has been reloaded.
+ * <p>
+ * The SSL host configurations are only looked up on the connectors that have SSLHostConfig MBeans, and the lookup is
+ * reused until these MBeans change, or for at most a minute in case a configuration was replaced under the same name.
+ */
+
+public class TomcatSslExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatSslExports.class);
+    private static final long LOOKUP_TTL_MILLIS = 60000;
+    private final String jmxDomain;
+    private final ObjectName sslHostConfigFilterName;
+    private final Map<SSLContext, Double> certificateExpiry = new WeakHashMap<SSLContext, Double>();
+    private Set<ObjectName> lookupNames = Collections.emptySet();
+    private Map<String, SSLHostConfig[]> lookup = Collections.emptyMap();
+    private long lookupTime;
+
+    public TomcatSslExports(boolean embedded) {
+        jmxDomain = embedded ? "Tomcat" : "Catalina";
+        try {
+            sslHostConfigFilterName = new ObjectName(jmxDomain + ":type=SSLHostConfig,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the SSL host configurations per connector name, looking them up again when the SSLHostConfig MBeans
+     * have changed or the previous lookup has expired.
+     */
+    private synchronized Map<String, SSLHostConfig[]> getSslHostConfigs(MBeanServer server) throws JMException {
+        Set<ObjectName> names = server.queryNames(sslHostConfigFilterName, null);
+        long now = System.currentTimeMillis();
+        if (names.equals(lookupNames) && now - lookupTime < LOOKUP_TTL_MILLIS) {
+            return lookup;
+        }
+        Set<String> threadPools = new TreeSet<String>();
+        for (ObjectName name : names) {
+            threadPools.add(name.getKeyProperty("ThreadPool"));
+        }
+        Map<String, SSLHostConfig[]> sslHostConfigs = new LinkedHashMap<String, SSLHostConfig[]>();
+        for (String threadPool : threadPools) {
+            Object result = server.invoke(new ObjectName(jmxDomain + ":type=ThreadPool,name=" + threadPool), "findSslHostConfigs", null, null);
+            if (result instanceof SSLHostConfig[]) {
+                sslHostConfigs.put(threadPool.replaceAll("[\"\\\\]", ""), (SSLHostConfig[]) result);
+            }
+        }
+        lookupNames = names;
+        lookup = sslHostConfigs;
+        lookupTime = now;
+        return sslHostConfigs;
+    }
+
+    private void addSslMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            Map<String, SSLHostConfig[]> sslHostConfigsByName = getSslHostConfigs(ManagementFactory.getPlatformMBeanServer());
+
+            if (sslHostConfigsByName.size() > 0) {
+                List<String> labelNameList = Arrays.asList("name", "host");
+
+                GaugeMetricFamily cacheEntriesGauge = new GaugeMetricFamily(
+                        "tomcat_tls_session_cache_entries",
+                        "Number of sessions in the TLS session cache",
+                        labelNameList);
+
+                GaugeMetricFamily cacheMaxGauge = new GaugeMetricFamily(
+                        "tomcat_tls_session_cache_max",
+                        "Maximum number of sessions in the TLS session cache, 0 if unlimited",
+                        labelNameList);
+
+                GaugeMetricFamily sessionTimeoutGauge = new GaugeMetricFamily(
+                        "tomcat_tls_session_timeout_seconds",
+                        "Time after which cached TLS sessions expire, 0 if unlimited",
+                        labelNameList);
+
+                CounterMetricFamily cacheHitsCounter = new CounterMetricFamily(
+                        "tomcat_tls_session_cache_hits",
+                        "Number of TLS sessions successfully reused from the session cache",
+                        labelNameList);
+
+                CounterMetricFamily cacheMissesCounter = new CounterMetricFamily(
+                        "tomcat_tls_session_cache_misses",
+                        "Number of TLS sessions requested by clients that were not found in the session cache",
+                        labelNameList);
+
+                CounterMetricFamily cacheTimeoutsCounter = new CounterMetricFamily(
+                        "tomcat_tls_session_cache_timeouts",
+                        "Number of TLS sessions requested by clients that were found in the session cache but had expired",
+                        labelNameList);
+
+                CounterMetricFamily cacheFullCounter = new CounterMetricFamily(
+                        "tomcat_tls_session_cache_full",
+                        "Number of TLS sessions removed from the session cache because it was full",
+                        labelNameList);
+
+                GaugeMetricFamily certificateExpiryGauge = new GaugeMetricFamily(
+                        "tomcat_tls_certificate_expiry_timestamp_seconds",
+                        "Time at which the certificate expires, in seconds since the epoch",
+                        Arrays.asList("name", "host", "type"));
+
+                for (Map.Entry<String, SSLHostConfig[]> entry : sslHostConfigsByName.entrySet()) {
+                    String name = entry.getKey();
+                    for (SSLHostConfig sslHostConfig : entry.getValue()) {
+                        List<String> labelValueList = Arrays.asList(name, sslHostConfig.getHostName());
+                        long entries = 0;
+                        long maxEntries = 0;
+                        long timeout = 0;
+                        OpenSSLSessionStats stats = null;
+                        boolean initialized = false;
+                        for (SSLHostConfigCertificate certificate : sslHostConfig.getCertificates()) {
+                            SSLContext sslContext = certificate.getSslContext();
+                            if (sslContext == null) {
+                                continue;
+                            }
+                            initialized = true;
+                            // with multiple certificates each certificate has its own SSL context but the OpenSSL
+                            // implementation shares the session cache between them
+                            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+                            if (sessionContext instanceof OpenSSLSessionContext) {
+                                stats = ((OpenSSLSessionContext) sessionContext).stats();
+                                entries = stats.number();
+                                maxEntries = sessionContext.getSessionCacheSize();
+                                timeout = sessionContext.getSessionTimeout();
+                            } else if (sessionContext != null) {
+                                maxEntries += sessionContext.getSessionCacheSize();
+                                timeout = sessionContext.getSessionTimeout();
+                            }
+                            Double expiry = getCertificateExpiry(sslContext, certificate);
+                            if (expiry != null) {
+                                certificateExpiryGauge.addMetric(Arrays.asList(name, sslHostConfig.getHostName(), certificate.getType().name()), expiry);
+                            }
+                        }
+                        if (!initialized) {
+                            continue;
+                        }
+                        cacheMaxGauge.addMetric(labelValueList, maxEntries);
+                        sessionTimeoutGauge.addMetric(labelValueList, timeout);
+                        if (stats != null) {
+                            cacheEntriesGauge.addMetric(labelValueList, entries);
+                            cacheHitsCounter.addMetric(labelValueList, stats.hits());
+                            cacheMissesCounter.addMetric(labelValueList, stats.misses());
+                            cacheTimeoutsCounter.addMetric(labelValueList, stats.timeouts());
+                            cacheFullCounter.addMetric(labelValueList, stats.cacheFull());
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        cacheEntriesGauge,
+                        cacheMaxGauge,
+                        sessionTimeoutGauge,
+                        cacheHitsCounter,
+                        cacheMissesCounter,
+                        cacheTimeoutsCounter,
+                        cacheFullCounter,
+                        certificateExpiryGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the expiry time in seconds of the certificate used by the given SSL context, or null if it is unknown.
+     * Certificates chains contain the server certificate first, so only the first certificate is considered.
+     */
+    private Double getCertificateExpiry(SSLContext sslContext, SSLHostConfigCertificate certificate) {
+        synchronized (certificateExpiry) {
+            if (certificateExpiry.containsKey(sslContext)) {
+                return certificateExpiry.get(sslContext);
+            }
+        }
+        Double expiry = null;
+        try {
+            X509Certificate x509Certificate = null;
+            if (certificate.getCertificateFile() != null) {
+                try (InputStream is = ConfigFileLoader.getSource().getResource(certificate.getCertificateFile()).getInputStream()) {
+                    Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509").generateCertificates(is);
+                    if (!certificates.isEmpty() && certificates.iterator().next() instanceof X509Certificate) {
+                        x509Certificate = (X509Certificate) certificates.iterator().next();
+                    }
+                }
+            } else {
+                KeyStore keyStore = certificate.getCertificateKeystore();
+                if (keyStore != null) {
+                    String alias = certificate.getCertificateKeyAlias();
+                    if (alias == null) {
+                        // Tomcat uses the first key entry when no alias has been configured
+                        for (String candidate : Collections.list(keyStore.aliases())) {
+                            if (keyStore.isKeyEntry(candidate)) {
+                                alias = candidate;
+                                break;
+                            }
+                        }
+                    }
+                    Certificate keyStoreCertificate = alias != null ? keyStore.getCertificate(alias) : null;
+                    if (keyStoreCertificate instanceof X509Certificate) {
+                        x509Certificate = (X509Certificate) keyStoreCertificate;
+                    }
+                }
+            }
+            if (x509Certificate != null) {
+                expiry = x509Certificate.getNotAfter().getTime() / 1000.0;
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving certificate:" + e.getMessage());
+        }
+        synchronized (certificateExpiry) {
+            certificateExpiry.put(sslContext, expiry);
+        }
+        return expiry;
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addSslMetrics(mfs);
+        return mfs;
+    }
+}
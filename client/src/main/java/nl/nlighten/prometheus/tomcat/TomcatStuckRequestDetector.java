@@ -0,0 +1,211 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lightweight alternative for Tomcat's StuckThreadDetectionValve that detects stuck requests based on the requests
+ * tracked by {@link TomcatServletMetricsFilter}:
+ *
+ * - number of requests per context that are currently running longer than the threshold
+ * - number of requests per context that have been detected as stuck
+ *
+ * <p>
+ * Detection takes place when metrics are collected, so no background thread is needed. A request that completes
+ * between two scrapes after running longer than the threshold is still counted as detected. Optionally the stack
+ * traces of newly detected stuck threads are logged, limited to a maximum number of threads per interval and a maximum
+ * stack depth, so a large number of stuck threads does not flood the log.
+ * <p>
+ * The detector is created by the filter when the stuckRequestThreshold init parameter is set, e.g.:
+ * <pre>
+ * {@code
+ * <init-param>
+ *   <param-name>stuckRequestThreshold</param-name>
+ *   <param-value>60</param-value>
+ * </init-param>
+ * <init-param>
+ *   <param-name>stuckRequestThreadDumps</param-name>
+ *   <param-value>3</param-value>
+ * </init-param>
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     servlet_request_stuck{context="/foo",} 2.0
+ *     servlet_request_stuck_detected_total{context="/foo",} 7.0
+ * </pre>
+ */
+
+public class TomcatStuckRequestDetector extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatStuckRequestDetector.class);
+    private static final int MAX_STACK_DEPTH = 50;
+    private volatile long thresholdMillis;
+    private final int maxThreadDumps;
+    private final long threadDumpIntervalMillis;
+    private final Set<InFlightRequest> inFlightRequests = Collections.newSetFromMap(new ConcurrentHashMap<InFlightRequest, Boolean>());
+    private final Map<String, double[]> detectedCounts = new ConcurrentHashMap<String, double[]>();
+    private long threadDumpIntervalStart;
+    private int threadDumpsInInterval;
+
+    /**
+     * @param thresholdSeconds          the duration after which a request is considered stuck
+     * @param maxThreadDumps            the maximum number of stack traces logged per interval, 0 to disable
+     * @param threadDumpIntervalSeconds the interval to which the maximum number of stack traces applies
+     */
+    public TomcatStuckRequestDetector(long thresholdSeconds, int maxThreadDumps, long threadDumpIntervalSeconds) {
+        this.thresholdMillis = TimeUnit.SECONDS.toMillis(thresholdSeconds);
+        this.maxThreadDumps = maxThreadDumps;
+        this.threadDumpIntervalMillis = TimeUnit.SECONDS.toMillis(threadDumpIntervalSeconds);
+    }
+
+    /**
+     * Changes the duration after which a request is considered stuck, e.g. through {@link MetricsConfig}.
+     */
+    public void setThresholdSeconds(long thresholdSeconds) {
+        this.thresholdMillis = TimeUnit.SECONDS.toMillis(thresholdSeconds);
+    }
+
+    /**
+     * Removes the detected count of a stopped context.
+     */
+    void removeContext(String context) {
+        detectedCounts.remove(context);
+    }
+
+    /**
+     * Starts tracking a request processed by the current thread.
+     *
+     * @return the handle to pass to {@link #end(Object)} when the request completes
+     */
+    Object start(String context, String uri) {
+        InFlightRequest request = new InFlightRequest(Thread.currentThread(), context, uri, System.currentTimeMillis());
+        inFlightRequests.add(request);
+        return request;
+    }
+
+    void end(Object handle) {
+        InFlightRequest request = (InFlightRequest) handle;
+        inFlightRequests.remove(request);
+        if (System.currentTimeMillis() - request.start > thresholdMillis) {
+            markDetected(request);
+        }
+    }
+
+    private boolean markDetected(InFlightRequest request) {
+        synchronized (request) {
+            if (request.detected) {
+                return false;
+            }
+            request.detected = true;
+        }
+        double[] count = detectedCounts.get(request.context);
+        if (count == null) {
+            detectedCounts.putIfAbsent(request.context, new double[1]);
+            count = detectedCounts.get(request.context);
+        }
+        synchronized (count) {
+            count[0]++;
+        }
+        return true;
+    }
+
+    private synchronized boolean acquireThreadDump(long now) {
+        if (now - threadDumpIntervalStart > threadDumpIntervalMillis) {
+            threadDumpIntervalStart = now;
+            threadDumpsInInterval = 0;
+        }
+        if (threadDumpsInInterval < maxThreadDumps) {
+            threadDumpsInInterval++;
+            return true;
+        }
+        return false;
+    }
+
+    private void logThreadDump(InFlightRequest request, long age) {
+        StackTraceElement[] stackTrace = request.thread.getStackTrace();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Thread [").append(request.thread.getName()).append("] has been processing request [")
+                .append(request.uri).append("] of context [").append(request.context).append("] for ")
+                .append(age).append(" ms, which exceeds the threshold of ").append(thresholdMillis).append(" ms");
+        for (int i = 0; i < stackTrace.length && i < MAX_STACK_DEPTH; i++) {
+            sb.append(System.lineSeparator()).append("\tat ").append(stackTrace[i]);
+        }
+        if (stackTrace.length > MAX_STACK_DEPTH) {
+            sb.append(System.lineSeparator()).append("\t... ").append(stackTrace.length - MAX_STACK_DEPTH).append(" more");
+        }
+        log.warn(sb.toString());
+    }
+
+    private void addStuckRequestMetrics(List<MetricFamilySamples> mfs) {
+        long now = System.currentTimeMillis();
+        Map<String, double[]> stuckCounts = new TreeMap<String, double[]>();
+        for (InFlightRequest request : inFlightRequests) {
+            long age = now - request.start;
+            if (age <= thresholdMillis) {
+                continue;
+            }
+            double[] count = stuckCounts.get(request.context);
+            if (count == null) {
+                count = new double[1];
+                stuckCounts.put(request.context, count);
+            }
+            count[0]++;
+            if (markDetected(request) && maxThreadDumps > 0 && acquireThreadDump(now)) {
+                logThreadDump(request, age);
+            }
+        }
+
+        List<String> labelNameList = Collections.singletonList("context");
+
+        GaugeMetricFamily stuckGauge = new GaugeMetricFamily(
+                "servlet_request_stuck",
+                "Number of requests for given context that are running longer than the threshold",
+                labelNameList);
+        for (String context : detectedCounts.keySet()) {
+            double[] count = stuckCounts.get(context);
+            stuckGauge.addMetric(Collections.singletonList(context), count == null ? 0 : count[0]);
+        }
+        mfs.add(stuckGauge);
+
+        CounterMetricFamily detectedCounter = new CounterMetricFamily(
+                "servlet_request_stuck_detected",
+                "Number of requests for given context that have been detected running longer than the threshold",
+                labelNameList);
+        for (Map.Entry<String, double[]> entry : new TreeMap<String, double[]>(detectedCounts).entrySet()) {
+            synchronized (entry.getValue()) {
+                detectedCounter.addMetric(Collections.singletonList(entry.getKey()), entry.getValue()[0]);
+            }
+        }
+        mfs.add(detectedCounter);
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addStuckRequestMetrics(mfs);
+        return mfs;
+    }
+
+    private static class InFlightRequest {
+        private final Thread thread;
+        private final String context;
+        private final String uri;
+        private final long start;
+        private boolean detected;
+
+        InFlightRequest(Thread thread, String context, String uri, long start) {
+            this.thread = thread;
+            this.context = context;
+            this.uri = uri;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.catalina.Container;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Valve;
+import org.apache.catalina.valves.StuckThreadDetectionValve;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports metrics of the StuckThreadDetectionValves configured in the engine, hosts or contexts:
+ *
+ * - number of threads currently considered stuck
+ * - number of stuck threads that have been interrupted
+ * - stuck thread and interrupt thresholds
+ *
+ * <p>
+ * For applications that do not use the valve, {@link TomcatServletMetricsFilter} can detect stuck requests itself.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatStuckThreadExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_stuck_threads{host="localhost",context="/foo",} 2.0
+ *     tomcat_stuck_threads_interrupted_total{host="localhost",context="/foo",} 5.0
+ *     tomcat_stuck_threads_threshold_seconds{host="localhost",context="/foo",} 600.0
+ *     tomcat_stuck_threads_interrupt_threshold_seconds{host="localhost",context="/foo",} 900.0
+ * </pre>
+ * Valves configured on a host have an empty context label, valves configured on the engine also have an empty host
+ * label. Older Tomcat versions do not expose the interrupt statistics through JMX, in which case they are read from
+ * the valve itself.
+ */
+
+public class TomcatStuckThreadExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatStuckThreadExports.class);
+    private static final String[] VALVE_ATTRIBUTES = new String[]{"stuckThreadCount", "threshold", "interruptThreadThreshold", "interruptedThreadsCount"};
+    private final ObjectName valveFilterName;
+    private final ObjectName webModuleFilterName;
+
+    public TomcatStuckThreadExports(boolean embedded) {
+        try {
+            String jmxDomain = embedded ? "Tomcat" : "Catalina";
+            valveFilterName = new ObjectName(jmxDomain + ":type=Valve,name=StuckThreadDetectionValve,*");
+            webModuleFilterName = new ObjectName(jmxDomain + ":j2eeType=WebModule,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void addStuckThreadMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(valveFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("host", "context");
+
+                GaugeMetricFamily stuckThreadsGauge = new GaugeMetricFamily(
+                        "tomcat_stuck_threads",
+                        "Number of threads currently considered stuck",
+                        labelNameList);
+
+                CounterMetricFamily interruptedThreadsCounter = new CounterMetricFamily(
+                        "tomcat_stuck_threads_interrupted",
+                        "Number of stuck threads that have been interrupted",
+                        labelNameList);
+
+                GaugeMetricFamily thresholdGauge = new GaugeMetricFamily(
+                        "tomcat_stuck_threads_threshold_seconds",
+                        "Duration after which a request is considered stuck",
+                        labelNameList);
+
+                GaugeMetricFamily interruptThresholdGauge = new GaugeMetricFamily(
+                        "tomcat_stuck_threads_interrupt_threshold_seconds",
+                        "Duration after which a stuck thread is interrupted, 0 or less if disabled",
+                        labelNameList);
+
+                Map<ObjectName, StuckThreadDetectionValve> valves = null;
+                for (final ObjectName mBeanName : mBeanNames) {
+                    List<String> labelValueList = Arrays.asList(getKeyProperty(mBeanName, "host"), getKeyProperty(mBeanName, "context"));
+                    AttributeList attributeList = server.getAttributes(mBeanName, VALVE_ATTRIBUTES);
+                    boolean interruptStatsFound = false;
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "stuckThreadCount":
+                                stuckThreadsGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "threshold":
+                                thresholdGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                break;
+                            case "interruptThreadThreshold":
+                                interruptThresholdGauge.addMetric(labelValueList, ((Integer) attribute.getValue()).doubleValue());
+                                interruptStatsFound = true;
+                                break;
+                            case "interruptedThreadsCount":
+                                interruptedThreadsCounter.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue());
+                                interruptStatsFound = true;
+                        }
+                    }
+                    if (!interruptStatsFound) {
+                        if (valves == null) {
+                            valves = findValves(server);
+                        }
+                        StuckThreadDetectionValve valve = valves.get(mBeanName);
+                        if (valve != null) {
+                            interruptThresholdGauge.addMetric(labelValueList, valve.getInterruptThreadThreshold());
+                            interruptedThreadsCounter.addMetric(labelValueList, valve.getInterruptedThreadsCount());
+                        }
+                    }
+                }
+
+                mfs.add(stuckThreadsGauge);
+                mfs.add(interruptedThreadsCounter);
+                mfs.add(thresholdGauge);
+                mfs.add(interruptThresholdGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Finds the StuckThreadDetectionValves in the pipelines of the engines, hosts and contexts, starting from the
+     * contexts registered as web modules.
+     */
+    private Map<ObjectName, StuckThreadDetectionValve> findValves(MBeanServer server) throws Exception {
+        Map<ObjectName, StuckThreadDetectionValve> valves = new HashMap<ObjectName, StuckThreadDetectionValve>();
+        Set<Container> engines = new HashSet<Container>();
+        for (ObjectName webModule : server.queryNames(webModuleFilterName, null)) {
+            Object manager = server.getAttribute(webModule, "manager");
+            if (manager instanceof Manager && ((Manager) manager).getContext() != null) {
+                Container container = ((Manager) manager).getContext();
+                while (container.getParent() != null) {
+                    container = container.getParent();
+                }
+                engines.add(container);
+            }
+        }
+        for (Container engine : engines) {
+            addValves(engine, valves);
+        }
+        return valves;
+    }
+
+    private void addValves(Container container, Map<ObjectName, StuckThreadDetectionValve> valves) {
+        for (Valve valve : container.getPipeline().getValves()) {
+            if (valve instanceof StuckThreadDetectionValve && ((StuckThreadDetectionValve) valve).getObjectName() != null) {
+                valves.put(((StuckThreadDetectionValve) valve).getObjectName(), (StuckThreadDetectionValve) valve);
+            }
+        }
+        for (Container child : container.findChildren()) {
+            addValves(child, valves);
+        }
+    }
+
+    private String getKeyProperty(ObjectName mBeanName, String key) {
+        String value = mBeanName.getKeyProperty(key);
+        return value == null ? "" : value.replaceAll("[\"\\\\]", "");
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addStuckThreadMetrics(mfs);
+        return mfs;
+    }
+}
@@ -0,0 +1,136 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Histogram;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardThreadExecutor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A drop-in replacement for Tomcat's <a href="https://tomcat.apache.org/tomcat-9.0-doc/config/executor.html">standard executor</a>
+ * that records how long tasks wait in the queue of the executor before a worker thread picks them up. A growing
+ * queue wait is usually the first sign of thread starvation, long before requests start to fail.
+ *
+ * <p>
+ * Example usage in server.xml:
+ * <pre>
+ * {@code
+ * <Executor name="tomcatThreadPool"
+ *           className="nl.nlighten.prometheus.tomcat.TomcatThreadExecutor"
+ *           maxThreads="200"
+ *           minSpareThreads="25"
+ *           buckets=".0001, .0005, .001, .005, .01, .05, .1, .5, 1"/>
+ *
+ * <Connector executor="tomcatThreadPool" port="8080" protocol="HTTP/1.1"/>
+ * }
+ * </pre>
+ *
+ * The buckets attribute is optional and defaults to the buckets shown above.
+ *
+ * Example metrics being exported:
+ * <pre>
+ *    tomcat_executor_queue_wait_seconds_bucket{name="tomcatThreadPool",le="0.0001",} 2011.0
+ *    .....
+ *    tomcat_executor_queue_wait_seconds_bucket{name="tomcatThreadPool",le="+Inf",} 2103.0
+ *    tomcat_executor_queue_wait_seconds_count{name="tomcatThreadPool",} 2103.0
+ *    tomcat_executor_queue_wait_seconds_sum{name="tomcatThreadPool",} 0.3481
+ * </pre>
+ */
+public class TomcatThreadExecutor extends StandardThreadExecutor {
+
+    private static final long NOT_DISPATCHED = Long.MIN_VALUE;
+    private static final ThreadLocal<long[]> currentTaskEnqueued = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[]{NOT_DISPATCHED};
+        }
+    };
+    private static Histogram queueWaitStats;
+    private String buckets;
+    private Histogram.Child queueWait;
+
+    public String getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(String buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        synchronized (TomcatThreadExecutor.class) {
+            if (queueWaitStats == null) {
+                Histogram.Builder builder = Histogram.build()
+                        .name("tomcat_executor_queue_wait_seconds")
+                        .help("The time tasks waited in the queue of this executor before being executed")
+                        .labelNames("name");
+
+                if (buckets != null && !buckets.isEmpty()) {
+                    String[] bucketParams = buckets.split(",");
+                    double[] bucketValues = new double[bucketParams.length];
+                    for (int i = 0; i < bucketParams.length; i++) {
+                        bucketValues[i] = Double.parseDouble(bucketParams[i].trim());
+                    }
+                    builder.buckets(bucketValues);
+                } else {
+                    builder.buckets(.0001, .0005, .001, .005, .01, .05, .1, .5, 1);
+                }
+
+                queueWaitStats = builder.register();
+            }
+        }
+        queueWait = queueWaitStats.labels(getName());
+        super.startInternal();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueueTimedTask(command, queueWait));
+    }
+
+    @Override
+    @Deprecated
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        super.execute(new QueueTimedTask(command, queueWait), timeout, unit);
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the task run by the current thread was handed to the executor, or
+     * {@link Long#MIN_VALUE} if the current thread is not running a task of this executor. The time is returned once
+     * per task, so when a task processes several requests, e.g. pipelined requests on a keep-alive connection, only
+     * the first one is attributed the queue wait.
+     */
+    static long takeEnqueueTime() {
+        long[] enqueued = currentTaskEnqueued.get();
+        long time = enqueued[0];
+        enqueued[0] = NOT_DISPATCHED;
+        return time;
+    }
+
+    private static class QueueTimedTask implements Runnable {
+        private final Runnable task;
+        private final Histogram.Child queueWait;
+        private final long enqueued;
+
+        QueueTimedTask(Runnable task, Histogram.Child queueWait) {
+            this.task = task;
+            this.queueWait = queueWait;
+            this.enqueued = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            if (queueWait != null) {
+                queueWait.observe((System.nanoTime() - enqueued) / 1.0E9);
+            }
+            long[] current = currentTaskEnqueued.get();
+            current[0] = enqueued;
+            try {
+                task.run();
+            } finally {
+                current[0] = NOT_DISPATCHED;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports the traffic of connections that were upgraded from HTTP/1.1 to another protocol, per connector and protocol:
+ *
+ * - bytes and messages received and sent over upgraded connections, e.g. WebSocket connections
+ * - streams, errors, bytes and processing time of HTTP/2 connections
+ * - open sessions and the number and size of messages per WebSocket endpoint, for endpoints instrumented with
+ *   {@link TomcatWebSocketMetrics}
+ *
+ * <p>
+ * Requests that are upgraded are only counted once by the request processor metrics, so without these metrics the
+ * traffic of long-lived connections is invisible. The protocol label contains the name of the upgrade protocol, e.g.
+ * websocket, h2 or h2c.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatUpgradeExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_upgrade_received_bytes_total{name="http-nio-8080",protocol="websocket",} 2.1413E7
+ *     tomcat_upgrade_sent_bytes_total{name="http-nio-8080",protocol="websocket",} 9.8212E7
+ *     tomcat_upgrade_messages_received_total{name="http-nio-8080",protocol="websocket",} 51022.0
+ *     tomcat_upgrade_messages_sent_total{name="http-nio-8080",protocol="websocket",} 233102.0
+ *     tomcat_upgrade_requests_total{name="https-jsse-nio-8443",protocol="h2",} 33709.0
+ *     tomcat_upgrade_errors_total{name="https-jsse-nio-8443",protocol="h2",} 12.0
+ *     tomcat_upgrade_processing_seconds_total{name="https-jsse-nio-8443",protocol="h2",} 1273.86
+ *     tomcat_upgrade_processing_seconds_max{name="https-jsse-nio-8443",protocol="h2",} 2.113
+ *     tomcat_websocket_sessions_active{endpoint="/chat",} 112.0
+ *     tomcat_websocket_messages_total{endpoint="/chat",direction="received",} 51022.0
+ *     tomcat_websocket_message_size_bytes_count{endpoint="/chat",direction="received",} 51022.0
+ *     tomcat_websocket_message_size_bytes_sum{endpoint="/chat",direction="received",} 6872309.0
+ * </pre>
+ * For HTTP/2 every stream is counted as a request.
+ */
+
+public class TomcatUpgradeExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatUpgradeExports.class);
+    private static final String[] UPGRADE_ATTRIBUTES = new String[]{"bytesReceived", "bytesSent", "msgsReceived", "msgsSent",
+            "requestCount", "errorCount", "processingTime", "maxTime"};
+    static final Gauge webSocketSessions = Gauge.build()
+            .name("tomcat_websocket_sessions_active")
+            .help("Number of open sessions of the WebSocket endpoint")
+            .labelNames("endpoint")
+            .create();
+    static final Counter webSocketMessages = Counter.build()
+            .name("tomcat_websocket_messages")
+            .help("Number of messages received or sent by the WebSocket endpoint")
+            .labelNames("endpoint", "direction")
+            .create();
+    static final Histogram webSocketMessageSize = Histogram.build()
+            .name("tomcat_websocket_message_size_bytes")
+            .help("Size of the text and binary messages received or sent by the WebSocket endpoint")
+            .labelNames("endpoint", "direction")
+            .exponentialBuckets(64, 4, 8)
+            .create();
+    private final ObjectName upgradeFilterName;
+
+    public TomcatUpgradeExports(boolean embedded) {
+        try {
+            upgradeFilterName = new ObjectName((embedded ? "Tomcat" : "Catalina") + ":type=GlobalRequestProcessor,name=*,Upgrade=*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void addUpgradeMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(upgradeFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("name", "protocol");
+
+                CounterMetricFamily bytesReceivedCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_received_bytes",
+                        "Number of bytes received over upgraded connections",
+                        labelNameList);
+
+                CounterMetricFamily bytesSentCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_sent_bytes",
+                        "Number of bytes sent over upgraded connections",
+                        labelNameList);
+
+                CounterMetricFamily messagesReceivedCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_messages_received",
+                        "Number of messages received over upgraded connections",
+                        labelNameList);
+
+                CounterMetricFamily messagesSentCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_messages_sent",
+                        "Number of messages sent over upgraded connections",
+                        labelNameList);
+
+                CounterMetricFamily requestCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_requests",
+                        "Number of requests (HTTP/2 streams) processed over upgraded connections",
+                        labelNameList);
+
+                CounterMetricFamily errorCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_errors",
+                        "Number of requests (HTTP/2 streams) processed over upgraded connections that resulted in an error",
+                        labelNameList);
+
+                CounterMetricFamily processingTimeCounter = new CounterMetricFamily(
+                        "tomcat_upgrade_processing_seconds",
+                        "Total time spent processing requests (HTTP/2 streams) over upgraded connections",
+                        labelNameList);
+
+                GaugeMetricFamily maxTimeGauge = new GaugeMetricFamily(
+                        "tomcat_upgrade_processing_seconds_max",
+                        "Maximum time spent processing a single request (HTTP/2 stream) over upgraded connections",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    List<String> labelValueList = Arrays.asList(
+                            mBeanName.getKeyProperty("name").replaceAll("[\"\\\\]", ""),
+                            mBeanName.getKeyProperty("Upgrade").replaceAll("[\"\\\\]", ""));
+                    // HTTP/2 registers request statistics, other upgrade protocols register message statistics
+                    AttributeList attributeList = server.getAttributes(mBeanName, UPGRADE_ATTRIBUTES);
+                    for (Attribute attribute : attributeList.asList()) {
+                        double value = ((Number) attribute.getValue()).doubleValue();
+                        switch (attribute.getName()) {
+                            case "bytesReceived":
+                                bytesReceivedCounter.addMetric(labelValueList, value);
+                                break;
+                            case "bytesSent":
+                                bytesSentCounter.addMetric(labelValueList, value);
+                                break;
+                            case "msgsReceived":
+                                messagesReceivedCounter.addMetric(labelValueList, value);
+                                break;
+                            case "msgsSent":
+                                messagesSentCounter.addMetric(labelValueList, value);
+                                break;
+                            case "requestCount":
+                                requestCounter.addMetric(labelValueList, value);
+                                break;
+                            case "errorCount":
+                                errorCounter.addMetric(labelValueList, value);
+                                break;
+                            case "processingTime":
+                                processingTimeCounter.addMetric(labelValueList, value / 1000.0);
+                                break;
+                            case "maxTime":
+                                maxTimeGauge.addMetric(labelValueList, value / 1000.0);
+                        }
+                    }
+                }
+
+                SampleNameFilters.addNonEmpty(mfs,
+                        bytesReceivedCounter,
+                        bytesSentCounter,
+                        messagesReceivedCounter,
+                        messagesSentCounter,
+                        requestCounter,
+                        errorCounter,
+                        processingTimeCounter,
+                        maxTimeGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    private void addWebSocketMetrics(List<MetricFamilySamples> mfs) {
+        for (Collector collector : new Collector[]{webSocketSessions, webSocketMessages, webSocketMessageSize}) {
+            for (MetricFamilySamples metricFamily : collector.collect()) {
+                SampleNameFilters.addNonEmpty(mfs, metricFamily);
+            }
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addUpgradeMetrics(mfs);
+        addWebSocketMetrics(mfs);
+        return mfs;
+    }
+}
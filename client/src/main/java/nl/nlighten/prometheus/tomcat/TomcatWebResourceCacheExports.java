@@ -0,0 +1,151 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Exports metrics of the static resource cache of each web application (the
+ * <a href="https://tomcat.apache.org/tomcat-9.0-doc/config/resources.html">Resources</a> cache). These metrics help
+ * to size the cacheMaxSize and cacheTtl attributes per application.
+ *
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new TomcatWebResourceCacheExports(false).register();
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_webresource_cache_lookups_total{host="localhost",context="/foo",} 3012.0
+ *     tomcat_webresource_cache_hits_total{host="localhost",context="/foo",} 2877.0
+ *     tomcat_webresource_cache_size_bytes{host="localhost",context="/foo",} 5433344.0
+ *     tomcat_webresource_cache_max_bytes{host="localhost",context="/foo",} 1.048576E7
+ *     tomcat_webresource_cache_object_max_bytes{host="localhost",context="/foo",} 524288.0
+ *     tomcat_webresource_cache_ttl_seconds{host="localhost",context="/foo",} 5.0
+ *     tomcat_webresource_cache_usage_ratio{host="localhost",context="/foo",} 0.518
+ * </pre>
+ * Tomcat starts evicting entries from the cache once its size exceeds 95% of the maximum size, so a usage ratio that
+ * stays close to 0.95 indicates eviction pressure.
+ */
+
+public class TomcatWebResourceCacheExports extends Collector {
+
+    private static final Log log = LogFactory.getLog(TomcatWebResourceCacheExports.class);
+    private static final String[] CACHE_ATTRIBUTES = new String[]{"lookupCount", "hitCount", "size", "maxSize", "objectMaxSize", "ttl"};
+    private final ObjectName cacheFilterName;
+    private final CounterTracker tracker = new CounterTracker();
+
+    public TomcatWebResourceCacheExports(boolean embedded) {
+        try {
+            cacheFilterName = new ObjectName((embedded ? "Tomcat" : "Catalina") + ":type=WebResourceRoot,name=Cache,host=*,context=*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void addCacheMetrics(List<MetricFamilySamples> mfs) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> mBeanNames = server.queryNames(cacheFilterName, null);
+
+            if (mBeanNames.size() > 0) {
+                List<String> labelNameList = Arrays.asList("host", "context");
+
+                CounterMetricFamily lookupCounter = new CounterMetricFamily(
+                        "tomcat_webresource_cache_lookups",
+                        "Number of lookups in the static resource cache",
+                        labelNameList);
+
+                CounterMetricFamily hitCounter = new CounterMetricFamily(
+                        "tomcat_webresource_cache_hits",
+                        "Number of lookups in the static resource cache that were served from the cache",
+                        labelNameList);
+
+                GaugeMetricFamily sizeGauge = new GaugeMetricFamily(
+                        "tomcat_webresource_cache_size_bytes",
+                        "Current size of the static resource cache",
+                        labelNameList);
+
+                GaugeMetricFamily maxSizeGauge = new GaugeMetricFamily(
+                        "tomcat_webresource_cache_max_bytes",
+                        "Maximum size of the static resource cache",
+                        labelNameList);
+
+                GaugeMetricFamily objectMaxSizeGauge = new GaugeMetricFamily(
+                        "tomcat_webresource_cache_object_max_bytes",
+                        "Maximum size of a single resource in the static resource cache",
+                        labelNameList);
+
+                GaugeMetricFamily ttlGauge = new GaugeMetricFamily(
+                        "tomcat_webresource_cache_ttl_seconds",
+                        "Time before a cached resource is revalidated",
+                        labelNameList);
+
+                GaugeMetricFamily usageGauge = new GaugeMetricFamily(
+                        "tomcat_webresource_cache_usage_ratio",
+                        "Current size of the static resource cache relative to its maximum size",
+                        labelNameList);
+
+                for (final ObjectName mBeanName : mBeanNames) {
+                    List<String> labelValueList = Arrays.asList(mBeanName.getKeyProperty("host"), mBeanName.getKeyProperty("context"));
+                    AttributeList attributeList = server.getAttributes(mBeanName, CACHE_ATTRIBUTES);
+                    long size = -1;
+                    long maxSize = -1;
+                    for (Attribute attribute : attributeList.asList()) {
+                        switch (attribute.getName()) {
+                            case "lookupCount":
+                                lookupCounter.addMetric(labelValueList, tracker.counter("tomcat_webresource_cache_lookups", labelValueList, ((Long) attribute.getValue()).doubleValue()));
+                                break;
+                            case "hitCount":
+                                hitCounter.addMetric(labelValueList, tracker.counter("tomcat_webresource_cache_hits", labelValueList, ((Long) attribute.getValue()).doubleValue()));
+                                break;
+                            case "size":
+                                // sizes are reported in kilobytes
+                                size = (Long) attribute.getValue();
+                                sizeGauge.addMetric(labelValueList, size * 1024.0);
+                                break;
+                            case "maxSize":
+                                maxSize = (Long) attribute.getValue();
+                                maxSizeGauge.addMetric(labelValueList, maxSize * 1024.0);
+                                break;
+                            case "objectMaxSize":
+                                objectMaxSizeGauge.addMetric(labelValueList, ((Integer) attribute.getValue()) * 1024.0);
+                                break;
+                            case "ttl":
+                                ttlGauge.addMetric(labelValueList, ((Long) attribute.getValue()).doubleValue() / 1000.0);
+                        }
+                    }
+                    if (size >= 0 && maxSize > 0) {
+                        usageGauge.addMetric(labelValueList, (double) size / maxSize);
+                    }
+                }
+
+                mfs.add(lookupCounter);
+                mfs.add(hitCounter);
+                mfs.add(sizeGauge);
+                mfs.add(maxSizeGauge);
+                mfs.add(objectMaxSizeGauge);
+                mfs.add(ttlGauge);
+                mfs.add(usageGauge);
+            }
+        } catch (Exception e) {
+            log.error("Error retrieving metric:" + e.getMessage());
+        }
+    }
+
+
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        addCacheMetrics(mfs);
+        tracker.removeStale();
+        return mfs;
+    }
+}
@@ -0,0 +1,406 @@
+package nl.nlighten.prometheus.tomcat;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Instruments a programmatic WebSocket endpoint to measure its open sessions and the number and size of the messages
+ * it receives and sends. The metrics are exported by {@link TomcatUpgradeExports}, so the client jar must be on the
+ * common class path of Tomcat, like the other client classes.
+ *
+ * <p>
+ * The instrumented configuration creates the endpoint through the configurator of the original configuration and
+ * wraps it, so the endpoint sees a session that records the messages passed to its message handlers and sent through
+ * its remote endpoints. Text messages are measured by their UTF-8 encoded size and binary messages by their size,
+ * messages that are encoded or decoded by the application, or streamed, are only counted.
+ * <p>
+ * Annotated endpoints cannot be instrumented, as Tomcat binds their methods itself.
+ * <p>
+ * Example usage, e.g. in a ServletContextListener:
+ * <pre>
+ * {@code
+ *   ServerContainer container = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+ *   container.addEndpoint(TomcatWebSocketMetrics.instrument(
+ *           ServerEndpointConfig.Builder.create(ChatEndpoint.class, "/chat").build()));
+ * }
+ * </pre>
+ * Example metrics being exported:
+ * <pre>
+ *     tomcat_websocket_sessions_active{endpoint="/chat",} 112.0
+ *     tomcat_websocket_messages_total{endpoint="/chat",direction="received",} 51022.0
+ *     tomcat_websocket_messages_total{endpoint="/chat",direction="sent",} 233102.0
+ *     tomcat_websocket_message_size_bytes_bucket{endpoint="/chat",direction="received",le="256.0",} 50011.0
+ *     ...
+ *     tomcat_websocket_message_size_bytes_count{endpoint="/chat",direction="received",} 51022.0
+ *     tomcat_websocket_message_size_bytes_sum{endpoint="/chat",direction="received",} 6872309.0
+ * </pre>
+ */
+public class TomcatWebSocketMetrics {
+
+    private static final String RECEIVED = "received";
+    private static final String SENT = "sent";
+
+    private TomcatWebSocketMetrics() {
+    }
+
+    /**
+     * Returns a copy of the configuration of which the endpoint is instrumented.
+     *
+     * @throws IllegalArgumentException if the endpoint of the configuration is not a {@link Endpoint}
+     */
+    public static ServerEndpointConfig instrument(ServerEndpointConfig config) {
+        if (!Endpoint.class.isAssignableFrom(config.getEndpointClass())) {
+            throw new IllegalArgumentException("Only endpoints extending javax.websocket.Endpoint can be instrumented: " + config.getEndpointClass().getName());
+        }
+        ServerEndpointConfig instrumented = ServerEndpointConfig.Builder.create(MeteredEndpoint.class, config.getPath())
+                .subprotocols(config.getSubprotocols())
+                .extensions(config.getExtensions())
+                .encoders(config.getEncoders())
+                .decoders(config.getDecoders())
+                .configurator(new MeteredConfigurator(config))
+                .build();
+        instrumented.getUserProperties().putAll(config.getUserProperties());
+        return instrumented;
+    }
+
+    private static void record(String endpoint, String direction, long size) {
+        TomcatUpgradeExports.webSocketMessages.labels(endpoint, direction).inc();
+        if (size >= 0) {
+            TomcatUpgradeExports.webSocketMessageSize.labels(endpoint, direction).observe(size);
+        }
+    }
+
+    /**
+     * Returns the size in bytes of a text or binary message (part), or -1 for other messages.
+     */
+    private static long sizeOf(Object message) {
+        if (message instanceof String) {
+            return utf8Length((String) message);
+        } else if (message instanceof ByteBuffer) {
+            return ((ByteBuffer) message).remaining();
+        } else if (message instanceof byte[]) {
+            return ((byte[]) message).length;
+        }
+        return -1;
+    }
+
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the message type of a handler that implements {@link MessageHandler.Whole} or
+     * {@link MessageHandler.Partial} directly or through a superclass, or null if it cannot be resolved.
+     */
+    private static Class<?> messageType(Class<?> handlerClass, Class<?> handlerInterface) {
+        for (Class<?> c = handlerClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Type type : c.getGenericInterfaces()) {
+                if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == handlerInterface) {
+                    Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+                    if (argument instanceof Class) {
+                        return (Class<?>) argument;
+                    } else if (argument instanceof ParameterizedType) {
+                        return (Class<?>) ((ParameterizedType) argument).getRawType();
+                    }
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Creates the instrumented endpoint around the endpoint created by the original configurator, and delegates the
+     * handshake to the original configurator.
+     */
+    private static class MeteredConfigurator extends ServerEndpointConfig.Configurator {
+        private final ServerEndpointConfig config;
+
+        MeteredConfigurator(ServerEndpointConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public String getNegotiatedSubprotocol(List<String> supported, List<String> requested) {
+            return config.getConfigurator().getNegotiatedSubprotocol(supported, requested);
+        }
+
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+            return config.getConfigurator().getNegotiatedExtensions(installed, requested);
+        }
+
+        @Override
+        public boolean checkOrigin(String originHeaderValue) {
+            return config.getConfigurator().checkOrigin(originHeaderValue);
+        }
+
+        @Override
+        public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
+            config.getConfigurator().modifyHandshake(sec, request, response);
+        }
+
+        @Override
+        public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+            Endpoint endpoint = (Endpoint) config.getConfigurator().getEndpointInstance(config.getEndpointClass());
+            return endpointClass.cast(new MeteredEndpoint(config.getPath(), endpoint));
+        }
+    }
+
+    static class MeteredEndpoint extends Endpoint {
+        private final String path;
+        private final Endpoint endpoint;
+        private Session session;
+
+        MeteredEndpoint(String path, Endpoint endpoint) {
+            this.path = path;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void onOpen(Session session, EndpointConfig config) {
+            this.session = (Session) Proxy.newProxyInstance(TomcatWebSocketMetrics.class.getClassLoader(),
+                    new Class<?>[]{Session.class}, new MeteredSession(path, session));
+            TomcatUpgradeExports.webSocketSessions.labels(path).inc();
+            endpoint.onOpen(this.session, config);
+        }
+
+        @Override
+        public void onClose(Session session, CloseReason closeReason) {
+            TomcatUpgradeExports.webSocketSessions.labels(path).dec();
+            endpoint.onClose(this.session != null ? this.session : session, closeReason);
+        }
+
+        @Override
+        public void onError(Session session, Throwable throwable) {
+            endpoint.onError(this.session != null ? this.session : session, throwable);
+        }
+    }
+
+    /**
+     * Wraps the message handlers added to the session and the remote endpoints returned by the session.
+     */
+    private static class MeteredSession implements InvocationHandler {
+        private final String path;
+        private final Session session;
+        private final Map<MessageHandler, MessageHandler> handlers = new IdentityHashMap<MessageHandler, MessageHandler>();
+        private RemoteEndpoint.Basic basicRemote;
+        private RemoteEndpoint.Async asyncRemote;
+        private long receivedPartialSize;
+
+        MeteredSession(String path, Session session) {
+            this.path = path;
+            this.session = session;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "addMessageHandler":
+                    if (args.length == 1) {
+                        addMessageHandler((MessageHandler) args[0]);
+                    } else {
+                        addMessageHandler((Class<Object>) args[0], (MessageHandler) args[1]);
+                    }
+                    return null;
+                case "removeMessageHandler":
+                    MessageHandler wrapped;
+                    synchronized (handlers) {
+                        wrapped = handlers.remove(args[0]);
+                    }
+                    session.removeMessageHandler(wrapped != null ? wrapped : (MessageHandler) args[0]);
+                    return null;
+                case "getMessageHandlers":
+                    Set<MessageHandler> result = new HashSet<MessageHandler>();
+                    synchronized (handlers) {
+                        for (MessageHandler handler : session.getMessageHandlers()) {
+                            result.add(original(handler));
+                        }
+                    }
+                    return Collections.unmodifiableSet(result);
+                case "getBasicRemote":
+                    synchronized (this) {
+                        if (basicRemote == null) {
+                            basicRemote = (RemoteEndpoint.Basic) Proxy.newProxyInstance(TomcatWebSocketMetrics.class.getClassLoader(),
+                                    new Class<?>[]{RemoteEndpoint.Basic.class}, new MeteredRemoteEndpoint(path, session.getBasicRemote()));
+                        }
+                        return basicRemote;
+                    }
+                case "getAsyncRemote":
+                    synchronized (this) {
+                        if (asyncRemote == null) {
+                            asyncRemote = (RemoteEndpoint.Async) Proxy.newProxyInstance(TomcatWebSocketMetrics.class.getClassLoader(),
+                                    new Class<?>[]{RemoteEndpoint.Async.class}, new MeteredRemoteEndpoint(path, session.getAsyncRemote()));
+                        }
+                        return asyncRemote;
+                    }
+                default:
+                    return TomcatWebSocketMetrics.invoke(session, method, args);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void addMessageHandler(MessageHandler handler) {
+            Class<?> handlerInterface = handler instanceof MessageHandler.Partial ? MessageHandler.Partial.class : MessageHandler.Whole.class;
+            Class<Object> type = (Class<Object>) messageType(handler.getClass(), handlerInterface);
+            if (type == null) {
+                // leave it to the container to resolve or reject the handler
+                session.addMessageHandler(handler);
+            } else {
+                addMessageHandler(type, handler);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void addMessageHandler(Class<Object> type, MessageHandler handler) {
+            if (PongMessage.class.equals(type)) {
+                // pongs are control frames, not messages
+                if (handler instanceof MessageHandler.Partial) {
+                    session.addMessageHandler(type, (MessageHandler.Partial<Object>) handler);
+                } else {
+                    session.addMessageHandler(type, (MessageHandler.Whole<Object>) handler);
+                }
+                return;
+            }
+            MessageHandler wrapped;
+            if (handler instanceof MessageHandler.Partial) {
+                final MessageHandler.Partial<Object> partial = (MessageHandler.Partial<Object>) handler;
+                MessageHandler.Partial<Object> meteredPartial = new MessageHandler.Partial<Object>() {
+                    @Override
+                    public void onMessage(Object part, boolean last) {
+                        received(part, last);
+                        partial.onMessage(part, last);
+                    }
+                };
+                session.addMessageHandler(type, meteredPartial);
+                wrapped = meteredPartial;
+            } else {
+                final MessageHandler.Whole<Object> whole = (MessageHandler.Whole<Object>) handler;
+                MessageHandler.Whole<Object> meteredWhole = new MessageHandler.Whole<Object>() {
+                    @Override
+                    public void onMessage(Object message) {
+                        received(message, true);
+                        whole.onMessage(message);
+                    }
+                };
+                session.addMessageHandler(type, meteredWhole);
+                wrapped = meteredWhole;
+            }
+            synchronized (handlers) {
+                handlers.put(handler, wrapped);
+            }
+        }
+
+        private MessageHandler original(MessageHandler handler) {
+            for (Map.Entry<MessageHandler, MessageHandler> entry : handlers.entrySet()) {
+                if (entry.getValue() == handler) {
+                    return entry.getKey();
+                }
+            }
+            return handler;
+        }
+
+        /**
+         * Messages of a session are received by one thread at a time, so the size of partial messages needs no locking.
+         */
+        private void received(Object message, boolean last) {
+            long size = sizeOf(message);
+            if (size >= 0) {
+                receivedPartialSize += size;
+            }
+            if (last) {
+                record(path, RECEIVED, size >= 0 ? receivedPartialSize : -1);
+                receivedPartialSize = 0;
+            }
+        }
+    }
+
+    /**
+     * Records the messages sent through a {@link RemoteEndpoint.Basic} or {@link RemoteEndpoint.Async}.
+     */
+    private static class MeteredRemoteEndpoint implements InvocationHandler {
+        private final String path;
+        private final RemoteEndpoint remote;
+        private long sentPartialSize;
+
+        MeteredRemoteEndpoint(String path, RemoteEndpoint remote) {
+            this.path = path;
+            this.remote = remote;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "sendText":
+                case "sendBinary":
+                case "sendObject":
+                    // measured before sending, as sending consumes binary messages
+                    long size = sizeOf(args[0]);
+                    boolean last = args.length != 2 || !(args[1] instanceof Boolean) || (Boolean) args[1];
+                    Object result = TomcatWebSocketMetrics.invoke(remote, method, args);
+                    sent(size, last);
+                    return result;
+                case "getSendStream":
+                case "getSendWriter":
+                    result = TomcatWebSocketMetrics.invoke(remote, method, args);
+                    record(path, SENT, -1);
+                    return result;
+                default:
+                    return TomcatWebSocketMetrics.invoke(remote, method, args);
+            }
+        }
+
+        /**
+         * Partial messages may not be sent concurrently with other messages, so their size needs no locking.
+         */
+        private void sent(long size, boolean last) {
+            if (size >= 0) {
+                sentPartialSize += size;
+            }
+            if (last) {
+                record(path, SENT, size >= 0 ? sentPartialSize : -1);
+                sentPartialSize = 0;
+            }
+        }
+    }
+}
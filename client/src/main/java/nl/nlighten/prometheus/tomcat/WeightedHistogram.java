@@ -0,0 +1,120 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.DoubleAdder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A histogram of which each observation has a weight, used to record sampled measurements so the exported counts and
+ * sums estimate the totals of all requests, see {@link RequestSampler}. A measurement of a request sampled with a
+ * probability of 1% is recorded with weight 100, so the counts of the histogram are estimates and need not be integers.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   WeightedHistogram histogram = new WeightedHistogram("servlet_request_cpu_seconds", "...",
+ *           Arrays.asList("context"), new double[]{.001, .01, .1, 1}).register();
+ *   histogram.labels("/foo").observe(0.004, 100);
+ * }
+ * </pre>
+ */
+public class WeightedHistogram extends Collector {
+
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+    private final double[] upperBounds;
+    private final ConcurrentMap<List<String>, Child> children = new ConcurrentHashMap<List<String>, Child>();
+
+    /**
+     * @param name       the name of the histogram
+     * @param help       the help text of the histogram
+     * @param labelNames the label names of the histogram
+     * @param buckets    the upper bounds of the buckets in increasing order, excluding +Inf
+     */
+    public WeightedHistogram(String name, String help, List<String> labelNames, double[] buckets) {
+        for (int i = 1; i < buckets.length; i++) {
+            if (buckets[i] <= buckets[i - 1]) {
+                throw new IllegalArgumentException("Buckets must be in increasing order: " + buckets[i - 1] + " >= " + buckets[i]);
+            }
+        }
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+        this.upperBounds = Arrays.copyOf(buckets, buckets.length + 1);
+        this.upperBounds[buckets.length] = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the child histogram for the given label values.
+     */
+    public Child labels(String... labelValues) {
+        if (labelValues.length != labelNames.size()) {
+            throw new IllegalArgumentException("Incorrect number of labels.");
+        }
+        List<String> key = Arrays.asList(labelValues);
+        Child child = children.get(key);
+        if (child == null) {
+            children.putIfAbsent(key, new Child(upperBounds.length));
+            child = children.get(key);
+        }
+        return child;
+    }
+
+    /**
+     * Removes the child histogram for the given label values.
+     */
+    public void remove(String... labelValues) {
+        children.remove(Arrays.asList(labelValues));
+    }
+
+    public class Child {
+        private final DoubleAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Child(int buckets) {
+            counts = new DoubleAdder[buckets];
+            for (int i = 0; i < buckets; i++) {
+                counts[i] = new DoubleAdder();
+            }
+        }
+
+        /**
+         * Records a value with the given weight, i.e. as if the value was observed weight times.
+         */
+        public void observe(double value, double weight) {
+            if (weight <= 0) {
+                return;
+            }
+            for (int i = 0; i < upperBounds.length; i++) {
+                if (value <= upperBounds[i]) {
+                    counts[i].add(weight);
+                    break;
+                }
+            }
+            sum.add(value * weight);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        List<String> bucketLabelNames = new ArrayList<String>(labelNames);
+        bucketLabelNames.add("le");
+        for (Map.Entry<List<String>, Child> entry : children.entrySet()) {
+            double cumulativeCount = 0;
+            for (int i = 0; i < upperBounds.length; i++) {
+                cumulativeCount += entry.getValue().counts[i].sum();
+                List<String> bucketLabelValues = new ArrayList<String>(entry.getKey());
+                bucketLabelValues.add(doubleToGoString(upperBounds[i]));
+                samples.add(new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames, bucketLabelValues, cumulativeCount));
+            }
+            samples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, entry.getKey(), cumulativeCount));
+            samples.add(new MetricFamilySamples.Sample(name + "_sum", labelNames, entry.getKey(), entry.getValue().sum.sum()));
+        }
+        return Collections.singletonList(new MetricFamilySamples(name, Type.HISTOGRAM, help, samples));
+    }
+}
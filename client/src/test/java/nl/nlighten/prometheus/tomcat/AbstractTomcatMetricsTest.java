@@ -1,6 +1,7 @@
 package nl.nlighten.prometheus.tomcat;
 
 import org.apache.catalina.Context;
+import org.apache.catalina.Executor;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.startup.Tomcat;
@@ -12,27 +13,49 @@ import javax.servlet.ServletException;
 import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractTomcatMetricsTest {
 
     private static Tomcat tomcat;
+    private static Context context;
     final static String CONTEXT_PATH = "/foo";
     final static String SERVLET_NAME = "foo_servlet";
-
+    final static String SLOW_PATH = "/slow";
+    private static SlowServlet slowServlet;
+    private static Thread slowClient;
+    private static volatile Exception slowClientFailure;
 
     public static void setUpTomcat() throws LifecycleException, ServletException {
         setUpTomcat("org.apache.tomcat.jdbc.pool.DataSourceFactory");
     }
 
     public static void setUpTomcat(String dataSourceFactory) throws LifecycleException, ServletException {
+        setUpTomcat(dataSourceFactory, null);
+    }
+
+    public static void setUpTomcat(String dataSourceFactory, Executor executor) throws LifecycleException, ServletException {
+        setUpTomcat(dataSourceFactory, executor, Collections.<String, String>emptyMap());
+    }
+
+    public static void setUpTomcat(String dataSourceFactory, Executor executor, Map<String, String> filterParameters) throws LifecycleException, ServletException {
         // create a tomcat instance
         tomcat = new Tomcat();
         tomcat.setBaseDir(".");
         tomcat.setPort(0);
         tomcat.enableNaming();
 
+        // optionally let the connector use a shared executor
+        if (executor != null) {
+            tomcat.getService().addExecutor(executor);
+            tomcat.getConnector().getProtocolHandler().setExecutor(executor);
+        }
+
         // create a context with our test servlet
         Context ctx = tomcat.addContext(CONTEXT_PATH, new File(".").getAbsolutePath());
+        context = ctx;
         Tomcat.addServlet(ctx, SERVLET_NAME, new TestServlet());
         ctx.addServletMappingDecoded("/*", SERVLET_NAME);
 
@@ -41,12 +64,23 @@ public abstract class AbstractTomcatMetricsTest {
         def.setFilterClass(TomcatServletMetricsFilter.class.getName());
         def.setFilterName("metricsFilter");
         def.addInitParameter("buckets",".01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30");
+        def.addInitParameter("resourceSampleRate", "1");
+        def.addInitParameter("exemplarHeader", "X-Request-ID");
+        for (Map.Entry<String, String> parameter : filterParameters.entrySet()) {
+            def.addInitParameter(parameter.getKey(), parameter.getValue());
+        }
         ctx.addFilterDef(def);
         FilterMap map = new FilterMap();
         map.setFilterName("metricsFilter");
         map.addURLPattern("/*");
         ctx.addFilterMap(map);
 
+        // add our request queue valve
+        tomcat.getEngine().getPipeline().addValve(new TomcatRequestQueueValve());
+
+        // add our access log valve
+        tomcat.getHost().getPipeline().addValve(new TomcatAccessLogValve());
+
         // create a datasource
         ContextResource resource = new ContextResource();
         resource.setName("jdbc/db");
@@ -75,15 +109,71 @@ public abstract class AbstractTomcatMetricsTest {
         }
     }
 
+    public static Tomcat getTomcat() {
+        return tomcat;
+    }
+
+    public static Context getContext() {
+        return context;
+    }
+
+    public static int getPort() {
+        return tomcat.getConnector().getLocalPort();
+    }
+
     public static void doRequest() {
+        doRequest(null);
+    }
+
+    public static void doRequest(String requestId) {
         // send GET request
         try {
-            HttpURLConnection urlConnection = (HttpURLConnection) new URL("http://localhost:" + tomcat.getConnector().getLocalPort() + CONTEXT_PATH + "/bar").openConnection();
+            HttpURLConnection urlConnection = (HttpURLConnection) new URL("http://localhost:" + getPort() + CONTEXT_PATH + "/bar").openConnection();
+            if (requestId != null) {
+                urlConnection.setRequestProperty("X-Request-ID", requestId);
+            }
             urlConnection.getInputStream().close();
             urlConnection.disconnect();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Sends a request to {@link #SLOW_PATH} on a separate thread and waits until the request is being processed. The
+     * request stays in flight until {@link #finishSlowRequest()} is called.
+     */
+    public static void startSlowRequest() throws InterruptedException {
+        slowServlet = new SlowServlet();
+        Tomcat.addServlet(context, "slow_servlet", slowServlet);
+        context.addServletMappingDecoded(SLOW_PATH, "slow_servlet");
+        slowClient = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpURLConnection urlConnection = (HttpURLConnection) new URL("http://localhost:" + getPort() + CONTEXT_PATH + SLOW_PATH).openConnection();
+                    urlConnection.getInputStream().close();
+                    urlConnection.disconnect();
+                } catch (Exception e) {
+                    slowClientFailure = e;
+                }
+            }
+        });
+        slowClient.start();
+        if (!slowServlet.entered.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Slow request not received", slowClientFailure);
+        }
+    }
+
+    /**
+     * Releases the request started by {@link #startSlowRequest()} and waits for its response.
+     */
+    public static void finishSlowRequest() throws Exception {
+        slowServlet.release.countDown();
+        slowClient.join(10000);
+        if (slowClientFailure != null) {
+            throw slowClientFailure;
+        }
+    }
 }
 
@@ -0,0 +1,66 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class ContextScopedSnapshotTest {
+
+    private CollectorRegistry registry;
+    private CountingCollector collector;
+
+    @Before
+    public void setUp() {
+        registry = new CollectorRegistry();
+        collector = new CountingCollector();
+        collector.register(registry);
+    }
+
+    @Test
+    public void testContextSubsets() {
+        ContextScopedSnapshot snapshot = new ContextScopedSnapshot(registry, 60000);
+        List<Collector.MetricFamilySamples> foo = snapshot.get("/foo");
+        assertThat(foo.size(), is(1));
+        assertThat(foo.get(0).samples.size(), is(1));
+        assertThat(foo.get(0).samples.get(0).value, is(1.0));
+        assertThat(snapshot.get("/bar").get(0).samples.get(0).value, is(2.0));
+        assertThat(snapshot.get("/unknown").isEmpty(), is(true));
+        assertThat(collector.collections, is(1));
+    }
+
+    @Test
+    public void testSnapshotExpires() throws Exception {
+        ContextScopedSnapshot snapshot = new ContextScopedSnapshot(registry, 0);
+        snapshot.get("/foo");
+        snapshot.get("/bar");
+        assertThat(collector.collections, is(2));
+    }
+
+    private static class CountingCollector extends Collector {
+        private int collections;
+
+        public List<MetricFamilySamples> collect() {
+            collections++;
+            GaugeMetricFamily sessions = new GaugeMetricFamily("tomcat_session_active", "Number of active sessions", Arrays.asList("host", "context"));
+            sessions.addMetric(Arrays.asList("localhost", "/foo"), 1);
+            sessions.addMetric(Arrays.asList("localhost", "/bar"), 2);
+            GaugeMetricFamily threads = new GaugeMetricFamily("tomcat_threads_current", "Number threads in this pool.", Collections.singletonList("name"));
+            threads.addMetric(Collections.singletonList("http-nio-8080"), 10);
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            mfs.add(sessions);
+            mfs.add(threads);
+            return mfs;
+        }
+    }
+}
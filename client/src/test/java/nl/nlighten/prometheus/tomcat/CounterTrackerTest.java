@@ -0,0 +1,64 @@
+package nl.nlighten.prometheus.tomcat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class CounterTrackerTest {
+
+    private static final List<String> LABELS = Arrays.asList("localhost", "/foo");
+
+    @Test
+    public void testCounterReset() throws Exception {
+        CounterTracker tracker = new CounterTracker();
+        assertThat(tracker.counter("requests", LABELS, 10), is(10.0));
+        assertThat(tracker.counter("requests", LABELS, 15), is(15.0));
+        // context reloaded, the raw value started from zero again
+        assertThat(tracker.counter("requests", LABELS, 3), is(18.0));
+        assertThat(tracker.counter("requests", LABELS, 5), is(20.0));
+        assertThat(tracker.counter("requests", Arrays.asList("localhost", "/bar"), 1), is(1.0));
+    }
+
+    @Test
+    public void testIntervalAverage() throws Exception {
+        final AtomicLong now = new AtomicLong(60000);
+        CounterTracker tracker = new CounterTracker(60000, 1000) {
+            @Override
+            long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        // the first window returns the average since the start
+        assertThat(tracker.intervalAverage("time", LABELS, 4, 2.0), is(0.5));
+        // calls within the same window, e.g. by a second consumer, do not start a new window
+        now.addAndGet(500);
+        assertThat(tracker.intervalAverage("time", LABELS, 5, 3.0), is(0.5));
+        now.addAndGet(600);
+        assertThat(tracker.intervalAverage("time", LABELS, 6, 4.0), is(1.0));
+        now.addAndGet(100);
+        assertThat(tracker.intervalAverage("time", LABELS, 8, 8.0), is(1.0));
+        now.addAndGet(1000);
+        assertThat(tracker.intervalAverage("time", LABELS, 8, 8.0), is(2.0));
+        now.addAndGet(1000);
+        assertThat(tracker.intervalAverage("time", LABELS, 8, 8.0), is(0.0));
+        // after a reset the average since the reset is returned
+        now.addAndGet(100);
+        assertThat(tracker.intervalAverage("time", LABELS, 2, 0.5), is(0.25));
+    }
+
+    @Test
+    public void testRemoveStale() throws Exception {
+        CounterTracker tracker = new CounterTracker(0);
+        tracker.counter("requests", LABELS, 10);
+        Thread.sleep(5);
+        tracker.removeStale();
+        assertThat(tracker.size(), is(0));
+        assertThat(tracker.counter("requests", LABELS, 3), is(3.0));
+    }
+}
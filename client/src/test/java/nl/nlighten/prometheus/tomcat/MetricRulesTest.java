@@ -0,0 +1,124 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Predicate;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class MetricRulesTest {
+
+    @Test
+    public void testIncludeExclude() {
+        MetricRules rules = rules("include", "tomcat_session_.*,tomcat_threads_.*",
+                "exclude", "tomcat_session_alivetime_.*,tomcat_session_created");
+        assertThat(rules.isAllowed("tomcat_session_active"), is(true));
+        assertThat(rules.isAllowed("tomcat_session_created_total"), is(false));
+        assertThat(rules.isAllowed("tomcat_session_alivetime_seconds_max"), is(false));
+        assertThat(rules.isAllowed("tomcat_requestprocessor_request_count_total"), is(false));
+        assertThat(rules.isAllowed("tomcat_info"), is(true));
+    }
+
+    @Test
+    public void testFilterPassedToCollector() {
+        SessionCollector collector = new SessionCollector();
+        CollectorRegistry registry = new CollectorRegistry();
+        rules("exclude", "tomcat_session_created").wrap(collector).register(registry);
+        assertThat(registry.getSampleValue("tomcat_session_created_total", new String[]{"host", "context"}, new String[]{"localhost", "/a"}), is(nullValue()));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/a"}), is(1.0));
+        assertThat(collector.filter.test("tomcat_session_active"), is(true));
+        assertThat(collector.filter.test("tomcat_session_created_total"), is(false));
+    }
+
+    @Test
+    public void testDropLabels() {
+        CollectorRegistry registry = new CollectorRegistry();
+        rules("drop.tomcat_session_.*", "context").wrap(new SessionCollector()).register(registry);
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host"}, new String[]{"localhost"}), is(6.0));
+        assertThat(registry.getSampleValue("tomcat_session_created_total", new String[]{"host"}, new String[]{"localhost"}), is(60.0));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/a"}), is(nullValue()));
+        // maximums are not summed and averages can not be combined
+        assertThat(registry.getSampleValue("tomcat_session_alivetime_seconds_max", new String[]{"host"}, new String[]{"localhost"}), is(300.0));
+        assertThat(registry.getSampleValue("tomcat_session_alivetime_seconds_avg", new String[]{"host"}, new String[]{"localhost"}), is(nullValue()));
+        // samples without the dropped label are kept
+        assertThat(registry.getSampleValue("tomcat_session_size_cycle_cpu_seconds"), is(0.5));
+    }
+
+    @Test
+    public void testLimit() {
+        CollectorRegistry registry = new CollectorRegistry();
+        rules("limit.tomcat_session_active", "2").wrap(new SessionCollector()).register(registry);
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/a"}), is(1.0));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/b"}), is(2.0));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/c"}), is(nullValue()));
+        assertThat(registry.getSampleValue("tomcat_session_created_total", new String[]{"host", "context"}, new String[]{"localhost", "/c"}), is(30.0));
+    }
+
+    @Test
+    public void testLimitKeepsSameSeries() {
+        CollectorRegistry registry = new CollectorRegistry();
+        SessionCollector collector = new SessionCollector();
+        collector.reverse = true;
+        rules("limit.tomcat_session_active", "2").wrap(collector).register(registry);
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/a"}), is(1.0));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/b"}), is(2.0));
+        assertThat(registry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", "/c"}), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownRule() {
+        rules("exlude", "tomcat_info");
+    }
+
+    private MetricRules rules(String... keyValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return new MetricRules(properties);
+    }
+
+    private static class SessionCollector extends Collector {
+        private Predicate<String> filter;
+        private boolean reverse;
+
+        public List<MetricFamilySamples> collect() {
+            return collect(null);
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+            filter = sampleNameFilter;
+            GaugeMetricFamily active = new GaugeMetricFamily("tomcat_session_active", "Number of active sessions", Arrays.asList("host", "context"));
+            CounterMetricFamily created = new CounterMetricFamily("tomcat_session_created", "Number of sessions created", Arrays.asList("host", "context"));
+            GaugeMetricFamily aliveMax = new GaugeMetricFamily("tomcat_session_alivetime_seconds_max", "Maximum session alive time", Arrays.asList("host", "context"));
+            GaugeMetricFamily aliveAvg = new GaugeMetricFamily("tomcat_session_alivetime_seconds_avg", "Average session alive time", Arrays.asList("host", "context"));
+            for (int i = 1; i <= 3; i++) {
+                int n = reverse ? 4 - i : i;
+                String context = "/" + (char) ('a' + n - 1);
+                active.addMetric(Arrays.asList("localhost", context), n);
+                created.addMetric(Arrays.asList("localhost", context), n * 10);
+                aliveMax.addMetric(Arrays.asList("localhost", context), n * 100);
+                aliveAvg.addMetric(Arrays.asList("localhost", context), n * 50);
+            }
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            mfs.add(active);
+            mfs.add(created);
+            mfs.add(aliveMax);
+            mfs.add(aliveAvg);
+            mfs.add(new GaugeMetricFamily("tomcat_session_size_cycle_cpu_seconds", "CPU time of the last sampling cycle", 0.5));
+            return mfs;
+        }
+    }
+}
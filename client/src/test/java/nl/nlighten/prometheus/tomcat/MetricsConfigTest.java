@@ -0,0 +1,100 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class MetricsConfigTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testRebucketThroughMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = MetricsConfig.getInstance().getObjectName();
+        server.setAttribute(name, new Attribute("ServletBuckets", "0.2,3"));
+        doRequest();
+
+        // the filter observes the request after the response has been sent
+        long deadline = System.currentTimeMillis() + 10000;
+        while (CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_bucket", new String[]{"context", "method", "le"}, new String[]{CONTEXT_PATH, "GET", "3.0"}) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat((String) server.getAttribute(name, "ServletBuckets"), is("0.2,3"));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_bucket", new String[]{"context", "method", "le"}, new String[]{CONTEXT_PATH, "GET", "3.0"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_bucket", new String[]{"context", "method", "le"}, new String[]{CONTEXT_PATH, "GET", "0.01"}), is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidValueRejected() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = MetricsConfig.getInstance().getObjectName();
+        Object before = server.getAttribute(name, "ServletBuckets");
+        try {
+            server.setAttribute(name, new Attribute("ServletBuckets", "3,1"));
+            fail("Buckets not in increasing order were accepted");
+        } catch (RuntimeMBeanException e) {
+            assertThat(e.getCause() instanceof IllegalArgumentException, is(true));
+        }
+        assertThat(server.getAttribute(name, "ServletBuckets"), is(before));
+    }
+
+    @Test
+    public void testConfigFile() throws Exception {
+        File file = File.createTempFile("metrics-config", ".properties");
+        file.deleteOnExit();
+        write(file, "jdbc.threshold=250\nunknown=1\nresourceSampleRate=2\n");
+        MetricsConfig config = MetricsConfig.getInstance();
+        config.watch(file.getAbsolutePath(), 100);
+
+        // applied when the watch starts, the invalid settings are logged and skipped
+        assertThat(config.getJdbcSlowQueryThreshold(), is(250L));
+        assertThat(config.get("unknown"), is(nullValue()));
+        assertThat(config.getResourceSampleRate(), is(1.0));
+
+        write(file, "jdbc.threshold=500\nstuckRequestThreshold=5\n");
+        file.setLastModified(file.lastModified() + 2000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((config.getJdbcSlowQueryThreshold() != 500 || config.getStuckRequestThreshold() != 5) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(config.getJdbcSlowQueryThreshold(), is(500L));
+        assertThat(config.getStuckRequestThreshold(), is(5L));
+        assertThat(config.getConfigFile(), is(notNullValue()));
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class MetricsHolderTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testReleaseWhenUnused() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        MetricsHolder holder = new MetricsHolder(registry, true);
+        Object first = new Object();
+        Object second = new Object();
+        holder.attach(first);
+        holder.attach(second);
+        holder.register(Gauge.build().name("holder_test").help("test").create()).set(1);
+        final AtomicBoolean closed = new AtomicBoolean();
+        holder.get("closeable", new MetricsHolder.Factory<Closeable>() {
+            @Override
+            public Closeable create(MetricsHolder holder) {
+                return new Closeable() {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                };
+            }
+        });
+
+        holder.detach(first);
+        assertThat(registry.getSampleValue("holder_test"), is(1.0));
+        assertThat(closed.get(), is(false));
+
+        holder.detach(second);
+        assertThat(registry.getSampleValue("holder_test"), is(nullValue()));
+        assertThat(closed.get(), is(true));
+    }
+
+    @Test
+    public void testKeptWhenShared() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        MetricsHolder holder = new MetricsHolder(registry, false);
+        Object user = new Object();
+        holder.attach(user);
+        holder.register(Gauge.build().name("holder_test").help("test").create()).set(1);
+        holder.detach(user);
+        assertThat(registry.getSampleValue("holder_test"), is(1.0));
+    }
+
+    @Test
+    public void testClosedHolder() throws Exception {
+        MetricsHolder holder = new MetricsHolder(new CollectorRegistry(), true);
+        Object user = new Object();
+        holder.attach(user);
+        holder.detach(user);
+        try {
+            holder.attach(user);
+            fail("Attached to a closed holder");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // shared objects requested from a closed holder are taken from the current holder
+        Object value = holder.get("holder_test", new MetricsHolder.Factory<Object>() {
+            @Override
+            public Object create(MetricsHolder holder) {
+                return new Object();
+            }
+        });
+        assertThat(MetricsHolder.getInstance().get("holder_test", null), is(value));
+    }
+
+    @Test
+    public void testConfigOnlyUnregistersOwnMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        MetricsHolder previous = new MetricsHolder(new CollectorRegistry(), true);
+        MetricsConfig previousConfig = MetricsConfig.getInstance(previous);
+        MetricsHolder current = new MetricsHolder(new CollectorRegistry(), true);
+        MetricsConfig currentConfig = MetricsConfig.getInstance(current);
+        assertThat(currentConfig.getObjectName(), is(previousConfig.getObjectName()));
+        ObjectName name = currentConfig.getObjectName();
+
+        // the previous holder is closed after the config of the current holder was registered
+        previous.close();
+        assertThat(server.isRegistered(name), is(true));
+        current.close();
+        assertThat(server.isRegistered(name), is(false));
+    }
+
+    @Test
+    public void testContextStop() throws Exception {
+        doRequest();
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_count", new String[]{"context", "method"}, new String[]{CONTEXT_PATH, "GET"}), is(greaterThan(0.0)));
+
+        getContext().stop();
+
+        // the series of the stopped context are removed, the collectors remain registered for other contexts
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_count", new String[]{"context", "method"}, new String[]{CONTEXT_PATH, "GET"}), is(nullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_response_status_total", new String[]{"context", "status"}, new String[]{CONTEXT_PATH, "200"}), is(nullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_cpu_seconds_count", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(nullValue()));
+        boolean registered = false;
+        for (Enumeration<Collector.MetricFamilySamples> mfs = CollectorRegistry.defaultRegistry.metricFamilySamples(); mfs.hasMoreElements(); ) {
+            registered |= mfs.nextElement().name.equals("servlet_request_seconds");
+        }
+        assertThat(registered, is(true));
+    }
+}
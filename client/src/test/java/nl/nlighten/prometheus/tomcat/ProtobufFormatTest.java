@@ -0,0 +1,184 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class ProtobufFormatTest {
+
+    @Test
+    public void testContentNegotiation() throws Exception {
+        assertThat(ProtobufFormat.isPreferred(null), is(false));
+        assertThat(ProtobufFormat.isPreferred("text/plain;version=0.0.4;q=0.3,*/*;q=0.1"), is(false));
+        assertThat(ProtobufFormat.isPreferred("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.1"), is(true));
+        assertThat(ProtobufFormat.isPreferred("application/openmetrics-text;version=1.0.0,application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.5"), is(false));
+        assertThat(ProtobufFormat.isPreferred("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text"), is(false));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Counter counter = Counter.build().name("requests").help("Requests.").labelNames("context").withoutExemplars().register(registry);
+        counter.labels("/foo").inc(3);
+        Gauge gauge = Gauge.build().name("sessions").help("Sessions with a long help text " + new String(new char[200]).replace('\0', 'x')).labelNames("context").register(registry);
+        gauge.labels("/föö").set(2.5);
+        Histogram histogram = Histogram.build().name("latency_seconds").help("Latency.").labelNames("context").buckets(.1, 1).withoutExemplars().register(registry);
+        histogram.labels("/foo").observe(.05);
+        histogram.labels("/foo").observeWithExemplar(.5, "trace_id", "abc");
+        histogram.labels("/bar").observe(5);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtobufFormat format = new ProtobufFormat();
+        format.write(out, registry.metricFamilySamples());
+        // the buffer is reused for the next scrape
+        ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+        format.write(secondOut, registry.metricFamilySamples());
+        assertThat(Arrays.equals(out.toByteArray(), secondOut.toByteArray()), is(true));
+
+        Map<String, Message> families = new HashMap<String, Message>();
+        ByteBuffer input = ByteBuffer.wrap(out.toByteArray());
+        while (input.hasRemaining()) {
+            int length = (int) readVarint(input);
+            Message family = parse(input, length);
+            families.put(family.string(1), family);
+        }
+
+        Message requests = families.get("requests_total");
+        assertThat(requests.varint(3), is(0L));
+        Message requestsMetric = requests.message(4);
+        assertThat(requestsMetric.message(1).string(2), is("/foo"));
+        assertThat(requestsMetric.message(3).fixed64(1), is(3.0));
+
+        Message sessions = families.get("sessions");
+        assertThat(sessions.varint(3), is(1L));
+        assertThat(sessions.string(2).length(), is(231));
+        assertThat(sessions.message(4).message(1).string(2), is("/föö"));
+        assertThat(sessions.message(4).message(2).fixed64(1), is(2.5));
+
+        Message latency = families.get("latency_seconds");
+        assertThat(latency.varint(3), is(4L));
+        assertThat(latency.messages(4).size(), is(2));
+        for (Message metric : latency.messages(4)) {
+            Message h = metric.message(7);
+            if (metric.message(1).string(2).equals("/foo")) {
+                assertThat(h.varint(1), is(2L));
+                assertThat(h.fixed64(2), is(.55));
+                // the +Inf bucket is implied
+                List<Message> buckets = h.messages(3);
+                assertThat(buckets.size(), is(2));
+                assertThat(buckets.get(0).fixed64(2), is(.1));
+                assertThat(buckets.get(0).varint(1), is(1L));
+                assertThat(buckets.get(1).varint(1), is(2L));
+                Message exemplar = buckets.get(1).message(3);
+                assertThat(exemplar.message(1).string(1), is("trace_id"));
+                assertThat(exemplar.message(1).string(2), is("abc"));
+                assertThat(exemplar.fixed64(2), is(.5));
+                assertThat(exemplar.message(3).varint(1) > 1600000000L, is(true));
+                assertThat(exemplar.message(3).varint(2) % 1000000, is(0L));
+            } else {
+                assertThat(h.varint(1), is(1L));
+                assertThat(h.messages(3).get(1).varint(1), is(0L));
+            }
+        }
+    }
+
+    @Test
+    public void testWeightedCounts() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        WeightedHistogram histogram = new WeightedHistogram("cpu_seconds", "Cpu.", Collections.singletonList("context"), new double[]{1});
+        registry.register(histogram);
+        histogram.labels("/foo").observe(.5, 2.5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProtobufFormat().write(out, registry.metricFamilySamples());
+        ByteBuffer input = ByteBuffer.wrap(out.toByteArray());
+        Message family = parse(input, (int) readVarint(input));
+        Message h = family.message(4).message(7);
+        assertThat(h.fixed64(4), is(2.5));
+        assertThat(h.message(3).fixed64(4), is(2.5));
+    }
+
+    private static long readVarint(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static Message parse(ByteBuffer input, int length) {
+        Message message = new Message();
+        int end = input.position() + length;
+        while (input.position() < end) {
+            long tag = readVarint(input);
+            int field = (int) (tag >>> 3);
+            switch ((int) (tag & 7)) {
+                case 0:
+                    message.add(field, readVarint(input));
+                    break;
+                case 1:
+                    message.add(field, input.order(ByteOrder.LITTLE_ENDIAN).getDouble());
+                    break;
+                case 2:
+                    int fieldLength = (int) readVarint(input);
+                    byte[] bytes = new byte[fieldLength];
+                    input.duplicate().get(bytes);
+                    message.add(field, bytes);
+                    input.position(input.position() + fieldLength);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected wire type " + tag);
+            }
+        }
+        return message;
+    }
+
+    private static class Message {
+        private final Map<Integer, List<Object>> fields = new HashMap<Integer, List<Object>>();
+
+        void add(int field, Object value) {
+            if (!fields.containsKey(field)) {
+                fields.put(field, new ArrayList<Object>());
+            }
+            fields.get(field).add(value);
+        }
+
+        long varint(int field) {
+            return (Long) fields.get(field).get(0);
+        }
+
+        double fixed64(int field) {
+            return (Double) fields.get(field).get(0);
+        }
+
+        String string(int field) {
+            return new String((byte[]) fields.get(field).get(0), StandardCharsets.UTF_8);
+        }
+
+        Message message(int field) {
+            return messages(field).get(0);
+        }
+
+        List<Message> messages(int field) {
+            List<Message> messages = new ArrayList<Message>();
+            for (Object value : fields.get(field)) {
+                messages.add(parse(ByteBuffer.wrap((byte[]) value), ((byte[]) value).length));
+            }
+            return messages;
+        }
+    }
+}
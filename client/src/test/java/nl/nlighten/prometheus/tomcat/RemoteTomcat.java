@@ -0,0 +1,30 @@
+package nl.nlighten.prometheus.tomcat;
+
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs the Tomcat of the tests in a separate JVM with a JMX connector, for tests collecting metrics over remote JMX.
+ * Prints the JMX service url and process id of the JVM, and stops when its standard input is closed.
+ */
+public class RemoteTomcat {
+
+    public static void main(String[] args) throws Exception {
+        AbstractTomcatMetricsTest.setUpTomcat();
+        AbstractTomcatMetricsTest.doRequest();
+        JMXConnectorServer connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL("rmi", "127.0.0.1", 0), null, ManagementFactory.getPlatformMBeanServer());
+        connectorServer.start();
+        System.out.println("JMX_URL=" + connectorServer.getAddress());
+        System.out.println("PID=" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+        System.out.flush();
+        while (System.in.read() != -1) {
+            // wait until the test closes the stream
+        }
+        connectorServer.stop();
+        AbstractTomcatMetricsTest.shutDownTomcat();
+        System.exit(0);
+    }
+}
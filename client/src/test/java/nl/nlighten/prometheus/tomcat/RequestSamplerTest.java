@@ -0,0 +1,78 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.anyOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+
+public class RequestSamplerTest {
+
+    @Test
+    public void testFixedRate() throws Exception {
+        assertThat(new RequestSampler(1, 0, 0).sample("/foo"), is(1.0));
+        assertThat(new RequestSampler(0, 0, 0).sample("/foo"), is(0.0));
+        RequestSampler sampler = new RequestSampler(0.25, 0, 0);
+        double total = 0;
+        for (int i = 0; i < 100000; i++) {
+            double weight = sampler.sample("/foo");
+            assertThat(weight, anyOf(is(0.0), is(4.0)));
+            total += weight;
+        }
+        // the weighted number of sampled requests estimates the number of requests
+        assertThat(total, is(closeTo(100000, 5000)));
+    }
+
+    @Test
+    public void testRateLimited() throws Exception {
+        RequestSampler sampler = new RequestSampler(1, 10, 0);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1100);
+        while (System.nanoTime() < end) {
+            sampler.sample("/foo");
+        }
+        // after the first second the probability is based on the number of requests in that second
+        double sampled = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sampler.sample("/foo") > 0) {
+                sampled++;
+            }
+        }
+        assertThat(sampled, is(lessThan(100.0)));
+        // other contexts have their own rate
+        assertThat(sampler.sample("/bar"), is(1.0));
+    }
+
+    @Test
+    public void testTailBiased() throws Exception {
+        RequestSampler sampler = new RequestSampler(0, 0, 100);
+        assertThat(sampler.isTailBiased(), is(true));
+        assertThat(sampler.weight(sampler.sample("/foo"), TimeUnit.MILLISECONDS.toNanos(50)), is(0.0));
+        assertThat(sampler.weight(sampler.sample("/foo"), TimeUnit.MILLISECONDS.toNanos(150)), is(1.0));
+        // a sampled request above the threshold is recorded once
+        assertThat(sampler.weight(10, TimeUnit.MILLISECONDS.toNanos(150)), is(1.0));
+        assertThat(sampler.weight(10, TimeUnit.MILLISECONDS.toNanos(50)), is(10.0));
+        assertThat(new RequestSampler(1, 0, 0).isTailBiased(), is(false));
+    }
+
+    @Test
+    public void testWeightedHistogram() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        WeightedHistogram histogram = new WeightedHistogram("test_seconds", "help", Collections.singletonList("context"), new double[]{.1, 1});
+        registry.register(histogram);
+        histogram.labels("/foo").observe(.05, 4);
+        histogram.labels("/foo").observe(.5, 1);
+        histogram.labels("/foo").observe(5, 0);
+        assertThat(registry.getSampleValue("test_seconds_bucket", new String[]{"context", "le"}, new String[]{"/foo", "0.1"}), is(4.0));
+        assertThat(registry.getSampleValue("test_seconds_bucket", new String[]{"context", "le"}, new String[]{"/foo", "1.0"}), is(5.0));
+        assertThat(registry.getSampleValue("test_seconds_bucket", new String[]{"context", "le"}, new String[]{"/foo", "+Inf"}), is(5.0));
+        assertThat(registry.getSampleValue("test_seconds_count", new String[]{"context"}, new String[]{"/foo"}), is(5.0));
+        assertThat(registry.getSampleValue("test_seconds_sum", new String[]{"context"}, new String[]{"/foo"}), is(closeTo(0.7, 1e-9)));
+    }
+}
@@ -19,7 +19,7 @@ public class TestServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         // deliberately create a session to test session metrics
-        req.getSession();
+        req.getSession().setAttribute("foo", "bar");
 
 
         Connection conn = null;
@@ -0,0 +1,34 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatAccessLogValveTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testAccessLogMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context", "method", "status"};
+        String[] labelValues = new String[]{"localhost", CONTEXT_PATH, "GET", "200"};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_access_request_seconds_count", labels, labelValues), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_access_request_seconds_sum", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_access_response_bytes_total", labels, labelValues), is(greaterThan(0.0)));
+    }
+}
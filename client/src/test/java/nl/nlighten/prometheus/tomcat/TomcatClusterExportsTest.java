@@ -0,0 +1,159 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatClusterExportsTest {
+
+    private static final String MANAGER_NAME = "Tomcat:type=Manager,context=/cluster,host=localhost";
+    private static final String THROUGHPUT_NAME = "Tomcat:type=Channel,channel=\"Catalina-Channel\",component=Interceptor,interceptorName=ThroughputInterceptor";
+    private static final String RECEIVER_NAME = "Tomcat:type=Channel,channel=\"Catalina-Channel\",component=Receiver";
+    private static final String SENDER_NAME = "Tomcat:type=Channel,channel=\"Catalina-Channel\",component=Sender";
+    private static final CollectorRegistry registry = new CollectorRegistry();
+    private static final FakeMBean manager = new FakeMBean();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        manager.attributes.put("counterSend_EVT_SESSION_DELTA", 10L);
+        manager.attributes.put("counterReceive_EVT_SESSION_DELTA", 8L);
+        manager.attributes.put("counterNoStateTransfered", 1);
+        manager.attributes.put("sessionReplaceCounter", 2L);
+        register(MANAGER_NAME, manager);
+
+        FakeMBean throughput = new FakeMBean();
+        throughput.attributes.put("MsgTxCnt", 100L);
+        throughput.attributes.put("MsgRxCnt", 90L);
+        throughput.attributes.put("MsgTxErr", 1L);
+        throughput.attributes.put("MbTx", 2.0);
+        throughput.attributes.put("MbRx", 1.0);
+        throughput.attributes.put("TimeTx", 3.5);
+        register(THROUGHPUT_NAME, throughput);
+
+        FakeMBean receiver = new FakeMBean();
+        receiver.attributes.put("ActiveCount", 1);
+        receiver.attributes.put("PoolSize", 6);
+        receiver.attributes.put("MaxThreads", 15);
+        receiver.attributes.put("CompletedTaskCount", 42L);
+        register(RECEIVER_NAME, receiver);
+
+        FakeMBean sender = new FakeMBean();
+        sender.attributes.put("InUsePoolSize", 2);
+        sender.attributes.put("PoolSize", 25);
+        register(SENDER_NAME, sender);
+
+        new TomcatClusterExports(true).register(registry);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String name : new String[]{MANAGER_NAME, THROUGHPUT_NAME, RECEIVER_NAME, SENDER_NAME}) {
+            server.unregisterMBean(new ObjectName(name));
+        }
+    }
+
+    @Test
+    public void testReplicationMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context"};
+        String[] labelValues = new String[]{"localhost", "/cluster"};
+        String[] eventLabels = new String[]{"host", "context", "event"};
+        String[] eventLabelValues = new String[]{"localhost", "/cluster", "session_delta"};
+        assertThat(registry.getSampleValue("tomcat_cluster_session_messages_sent_total", eventLabels, eventLabelValues), is(10.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_session_messages_received_total", eventLabels, eventLabelValues), is(8.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_session_state_transfer_missing_total", labels, labelValues), is(1.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_session_replaced_total", labels, labelValues), is(2.0));
+        // events without an attribute are not exported
+        assertThat(registry.getSampleValue("tomcat_cluster_session_messages_sent_total", eventLabels, new String[]{"localhost", "/cluster", "session_created"}), is(nullValue()));
+    }
+
+    @Test
+    public void testReplicationCountersSurviveReload() throws Exception {
+        String[] eventLabels = new String[]{"host", "context", "event"};
+        String[] eventLabelValues = new String[]{"localhost", "/cluster", "session_expired"};
+        manager.attributes.put("counterReceive_EVT_SESSION_EXPIRED", 20L);
+        assertThat(registry.getSampleValue("tomcat_cluster_session_messages_received_total", eventLabels, eventLabelValues), is(20.0));
+        // the counters of a reloaded context start from zero again
+        manager.attributes.put("counterReceive_EVT_SESSION_EXPIRED", 3L);
+        assertThat(registry.getSampleValue("tomcat_cluster_session_messages_received_total", eventLabels, eventLabelValues), is(23.0));
+    }
+
+    @Test
+    public void testChannelMetrics() throws Exception {
+        String[] labels = new String[]{"channel"};
+        String[] labelValues = new String[]{"Catalina-Channel"};
+        assertThat(registry.getSampleValue("tomcat_cluster_messages_sent_total", labels, labelValues), is(100.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_messages_received_total", labels, labelValues), is(90.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_messages_failed_total", labels, labelValues), is(1.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_sent_bytes_total", labels, labelValues), is(2.0 * 1024 * 1024));
+        assertThat(registry.getSampleValue("tomcat_cluster_received_bytes_total", labels, labelValues), is(1024.0 * 1024));
+        assertThat(registry.getSampleValue("tomcat_cluster_send_seconds_total", labels, labelValues), is(3.5));
+        assertThat(registry.getSampleValue("tomcat_cluster_receiver_threads_active", labels, labelValues), is(1.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_receiver_threads_current", labels, labelValues), is(6.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_receiver_threads_max", labels, labelValues), is(15.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_receiver_tasks_completed_total", labels, labelValues), is(42.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_sender_connections_active", labels, labelValues), is(2.0));
+        assertThat(registry.getSampleValue("tomcat_cluster_sender_connections_max", labels, labelValues), is(25.0));
+    }
+
+    private static void register(String name, FakeMBean mBean) throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(mBean, new ObjectName(name));
+    }
+
+    /**
+     * An MBean with the attributes of the cluster MBeans of Tomcat, as these are only registered in a running cluster.
+     */
+    private static class FakeMBean implements DynamicMBean {
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!attributes.containsKey(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return attributes.get(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(FakeMBean.class.getName(), null, null, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatEndpointExportsTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        new TomcatEndpointExports(true).register();
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testEndpointMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connections_keepalive", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connections_backlog_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(100.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connector_paused", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connector_acceptor_threads", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connector_poller_threads", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testSocketPropertiesMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_socket_processorcache_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(500.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_socket_eventcache_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(500.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_socket_bufferpool_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(500.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_socket_bufferpool_bytes_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+    }
+}
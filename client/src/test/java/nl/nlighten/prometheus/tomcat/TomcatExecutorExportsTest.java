@@ -0,0 +1,49 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatExecutorExportsTest extends AbstractTomcatMetricsTest {
+
+    private final static String EXECUTOR_NAME = "sharedThreadPool";
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        TomcatThreadExecutor executor = new TomcatThreadExecutor();
+        executor.setName(EXECUTOR_NAME);
+        setUpTomcat("org.apache.tomcat.jdbc.pool.DataSourceFactory", executor);
+        new TomcatExecutorExports(true).register();
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testExecutorMetrics() throws Exception {
+        String[] labels = new String[]{"name"};
+        String[] labelValues = new String[]{EXECUTOR_NAME};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_threads_current", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_threads_active", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_threads_max", labels, labelValues), is(200.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_threads_largest", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_queue_size", labels, labelValues), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_queue_max", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_tasks_completed_total", labels, labelValues), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testQueueWaitMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_queue_wait_seconds_bucket", new String[]{"name", "le"}, new String[]{EXECUTOR_NAME, "+Inf"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_executor_queue_wait_seconds_count", new String[]{"name"}, new String[]{EXECUTOR_NAME}), is(greaterThan(0.0)));
+    }
+}
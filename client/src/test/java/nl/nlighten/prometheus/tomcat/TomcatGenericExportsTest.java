@@ -1,10 +1,17 @@
 package nl.nlighten.prometheus.tomcat;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.SampleNameFilter;
 import org.apache.catalina.util.ServerInfo;
 import org.junit.Test;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.Matchers.greaterThan;
@@ -16,7 +23,7 @@ public class TomcatGenericExportsTest extends AbstractTomcatMetricsTest {
     @BeforeClass
     public static void setUp() throws Exception {
         setUpTomcat();
-        new TomcatGenericExports(true).register();
+        new TomcatGenericExports(true, true).register();
         doRequest();
     }
 
@@ -32,16 +39,17 @@ public class TomcatGenericExportsTest extends AbstractTomcatMetricsTest {
 
     @Test
     public void testRequestProcessorMetrics() throws Exception {
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_received_bytes", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(notNullValue()));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_sent_bytes", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_time_seconds", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_received_bytes_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_sent_bytes_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_time_seconds_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_time_seconds_avg", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(notNullValue()));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_error_count_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(0.0));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_request_count_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(1.0));
     }
 
     @Test
     public void testSessionMetrics() throws Exception {
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_active_total", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_active", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(greaterThan(0.0)));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_rejected_total", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(0.0));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_created_total", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(greaterThan(0.0)));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_expired_total", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(0.0));
@@ -57,10 +65,21 @@ public class TomcatGenericExportsTest extends AbstractTomcatMetricsTest {
 
     @Test
     public void testThreadPoolMetrics() throws Exception {
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_active_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_current", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_active", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(0.0));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(200.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connections_active_total", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connections_active", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(greaterThan(0.0)));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_connections_active_max", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(8192.0));
     }
+
+    @Test
+    public void testFilteredCollect() throws Exception {
+        List<Collector.MetricFamilySamples> mfs = new TomcatGenericExports(true).collect(
+                new SampleNameFilter.Builder().nameMustBeEqualTo(Arrays.asList("tomcat_threads_max")).build());
+        assertThat(mfs.size(), is(1));
+        assertThat(mfs.get(0).name, is("tomcat_threads_max"));
+
+        assertThat(Collections.list(CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(
+                Collections.singleton("tomcat_info"))).size(), is(1));
+    }
 }
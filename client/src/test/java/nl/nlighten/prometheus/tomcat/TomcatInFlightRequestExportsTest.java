@@ -0,0 +1,57 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.coyote.AbstractProtocol;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatInFlightRequestExportsTest extends AbstractTomcatMetricsTest {
+
+    private static String worker;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        new TomcatInFlightRequestExports(true, 100, 10).register();
+        // with an automatically assigned port the request processors are registered with the actual port
+        worker = ((AbstractProtocol<?>) getTomcat().getConnector().getProtocolHandler()).getName().replaceAll("\"", "");
+        doRequest();
+
+        // keep a request in flight while the tests run
+        startSlowRequest();
+        Thread.sleep(200);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        finishSlowRequest();
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testStageMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_stage", new String[]{"name", "stage"}, new String[]{worker, "service"}), is(greaterThanOrEqualTo(1.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_requestprocessor_stage", new String[]{"name", "stage"}, new String[]{worker, "keepalive"}), is(notNullValue()));
+    }
+
+    @Test
+    public void testAgeMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_inflight_request_age_seconds_gcount", new String[]{"name"}, new String[]{worker}), is(greaterThanOrEqualTo(1.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_inflight_request_age_seconds_gsum", new String[]{"name"}, new String[]{worker}), is(greaterThan(0.1)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_inflight_request_age_seconds_bucket", new String[]{"name", "le"}, new String[]{worker, "+Inf"}), is(greaterThanOrEqualTo(1.0)));
+    }
+
+    @Test
+    public void testSlowRequestMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_inflight_request_slow_seconds", new String[]{"name", "method", "uri"}, new String[]{worker, "GET", CONTEXT_PATH + SLOW_PATH}), is(greaterThan(0.1)));
+    }
+
+}
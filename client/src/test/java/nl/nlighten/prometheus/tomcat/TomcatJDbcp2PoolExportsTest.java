@@ -26,8 +26,8 @@ public class TomcatJDbcp2PoolExportsTest extends AbstractTomcatMetricsTest {
     public void testJDbcp2PoolMetrics() throws Exception {
         String[] labels = new String[]{"pool", "context"};
         String[] labelValues = new String[]{"jdbc/db", CONTEXT_PATH};
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_dbcp2_connections_active_total", labels, labelValues), is(0.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_dbcp2_connections_idle_total", labels, labelValues), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_dbcp2_connections_active", labels, labelValues), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_dbcp2_connections_idle", labels, labelValues), is(1.0));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_dbcp2_connections_max", labels, labelValues), is(8.0));
     }
 }
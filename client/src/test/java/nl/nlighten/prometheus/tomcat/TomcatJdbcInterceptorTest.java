@@ -1,9 +1,13 @@
 package nl.nlighten.prometheus.tomcat;
 
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+
+import java.io.StringWriter;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.Matchers.greaterThan;
@@ -16,6 +20,7 @@ public class TomcatJdbcInterceptorTest extends AbstractTomcatMetricsTest {
     public static void setUp() throws Exception {
         setUpTomcat();
         doRequest();
+        doRequest("jdbc-request-1");
     }
 
     @AfterClass
@@ -43,4 +48,17 @@ public class TomcatJdbcInterceptorTest extends AbstractTomcatMetricsTest {
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_failedquery_total", new String[]{"query"}, new String[]{"select * from NON_EXISTING_TABLE"}), is(greaterThan(0.0)));
 
     }
+
+    @Test
+    public void testExemplars() throws Exception {
+        StringWriter writer = new StringWriter();
+        TextFormat.writeOpenMetrics100(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
+        boolean found = false;
+        for (String line : writer.toString().split("\n")) {
+            if (line.startsWith("tomcat_jdbc_query_seconds_bucket{") && line.contains("# {trace_id=\"jdbc-request-1\"}")) {
+                found = true;
+            }
+        }
+        assertThat(found, is(true));
+    }
 }
@@ -31,10 +31,10 @@ public class TomcatJdbcPoolExportsTest extends AbstractTomcatMetricsTest {
         String[] labels = new String[]{"pool", "context"};
         String[] labelValues = new String[]{"jdbc/db", CONTEXT_PATH};
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_max", labels, labelValues), is(100.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_active_total", labels, labelValues), is(0.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_idle_total", labels, labelValues), is(10.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_total", labels, labelValues), is(10.0));
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_waitingthreads_total", labels, labelValues), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_active", labels, labelValues), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_idle", labels, labelValues), is(10.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_current", labels, labelValues), is(10.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_waitingthreads", labels, labelValues), is(0.0));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_borrowed_total", labels, labelValues), is(greaterThan(0.0)));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_returned_total", labels, labelValues), is(greaterThan(0.0)));
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_jdbc_connections_created_total", labels, labelValues), is(greaterThan(0.0)));
@@ -0,0 +1,87 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.util.ServerInfo;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatJmxAggregatorTest {
+
+    private static final Map<String, String> properties = new HashMap<String, String>();
+    private static Process first;
+    private static Process second;
+    private static TomcatJmxAggregator aggregator;
+    private static CollectorRegistry registry;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        first = startTomcat("first");
+        second = startTomcat("second");
+        aggregator = new TomcatJmxAggregator(20000);
+        aggregator.addTarget("first", properties.get("first.JMX_URL"), null);
+        aggregator.addTarget("second", "pid:" + properties.get("second.PID"), null);
+        aggregator.addTarget("unreachable", "service:jmx:rmi:///jndi/rmi://127.0.0.1:1/jmxrmi", null);
+        registry = new CollectorRegistry();
+        aggregator.register(registry);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        aggregator.close();
+        for (Process process : new Process[]{first, second}) {
+            if (process != null) {
+                process.getOutputStream().close();
+                process.waitFor();
+            }
+        }
+    }
+
+    @Test
+    public void testTargetMetrics() throws Exception {
+        for (String instance : new String[]{"first", "second"}) {
+            assertThat(registry.getSampleValue("tomcat_jmx_target_up", new String[]{"instance"}, new String[]{instance}), is(1.0));
+            assertThat(registry.getSampleValue("tomcat_jmx_target_errors_total", new String[]{"instance"}, new String[]{instance}), is(0.0));
+            assertThat(registry.getSampleValue("tomcat_threads_max", new String[]{"instance", "name"}, new String[]{instance, "http-nio-auto-1"}), is(200.0));
+            assertThat(registry.getSampleValue("tomcat_session_created_total", new String[]{"instance", "host", "context"}, new String[]{instance, "localhost", AbstractTomcatMetricsTest.CONTEXT_PATH}), is(greaterThan(0.0)));
+            assertThat(registry.getSampleValue("tomcat_info", new String[]{"instance", "version", "build"}, new String[]{instance, ServerInfo.getServerNumber(), ServerInfo.getServerBuilt()}), is(1.0));
+        }
+    }
+
+    @Test
+    public void testUnreachableTarget() throws Exception {
+        assertThat(registry.getSampleValue("tomcat_jmx_target_up", new String[]{"instance"}, new String[]{"unreachable"}), is(0.0));
+    }
+
+    private static Process startTomcat(String name) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                RemoteTomcat.class.getName());
+        builder.redirectError(ProcessBuilder.Redirect.appendTo(new File("target/remote-tomcat-" + name + ".log")));
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                properties.put(name + "." + line.substring(0, separator), line.substring(separator + 1));
+            }
+            if (line.startsWith("PID=")) {
+                break;
+            }
+        }
+        return process;
+    }
+}
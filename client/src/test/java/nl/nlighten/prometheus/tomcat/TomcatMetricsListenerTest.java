@@ -0,0 +1,141 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatMetricsListenerTest extends AbstractTomcatMetricsTest {
+
+    private static TomcatMetricsListener listener;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        listener = new TomcatMetricsListener();
+        listener.setPort(0);
+        listener.setAddress("127.0.0.1");
+        listener.setEmbedded(true);
+        listener.lifecycleEvent(new LifecycleEvent(getTomcat().getServer(), Lifecycle.AFTER_START_EVENT, null));
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        listener.lifecycleEvent(new LifecycleEvent(getTomcat().getServer(), Lifecycle.BEFORE_STOP_EVENT, null));
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        HttpURLConnection connection = open("/metrics");
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(connection.getContentType(), containsString("text/plain"));
+        String body = read(connection.getInputStream());
+        assertThat(body, containsString("tomcat_info{"));
+        assertThat(body, containsString("servlet_request_seconds_count{context=\"/foo\""));
+    }
+
+    @Test
+    public void testGzipAndNameFilter() throws Exception {
+        HttpURLConnection connection = open("/metrics?name%5B%5D=tomcat_info");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(connection.getHeaderField("Content-Encoding"), is("gzip"));
+        String body = read(new GZIPInputStream(connection.getInputStream()));
+        assertThat(body, containsString("tomcat_info{"));
+        assertThat(body, not(containsString("servlet_request_seconds")));
+    }
+
+    @Test
+    public void testUnknownPath() throws Exception {
+        assertThat(open("/foo").getResponseCode(), is(404));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            String request = "HEAD /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            // two pipelined requests followed by one after the responses were received
+            out.write((request + request).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            String responses = readResponses(socket.getInputStream(), 2);
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            responses += readResponses(socket.getInputStream(), 1);
+            assertThat(responses.split("HTTP/1.1 200 OK").length, is(4));
+            assertThat(responses, containsString("Connection: keep-alive"));
+        }
+    }
+
+    @Test
+    public void testFailingCollector() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean();
+        Collector collector = new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                if (failing.get()) {
+                    throw new IllegalStateException("test");
+                }
+                return Collections.emptyList();
+            }
+        }.register();
+        failing.set(true);
+        try {
+            assertThat(open("/metrics").getResponseCode(), is(500));
+        } finally {
+            CollectorRegistry.defaultRegistry.unregister(collector);
+        }
+        // the server keeps serving other requests
+        assertThat(open("/metrics").getResponseCode(), is(200));
+    }
+
+    private HttpURLConnection open(String path) throws Exception {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + listener.getLocalPort() + path).openConnection();
+    }
+
+    private String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String readResponses(InputStream in, int count) throws Exception {
+        StringBuilder responses = new StringBuilder();
+        while (responses.toString().split("\r\n\r\n", -1).length <= count) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            responses.append((char) b);
+        }
+        return responses.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.FileStore;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatPersistentManagerTest extends AbstractTomcatMetricsTest {
+
+    private static TomcatPersistentManager manager;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        manager = new TomcatPersistentManager();
+        FileStore store = new FileStore();
+        store.setDirectory("sessions");
+        manager.setStore(store);
+        manager.setMaxIdleSwap(0);
+        getContext().setManager(manager);
+        doRequest();
+
+        // swap the session out and load it again
+        String id = manager.findSessions()[0].getIdInternal();
+        manager.processPersistenceChecks();
+        Session session = manager.findSession(id);
+        if (session != null) {
+            session.expire();
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testSessionStoreMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context", "operation"};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_store_seconds_count", labels, new String[]{"localhost", CONTEXT_PATH, "save"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_store_seconds_count", labels, new String[]{"localhost", CONTEXT_PATH, "load"}), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testSessionSwapMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context", "direction"};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_swapped_total", labels, new String[]{"localhost", CONTEXT_PATH, "out"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_swapped_total", labels, new String[]{"localhost", CONTEXT_PATH, "in"}), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testInvalidSessionNotSwapped() throws Exception {
+        String[] labels = new String[]{"host", "context", "direction"};
+        String[] values = new String[]{"localhost", CONTEXT_PATH, "out"};
+        double before = CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_swapped_total", labels, values);
+        Session session = manager.createSession(null);
+        session.expire();
+        manager.swapOut(session);
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_swapped_total", labels, values), is(before));
+    }
+}
@@ -0,0 +1,35 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatRequestQueueValveTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        TomcatThreadExecutor executor = new TomcatThreadExecutor();
+        executor.setName("requestQueueValveTestExecutor");
+        setUpTomcat("org.apache.tomcat.jdbc.pool.DataSourceFactory", executor);
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testRequestQueueMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_queue_wait_seconds_bucket", new String[]{"name", "le"}, new String[]{"http-nio-auto-1", "0.001"}), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_queue_wait_seconds_bucket", new String[]{"name", "le"}, new String[]{"http-nio-auto-1", "+Inf"}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_queue_wait_seconds_count", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_threads_queue_wait_seconds_sum", new String[]{"name"}, new String[]{"http-nio-auto-1"}), is(notNullValue()));
+    }
+}
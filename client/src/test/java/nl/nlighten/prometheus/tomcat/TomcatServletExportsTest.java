@@ -0,0 +1,103 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatServletExportsTest extends AbstractTomcatMetricsTest {
+
+    private static final long WINDOW_MILLIS = 200;
+    private static final CollectorRegistry excludedRegistry = new CollectorRegistry();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        new TomcatServletExports(true, "foo.*", null, true, new CounterTracker(60000, WINDOW_MILLIS)).register();
+        new TomcatServletExports(true, null, SERVLET_NAME, false).register(excludedRegistry);
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testServletMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context", "servlet"};
+        String[] labelValues = new String[]{"localhost", CONTEXT_PATH, SERVLET_NAME};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_request_total", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_error_total", labels, labelValues), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_processing_seconds_total", labels, labelValues), is(greaterThanOrEqualTo(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_processing_seconds_max", labels, labelValues), is(greaterThanOrEqualTo(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_processing_seconds_avg", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_servlet_load_seconds", labels, labelValues), is(notNullValue()));
+    }
+
+    @Test
+    public void testIntervalAverage() throws Exception {
+        List<String> labelValues = Arrays.asList("localhost", CONTEXT_PATH, SERVLET_NAME);
+        // no requests in the previous window
+        scrapeNextWindow(labelValues);
+        Map<String, Double> before = scrapeNextWindow(labelValues);
+        assertThat(before.get("tomcat_servlet_processing_seconds_avg"), is(0.0));
+
+        // the processing time is recorded in milliseconds, so repeat until a request took at least one
+        Map<String, Double> after = before;
+        for (int i = 0; i < 50 && after.get("tomcat_servlet_processing_seconds_avg") == 0.0; i++) {
+            before = after;
+            doRequest();
+            after = scrapeNextWindow(labelValues);
+        }
+        double requests = after.get("tomcat_servlet_request_total") - before.get("tomcat_servlet_request_total");
+        double processingTime = after.get("tomcat_servlet_processing_seconds_total") - before.get("tomcat_servlet_processing_seconds_total");
+        double average = after.get("tomcat_servlet_processing_seconds_avg");
+        assertThat(requests, is(1.0));
+        assertThat(average, is(greaterThan(0.0)));
+        assertThat(average, is(closeTo(processingTime / requests, 1e-9)));
+
+        // another scrape in the same window returns the same average
+        assertThat(scrape(labelValues).get("tomcat_servlet_processing_seconds_avg"), is(average));
+    }
+
+    @Test
+    public void testExcludedServlet() throws Exception {
+        assertThat(excludedRegistry.getSampleValue("tomcat_servlet_request_total", new String[]{"host", "context", "servlet"}, new String[]{"localhost", CONTEXT_PATH, SERVLET_NAME}), is(nullValue()));
+    }
+
+    private static Map<String, Double> scrapeNextWindow(List<String> labelValues) throws InterruptedException {
+        // the first scrape in a window, so the counters are those the average of the next window starts from
+        Thread.sleep(WINDOW_MILLIS - System.currentTimeMillis() % WINDOW_MILLIS + 5);
+        return scrape(labelValues);
+    }
+
+    private static Map<String, Double> scrape(List<String> labelValues) {
+        // a single scrape, so all values are from the same moment
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (Enumeration<Collector.MetricFamilySamples> mfs = CollectorRegistry.defaultRegistry.metricFamilySamples(); mfs.hasMoreElements(); ) {
+            for (Collector.MetricFamilySamples.Sample sample : mfs.nextElement().samples) {
+                if (sample.name.startsWith("tomcat_servlet_") && sample.labelValues.equals(labelValues)) {
+                    values.put(sample.name, sample.value);
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -1,9 +1,13 @@
 package nl.nlighten.prometheus.tomcat;
 
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+
+import java.io.StringWriter;
+
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertThat;
 import static org.hamcrest.CoreMatchers.is;
@@ -16,6 +20,7 @@ public class TomcatServletMetricsFilterTest extends AbstractTomcatMetricsTest {
     public static void setUp() throws Exception {
         setUpTomcat();
         doRequest();
+        doRequest("servlet-request-1");
     }
 
     @AfterClass
@@ -31,6 +36,49 @@ public class TomcatServletMetricsFilterTest extends AbstractTomcatMetricsTest {
         assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_seconds_count", new String[]{"context", "method"}, new String[]{CONTEXT_PATH, "GET"}), is(greaterThan(0.0)));
 
         // concurrent invocation count
-        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_concurrent_total", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_concurrent", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(notNullValue()));
+    }
+
+    @Test
+    public void testServletResourceMetrics() throws Exception {
+        // cpu time and allocated bytes of sampled requests
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_cpu_seconds_count", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_cpu_seconds_bucket", new String[]{"context", "le"}, new String[]{CONTEXT_PATH, "+Inf"}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_allocated_bytes_count", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_allocated_bytes_sum", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testExemplars() throws Exception {
+        StringWriter writer = new StringWriter();
+        TextFormat.writeOpenMetrics100(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
+        boolean found = false;
+        for (String line : writer.toString().split("\n")) {
+            if (line.startsWith("servlet_request_seconds_bucket{") && line.contains("# {trace_id=\"servlet-request-1\"}")) {
+                found = true;
+            }
+        }
+        assertThat(found, is(true));
+    }
+
+    @Test
+    public void testTooLongExemplarId() throws Exception {
+        StringBuilder id = new StringBuilder();
+        while (id.length() < 200) {
+            id.append("too-long-id-");
+        }
+        double count = CollectorRegistry.defaultRegistry.getSampleValue("servlet_response_status_total", new String[]{"context", "status"}, new String[]{CONTEXT_PATH, "200"});
+        doRequest(id.toString());
+
+        // the request is recorded without exemplar, after the response has been sent
+        long deadline = System.currentTimeMillis() + 10000;
+        while (CollectorRegistry.defaultRegistry.getSampleValue("servlet_response_status_total", new String[]{"context", "status"}, new String[]{CONTEXT_PATH, "200"}) != count + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_response_status_total", new String[]{"context", "status"}, new String[]{CONTEXT_PATH, "200"}), is(count + 1));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_concurrent", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(0.0));
+        StringWriter writer = new StringWriter();
+        TextFormat.writeOpenMetrics100(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
+        assertThat(writer.toString().contains("too-long-id-"), is(false));
     }
 }
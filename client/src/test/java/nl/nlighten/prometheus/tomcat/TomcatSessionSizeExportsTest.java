@@ -0,0 +1,43 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatSessionSizeExportsTest extends AbstractTomcatMetricsTest {
+
+    private static TomcatSessionSizeExports sessionSizeExports;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        sessionSizeExports = new TomcatSessionSizeExports(true, 3600, 100, 1000).register();
+        doRequest();
+        getContext().getManager().findSessions()[0].getSession().setAttribute("lock", new Object());
+        sessionSizeExports.sample();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        sessionSizeExports.shutdown();
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testSessionSizeMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context"};
+        String[] labelValues = new String[]{"localhost", CONTEXT_PATH};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_bytes_count", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_bytes_sum", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_estimated_bytes", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_sampled", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_unserializable_attributes", labels, labelValues), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_session_size_cycle_cpu_seconds"), is(notNullValue()));
+    }
+}
@@ -0,0 +1,124 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.tomcat.util.net.SSLHostConfig;
+import org.apache.tomcat.util.net.SSLHostConfigCertificate;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatSslExportsTest extends AbstractTomcatMetricsTest {
+
+    private static Connector connector;
+    private static String connectorName;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+
+        // create a self signed certificate
+        File keystore = new File("target/test-keystore.p12");
+        keystore.delete();
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "tomcat", "-keyalg", "RSA", "-keysize", "2048", "-validity", "30",
+                "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keystore.getAbsolutePath(),
+                "-storepass", "changeit", "-keypass", "changeit").inheritIO().start();
+        keytool.waitFor();
+
+        // add an SSL connector using our SSL implementation
+        connector = new Connector("HTTP/1.1");
+        connector.setPort(0);
+        connector.setSecure(true);
+        connector.setScheme("https");
+        connector.setProperty("SSLEnabled", "true");
+        connector.setProperty("sslImplementationName", TomcatSSLImplementation.class.getName());
+        // close the connection after each request, so each request is handshaked
+        connector.setProperty("maxKeepAliveRequests", "1");
+        SSLHostConfig sslHostConfig = new SSLHostConfig();
+        SSLHostConfigCertificate certificate = new SSLHostConfigCertificate(sslHostConfig, SSLHostConfigCertificate.Type.RSA);
+        certificate.setCertificateKeystoreFile(keystore.getAbsolutePath());
+        certificate.setCertificateKeystorePassword("changeit");
+        sslHostConfig.addCertificate(certificate);
+        connector.addSslHostConfig(sslHostConfig);
+        getTomcat().getService().addConnector(connector);
+        connectorName = ((AbstractProtocol<?>) connector.getProtocolHandler()).getGlobalRequestProcessorMBeanName().getKeyProperty("name").replaceAll("\"", "");
+
+        new TomcatSslExports(true).register();
+        // a full handshake for each client, and a resumed handshake for the second connection of the same client
+        doSslRequest(createClientContext());
+        SSLContext client = createClientContext();
+        doSslRequest(client);
+        doSslRequest(client);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testHandshakeMetrics() throws Exception {
+        String[] labels = new String[]{"name", "host"};
+        String[] labelValues = new String[]{connectorName, "_default_"};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_handshake_seconds_count", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_handshakes_total", new String[]{"name", "host", "resumed"}, new String[]{connectorName, "_default_", "false"}), is(2.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_handshakes_total", new String[]{"name", "host", "resumed"}, new String[]{connectorName, "_default_", "true"}), is(1.0));
+    }
+
+    @Test
+    public void testSessionCacheMetrics() throws Exception {
+        String[] labels = new String[]{"name", "host"};
+        String[] labelValues = new String[]{connectorName, "_default_"};
+        // the size of the JSSE session cache is not exported, as it can only be determined by listing all sessions
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_session_cache_entries", labels, labelValues), is(nullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_session_cache_max", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_session_timeout_seconds", labels, labelValues), is(notNullValue()));
+    }
+
+    @Test
+    public void testCertificateMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_tls_certificate_expiry_timestamp_seconds", new String[]{"name", "host", "type"}, new String[]{connectorName, "_default_", "RSA"}),
+                is(greaterThan(System.currentTimeMillis() / 1000.0)));
+    }
+
+    private static SSLContext createClientContext() throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return sslContext;
+    }
+
+    private static void doSslRequest(SSLContext sslContext) throws Exception {
+        HttpsURLConnection urlConnection = (HttpsURLConnection) new URL("https://localhost:" + connector.getLocalPort() + CONTEXT_PATH + "/bar").openConnection();
+        urlConnection.setSSLSocketFactory(sslContext.getSocketFactory());
+        urlConnection.setHostnameVerifier((hostname, session) -> true);
+        urlConnection.getInputStream().close();
+        urlConnection.disconnect();
+    }
+}
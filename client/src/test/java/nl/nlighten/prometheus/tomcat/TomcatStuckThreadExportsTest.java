@@ -0,0 +1,57 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.valves.StuckThreadDetectionValve;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatStuckThreadExportsTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Map<String, String> filterParameters = new HashMap<String, String>();
+        filterParameters.put("stuckRequestThreshold", "1");
+        filterParameters.put("stuckRequestThreadDumps", "1");
+        setUpTomcat("org.apache.tomcat.jdbc.pool.DataSourceFactory", null, filterParameters);
+        StuckThreadDetectionValve valve = new StuckThreadDetectionValve();
+        valve.setThreshold(1);
+        valve.setInterruptThreadThreshold(60);
+        getContext().getPipeline().addValve(valve);
+        new TomcatStuckThreadExports(true).register();
+        doRequest();
+
+        // keep a request running longer than the thresholds of the valve and the filter
+        startSlowRequest();
+        Thread.sleep(1500);
+        valve.backgroundProcess();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        finishSlowRequest();
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testValveMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_stuck_threads", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_stuck_threads_interrupted_total", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(0.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_stuck_threads_threshold_seconds", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_stuck_threads_interrupt_threshold_seconds", new String[]{"host", "context"}, new String[]{"localhost", CONTEXT_PATH}), is(60.0));
+    }
+
+    @Test
+    public void testFilterMetrics() throws Exception {
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_stuck", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("servlet_request_stuck_detected_total", new String[]{"context"}, new String[]{CONTEXT_PATH}), is(1.0));
+    }
+
+}
@@ -0,0 +1,217 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.ServletContainerInitializer;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.WebConnection;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatUpgradeExportsTest extends AbstractTomcatMetricsTest {
+
+    private static final String WEBSOCKET_CONTEXT_PATH = "/ws";
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        Tomcat.addServlet(getContext(), "upgrade_servlet", new UpgradeServlet());
+        getContext().addServletMappingDecoded("/upgrade", "upgrade_servlet");
+        new TomcatUpgradeExports(true).register();
+        doUpgradeRequest();
+
+        // a context with an instrumented WebSocket endpoint, started when it is added to the running host
+        StandardContext webSocketContext = new StandardContext();
+        webSocketContext.setName(WEBSOCKET_CONTEXT_PATH);
+        webSocketContext.setPath(WEBSOCKET_CONTEXT_PATH);
+        webSocketContext.setDocBase(new File(".").getAbsolutePath());
+        webSocketContext.addLifecycleListener(new Tomcat.FixContextListener());
+        webSocketContext.addServletContainerInitializer(new WsSci(), null);
+        // the WebSocket filter only sees requests that are mapped to a servlet
+        Tomcat.addServlet(webSocketContext, "default", new DefaultServlet());
+        webSocketContext.addServletMappingDecoded("/", "default");
+        webSocketContext.addServletContainerInitializer(new ServletContainerInitializer() {
+            @Override
+            public void onStartup(Set<Class<?>> classes, ServletContext servletContext) throws ServletException {
+                ServerContainer container = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+                try {
+                    container.addEndpoint(TomcatWebSocketMetrics.instrument(ServerEndpointConfig.Builder.create(EchoEndpoint.class, "/echo").build()));
+                } catch (DeploymentException e) {
+                    throw new ServletException(e);
+                }
+            }
+        }, null);
+        getTomcat().getHost().addChild(webSocketContext);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testUpgradeMetrics() throws Exception {
+        String[] labels = new String[]{"name", "protocol"};
+        String[] labelValues = new String[]{"http-nio-auto-1", "echo"};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_upgrade_sent_bytes_total", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_upgrade_messages_sent_total", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_upgrade_received_bytes_total", labels, labelValues), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void testWebSocketMetrics() throws Exception {
+        String[] labels = new String[]{"endpoint", "direction"};
+        final CountDownLatch echoed = new CountDownLatch(1);
+        Session session = ContainerProvider.getWebSocketContainer().connectToServer(new Endpoint() {
+            @Override
+            public void onOpen(Session session, EndpointConfig config) {
+                session.addMessageHandler(new MessageHandler.Whole<String>() {
+                    @Override
+                    public void onMessage(String message) {
+                        echoed.countDown();
+                    }
+                });
+            }
+        }, ClientEndpointConfig.Builder.create().build(), new URI("ws://localhost:" + getPort() + WEBSOCKET_CONTEXT_PATH + "/echo"));
+        session.getBasicRemote().sendText("ping\u00e9");
+        assertThat(echoed.await(10, TimeUnit.SECONDS), is(true));
+        // the echo is recorded as sent when sendText returns, which can be after the client received it
+        long deadline = System.currentTimeMillis() + 10000;
+        while (CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_message_size_bytes_count", labels, new String[]{"/echo", "sent"}) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_sessions_active", new String[]{"endpoint"}, new String[]{"/echo"}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_messages_total", labels, new String[]{"/echo", "received"}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_messages_total", labels, new String[]{"/echo", "sent"}), is(1.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_message_size_bytes_sum", labels, new String[]{"/echo", "received"}), is(6.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_message_size_bytes_sum", labels, new String[]{"/echo", "sent"}), is(6.0));
+
+        session.close();
+        deadline = System.currentTimeMillis() + 10000;
+        while (CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_sessions_active", new String[]{"endpoint"}, new String[]{"/echo"}) != 0.0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_websocket_sessions_active", new String[]{"endpoint"}, new String[]{"/echo"}), is(0.0));
+    }
+
+    @Test
+    public void testNoEmptyFamilies() throws Exception {
+        // the echo connection only has message statistics, so the HTTP/2 families are not exported
+        for (Enumeration<Collector.MetricFamilySamples> mfs = CollectorRegistry.defaultRegistry.metricFamilySamples(); mfs.hasMoreElements(); ) {
+            Collector.MetricFamilySamples family = mfs.nextElement();
+            assertThat(family.name, family.name.equals("tomcat_upgrade_requests") || family.name.equals("tomcat_upgrade_processing_seconds_max"), is(false));
+        }
+    }
+
+    private static void doUpgradeRequest() throws Exception {
+        try (Socket socket = new Socket("localhost", getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + CONTEXT_PATH + "/upgrade HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade\r\nUpgrade: echo\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            // wait for the upgrade response before sending data over the upgraded connection
+            int c;
+            int newlines = 0;
+            while (newlines < 4 && (c = in.read()) != -1) {
+                newlines = (c == '\r' || c == '\n') ? newlines + 1 : 0;
+            }
+            out.write("ping".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            while (in.read() != -1) {
+                // read the echo until the connection is closed
+            }
+        }
+    }
+
+    public static class UpgradeServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws java.io.IOException, javax.servlet.ServletException {
+            resp.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+            resp.setHeader("Connection", "Upgrade");
+            resp.setHeader("Upgrade", "echo");
+            req.upgrade(EchoHandler.class);
+        }
+    }
+
+    public static class EchoHandler implements HttpUpgradeHandler {
+        @Override
+        public void init(WebConnection connection) {
+            try {
+                InputStream in = connection.getInputStream();
+                OutputStream out = connection.getOutputStream();
+                byte[] buffer = new byte[4];
+                int read = 0;
+                while (read < buffer.length) {
+                    int n = in.read(buffer, read, buffer.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                out.write(buffer, 0, read);
+                out.flush();
+                connection.close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    public static class EchoEndpoint extends Endpoint {
+        @Override
+        public void onOpen(final Session session, EndpointConfig config) {
+            session.addMessageHandler(new MessageHandler.Whole<String>() {
+                @Override
+                public void onMessage(String message) {
+                    try {
+                        session.getBasicRemote().sendText(message);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class TomcatWebResourceCacheExportsTest extends AbstractTomcatMetricsTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        setUpTomcat();
+        new TomcatWebResourceCacheExports(true).register();
+        doRequest();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        shutDownTomcat();
+    }
+
+    @Test
+    public void testWebResourceCacheMetrics() throws Exception {
+        String[] labels = new String[]{"host", "context"};
+        String[] labelValues = new String[]{"localhost", CONTEXT_PATH};
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_lookups_total", labels, labelValues), is(greaterThan(0.0)));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_hits_total", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_size_bytes", labels, labelValues), is(notNullValue()));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_max_bytes", labels, labelValues), is(10240.0 * 1024));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_object_max_bytes", labels, labelValues), is(512.0 * 1024));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_ttl_seconds", labels, labelValues), is(5.0));
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("tomcat_webresource_cache_usage_ratio", labels, labelValues), is(notNullValue()));
+    }
+}
@@ -0,0 +1,442 @@
+package nl.nlighten.prometheus.tomcat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodically collects a registry and pushes the metrics to a remote HTTP receiver, for Tomcat instances that cannot
+ * be scraped, e.g. behind NAT. The receiver can be a Pushgateway or any receiver accepting the Prometheus text format,
+ * such as the import endpoints of VictoriaMetrics or the Grafana agent.
+ *
+ * <p>
+ * Metrics are sent in the text format, gzip compressed, by a single background thread using non-blocking I/O. When a
+ * push fails the collected snapshots are kept in a bounded in-memory backlog and sent again with exponential backoff;
+ * when the backlog is full the oldest snapshot is dropped. Without timestamps, e.g. for a Pushgateway, only the latest
+ * snapshot is relevant, so the backlog holds a single snapshot. With timestamps the samples carry the time they were
+ * collected, and the snapshots in the backlog are sent in batches in a single request.
+ * <p>
+ * Unexpected errors, e.g. of a collector of an undeployed application, are logged and retried with the same backoff,
+ * so the background thread only stops when the pusher is closed. When registered, the pusher exports the number of
+ * successful and failed pushes, the number of dropped snapshots and the time of the last successful push.
+ * <p>
+ * Only plain http is supported; use a local forwarding proxy to push over https.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   TomcatMetricsPusher pusher = new TomcatMetricsPusher(CollectorRegistry.defaultRegistry,
+ *           new URL("http://pushgateway:9091/metrics/job/tomcat/instance/app01"), "PUT", 60000, false, 1, 1);
+ *   pusher.start();
+ *   ...
+ *   pusher.close();
+ * }
+ * </pre>
+ */
+public class TomcatMetricsPusher extends Collector implements Runnable, Closeable {
+
+    private static final Log log = LogFactory.getLog(TomcatMetricsPusher.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 300000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+    private final CollectorRegistry registry;
+    private final URL url;
+    private final String method;
+    private final long intervalMillis;
+    private final boolean timestamps;
+    private final int maxBacklog;
+    private final int maxBatch;
+    private final Deque<Snapshot> backlog = new ArrayDeque<Snapshot>();
+    private final Selector selector;
+    private volatile boolean running;
+    private Thread thread;
+    private Exchange exchange;
+    private long nextAttempt;
+    private int failures;
+    private volatile long pushed;
+    private volatile long failed;
+    private volatile long dropped;
+    private volatile long lastSuccess;
+
+    /**
+     * @param registry       the registry to collect
+     * @param url            the http url to push to
+     * @param method         the http method, e.g. PUT for a Pushgateway
+     * @param intervalMillis the interval between collections
+     * @param timestamps     true to add the collection time to the samples
+     * @param maxBacklog     the maximum number of snapshots kept when pushing fails, 1 when timestamps is false
+     * @param maxBatch       the maximum number of snapshots sent in one request when timestamps is true
+     */
+    public TomcatMetricsPusher(CollectorRegistry registry, URL url, String method, long intervalMillis,
+                               boolean timestamps, int maxBacklog, int maxBatch) throws IOException {
+        if (!"http".equals(url.getProtocol())) {
+            throw new IllegalArgumentException("Only http urls are supported: " + url);
+        }
+        this.registry = registry;
+        this.url = url;
+        this.method = method;
+        this.intervalMillis = intervalMillis;
+        this.timestamps = timestamps;
+        this.maxBacklog = timestamps ? Math.max(1, maxBacklog) : 1;
+        this.maxBatch = timestamps ? Math.max(1, maxBatch) : 1;
+        this.selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "tomcat-metrics-pusher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        Thread pusherThread;
+        synchronized (this) {
+            pusherThread = thread;
+            notifyAll();
+        }
+        if (pusherThread != null && pusherThread != Thread.currentThread()) {
+            try {
+                pusherThread.join(REQUEST_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of successful pushes
+     */
+    public long getPushed() {
+        return pushed;
+    }
+
+    /**
+     * @return the number of failed pushes
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the number of snapshots dropped because the backlog was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the time of the last successful push in milliseconds since the epoch, or 0 if none
+     */
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        mfs.add(new CounterMetricFamily("tomcat_push_success", "Number of successful pushes", pushed));
+        mfs.add(new CounterMetricFamily("tomcat_push_failed", "Number of failed pushes", failed));
+        mfs.add(new CounterMetricFamily("tomcat_push_dropped_snapshots", "Number of snapshots dropped because the backlog was full", dropped));
+        mfs.add(new GaugeMetricFamily("tomcat_push_last_success_timestamp_seconds", "Time of the last successful push, 0 if none", lastSuccess / 1000.0));
+        return mfs;
+    }
+
+    @Override
+    public void run() {
+        long nextCollection = System.currentTimeMillis();
+        int errors = 0;
+        try {
+            while (running) {
+                try {
+                    nextCollection = runOnce(nextCollection);
+                    errors = 0;
+                } catch (Exception e) {
+                    errors++;
+                    long backoff = backoff(errors);
+                    log.error("Error pushing metrics:" + e.getMessage() + ", retrying in " + backoff + " ms");
+                    if (exchange != null) {
+                        finishExchange(-1, e.getMessage());
+                    }
+                    pause(backoff);
+                }
+            }
+        } finally {
+            if (exchange != null) {
+                closeQuietly(exchange.channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Runs a single iteration of the push loop and returns the time of the next collection.
+     */
+    private long runOnce(long nextCollection) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now >= nextCollection) {
+            collectSnapshot(now);
+            nextCollection = now + intervalMillis;
+        }
+        if (exchange == null && !backlog.isEmpty() && now >= nextAttempt) {
+            startExchange(now);
+        }
+        long wakeup = nextCollection;
+        if (exchange != null) {
+            wakeup = Math.min(wakeup, exchange.deadline);
+        } else if (!backlog.isEmpty()) {
+            wakeup = Math.min(wakeup, nextAttempt);
+        }
+        selector.select(Math.max(1, wakeup - System.currentTimeMillis()));
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (exchange != null && key.isValid()) {
+                handle(key);
+            }
+        }
+        if (exchange != null && System.currentTimeMillis() >= exchange.deadline) {
+            finishExchange(-1, "timeout");
+        }
+        return nextCollection;
+    }
+
+    private synchronized void pause(long millis) {
+        if (running) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+
+    private static long backoff(int failures) {
+        return Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+    }
+
+    private void collectSnapshot(long now) {
+        List<MetricFamilySamples> families = new ArrayList<MetricFamilySamples>();
+        try {
+            Enumeration<MetricFamilySamples> mfs = registry.metricFamilySamples();
+            while (mfs.hasMoreElements()) {
+                families.add(mfs.nextElement());
+            }
+        } catch (Exception | LinkageError e) {
+            log.error("Error collecting metrics:" + e.getMessage());
+            return;
+        }
+        while (backlog.size() >= maxBacklog) {
+            backlog.removeFirst();
+            dropped++;
+        }
+        backlog.addLast(new Snapshot(now, families));
+    }
+
+    private void startExchange(long now) {
+        List<Snapshot> batch = new ArrayList<Snapshot>();
+        while (!backlog.isEmpty() && batch.size() < maxBatch) {
+            batch.add(backlog.removeFirst());
+        }
+        SocketChannel channel = null;
+        try {
+            byte[] body = encode(batch);
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            StringBuilder request = new StringBuilder();
+            request.append(method).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(url.getHost()).append(url.getPort() != -1 ? ":" + url.getPort() : "").append("\r\n");
+            request.append("Content-Type: ").append(TextFormat.CONTENT_TYPE_004).append("\r\n");
+            request.append("Content-Encoding: gzip\r\n");
+            request.append("Content-Length: ").append(body.length).append("\r\n");
+            if (url.getUserInfo() != null) {
+                request.append("Authorization: Basic ")
+                        .append(Base64.getEncoder().encodeToString(url.getUserInfo().getBytes(StandardCharsets.UTF_8))).append("\r\n");
+            }
+            request.append("Connection: close\r\n\r\n");
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            exchange = new Exchange(channel, batch, now + REQUEST_TIMEOUT_MILLIS,
+                    ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(body));
+            if (channel.connect(new InetSocketAddress(url.getHost(), port))) {
+                channel.register(selector, SelectionKey.OP_WRITE);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (Exception e) {
+            if (exchange == null) {
+                closeQuietly(channel);
+                exchange = new Exchange(null, batch, now, null, null);
+            }
+            finishExchange(-1, e.getMessage());
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        SocketChannel channel = exchange.channel;
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(exchange.request);
+                if (!exchange.request.hasRemaining()) {
+                    channel.write(exchange.body);
+                }
+                if (!exchange.request.hasRemaining() && !exchange.body.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                int read = channel.read(exchange.response);
+                int status = parseStatus(exchange.response);
+                if (status > 0) {
+                    finishExchange(status, null);
+                } else if (read < 0 || !exchange.response.hasRemaining()) {
+                    finishExchange(-1, "invalid response");
+                }
+            }
+        } catch (IOException e) {
+            finishExchange(-1, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the status code once the status line has been received, or -1.
+     */
+    private int parseStatus(ByteBuffer response) {
+        byte[] data = response.array();
+        for (int i = 0; i < response.position() - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                String[] statusLine = new String(data, 0, i, StandardCharsets.ISO_8859_1).split(" ");
+                try {
+                    return statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : 0;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void finishExchange(int status, String error) {
+        Exchange finished = exchange;
+        exchange = null;
+        closeQuietly(finished.channel);
+        if (status >= 200 && status < 300) {
+            pushed++;
+            lastSuccess = System.currentTimeMillis();
+            failures = 0;
+            nextAttempt = 0;
+            return;
+        }
+        failed++;
+        failures++;
+        long backoff = backoff(failures);
+        nextAttempt = System.currentTimeMillis() + backoff;
+        log.warn("Error pushing metrics to " + url.getHost() + ":" + (status > 0 ? "status " + status : error)
+                + ", retrying in " + backoff + " ms");
+        // put the snapshots back in front of the backlog, newer snapshots take precedence when it is full
+        for (int i = finished.batch.size() - 1; i >= 0; i--) {
+            if (backlog.size() >= maxBacklog) {
+                dropped++;
+            } else {
+                backlog.addFirst(finished.batch.get(i));
+            }
+        }
+    }
+
+    /**
+     * Encodes the snapshots as gzip compressed text. Samples of the same family in different snapshots are written
+     * under a single family, so the result is valid text format.
+     */
+    private byte[] encode(List<Snapshot> batch) throws IOException {
+        Map<String, MetricFamilySamples> merged = new LinkedHashMap<String, MetricFamilySamples>();
+        for (Snapshot snapshot : batch) {
+            for (MetricFamilySamples family : snapshot.families) {
+                MetricFamilySamples target = merged.get(family.name);
+                if (target == null) {
+                    target = new MetricFamilySamples(family.name, family.unit, family.type, family.help,
+                            new ArrayList<MetricFamilySamples.Sample>());
+                    merged.put(family.name, target);
+                }
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    target.samples.add(timestamps
+                            ? new MetricFamilySamples.Sample(sample.name, sample.labelNames, sample.labelValues, sample.value, snapshot.timestamp)
+                            : sample);
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8);
+        TextFormat.write004(writer, Collections.enumeration(merged.values()));
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static class Snapshot {
+        private final long timestamp;
+        private final List<MetricFamilySamples> families;
+
+        Snapshot(long timestamp, List<MetricFamilySamples> families) {
+            this.timestamp = timestamp;
+            this.families = families;
+        }
+    }
+
+    private static class Exchange {
+        private final SocketChannel channel;
+        private final List<Snapshot> batch;
+        private final long deadline;
+        private final ByteBuffer request;
+        private final ByteBuffer body;
+        private final ByteBuffer response = ByteBuffer.allocate(8192);
+
+        Exchange(SocketChannel channel, List<Snapshot> batch, long deadline, ByteBuffer request, ByteBuffer body) {
+            this.channel = channel;
+            this.batch = batch;
+            this.deadline = deadline;
+            this.request = request;
+            this.body = body;
+        }
+    }
+}
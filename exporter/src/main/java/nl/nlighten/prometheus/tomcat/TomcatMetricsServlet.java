@@ -3,37 +3,208 @@ package nl.nlighten.prometheus.tomcat;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.SampleNameFilter;
 import io.prometheus.client.exporter.MetricsServlet;
-import io.prometheus.client.hotspot.DefaultExports;
+import io.prometheus.client.exporter.common.TextFormat;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
 
 
+/**
+ * Exports the metrics of Tomcat and the JVM. Besides the text formats (0.0.4 and OpenMetrics, including exemplars)
+ * supported by {@link MetricsServlet}, the delimited protobuf format is returned when preferred by the Accept header of
+ * the scrape, see {@link ProtobufFormat}. With a context parameter, e.g. /metrics/?context=/foo, only the metrics of that
+ * context are returned, see {@link ContextScopedSnapshot}.
+ */
 @WebServlet("/")
 public class TomcatMetricsServlet extends MetricsServlet {
 
+    private final ProtobufFormat protobufFormat = new ProtobufFormat();
+    private TomcatMetricsPusher pusher;
+    private MetricRules rules;
+    private ContextScopedSnapshot contextSnapshot;
+    private TomcatSessionSizeExports sessionSizeExports;
+    private Collector sessionSizeCollector;
+
     @Override
     public void init(ServletConfig config) {
         if (!initialized()) {
-            DefaultExports.initialize();
-            new TomcatGenericExports(false).register();
-            if (TomcatJdbcPoolExports.isTomcatJdbcUsed()) {
-                new TomcatJdbcPoolExports().register();
+            rules = loadRules(config);
+            TomcatExports.registerDefaults(false, "true".equals(getParameter(config, "requestProcessorIntervalAverage")), new TomcatExports.Registrar() {
+                @Override
+                public void register(Collector collector) {
+                    TomcatMetricsServlet.this.register(collector);
+                }
+            });
+            if ("true".equals(getParameter(config, "servletMetrics"))) {
+                register(new TomcatServletExports(false,
+                        getParameter(config, "servletMetricsInclude"),
+                        getParameter(config, "servletMetricsExclude"),
+                        "true".equals(getParameter(config, "servletMetricsIntervalAverage"))));
+            }
+            if ("true".equals(getParameter(config, "inFlightRequestMetrics"))) {
+                register(new TomcatInFlightRequestExports(false,
+                        getLongParameter(config, "inFlightRequestUriThreshold", -1),
+                        (int) getLongParameter(config, "inFlightRequestUriMax", 10)));
+            }
+            if ("true".equals(getParameter(config, "sessionSizeMetrics"))) {
+                sessionSizeExports = new TomcatSessionSizeExports(false,
+                        getLongParameter(config, "sessionSizeInterval", 60),
+                        (int) getLongParameter(config, "sessionSizeSamples", 100),
+                        getLongParameter(config, "sessionSizeCpuBudget", 100));
+                sessionSizeCollector = register(sessionSizeExports);
+            }
+        }
+        contextSnapshot = new ContextScopedSnapshot(CollectorRegistry.defaultRegistry, getLongParameter(config, "contextSnapshotTtl", 5000));
+        String pushUrl = getParameter(config, "pushUrl");
+        if (pushUrl != null && !pushUrl.isEmpty()) {
+            try {
+                String pushMethod = getParameter(config, "pushMethod");
+                int pushBacklog = (int) getLongParameter(config, "pushBacklog", 10);
+                pusher = new TomcatMetricsPusher(CollectorRegistry.defaultRegistry, new URL(pushUrl.trim()),
+                        pushMethod != null && !pushMethod.isEmpty() ? pushMethod.trim() : "PUT",
+                        getLongParameter(config, "pushInterval", 60) * 1000,
+                        "true".equals(getParameter(config, "pushTimestamps")), pushBacklog, pushBacklog);
+                CollectorRegistry.defaultRegistry.register(pusher);
+                pusher.start();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid pushUrl: " + pushUrl, e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (pusher != null) {
+            pusher.close();
+            CollectorRegistry.defaultRegistry.unregister(pusher);
+            pusher = null;
+        }
+        if (sessionSizeExports != null) {
+            sessionSizeExports.shutdown();
+            CollectorRegistry.defaultRegistry.unregister(sessionSizeCollector);
+            sessionSizeExports = null;
+            sessionSizeCollector = null;
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String accept = req.getHeader("Accept");
+        String context = req.getParameter("context");
+        boolean protobuf = ProtobufFormat.isPreferred(accept);
+        if (context == null && !protobuf) {
+            super.doGet(req, resp);
+            return;
+        }
+        String[] names = req.getParameterValues("name[]");
+        Enumeration<Collector.MetricFamilySamples> mfs;
+        if (context != null) {
+            mfs = Collections.enumeration(filter(contextSnapshot.get(context), names));
+        } else if (names != null) {
+            mfs = CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(new HashSet<String>(Arrays.asList(names)));
+        } else {
+            mfs = CollectorRegistry.defaultRegistry.metricFamilySamples();
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        OutputStream out = resp.getOutputStream();
+        try {
+            if (protobuf) {
+                resp.setContentType(ProtobufFormat.CONTENT_TYPE_PROTOBUF);
+                protobufFormat.write(out, mfs);
             } else {
-                new TomcatDbcp2PoolExports().register();
+                String contentType = TextFormat.chooseContentType(accept);
+                resp.setContentType(contentType);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                TextFormat.writeFormat(contentType, writer, mfs);
+                writer.flush();
             }
+            out.flush();
+        } finally {
+            out.close();
         }
     }
 
+    private List<Collector.MetricFamilySamples> filter(List<Collector.MetricFamilySamples> mfs, String[] names) {
+        if (names == null) {
+            return mfs;
+        }
+        Predicate<String> sampleNameFilter = SampleNameFilter.restrictToNamesEqualTo(null, Arrays.asList(names));
+        List<Collector.MetricFamilySamples> filtered = new ArrayList<Collector.MetricFamilySamples>();
+        for (Collector.MetricFamilySamples family : mfs) {
+            Collector.MetricFamilySamples filteredFamily = family.filter(sampleNameFilter);
+            if (filteredFamily != null) {
+                filtered.add(filteredFamily);
+            }
+        }
+        return filtered;
+    }
+
+    private Collector register(Collector collector) {
+        return (rules != null ? rules.wrap(collector) : collector).register();
+    }
+
+    /**
+     * Returns the metric rules of the metricRulesFile parameter, or of the metricRules parameter with the rules
+     * separated by semicolons, or null if neither is set.
+     */
+    private MetricRules loadRules(ServletConfig config) {
+        String file = getParameter(config, "metricRulesFile");
+        String inline = getParameter(config, "metricRules");
+        try {
+            if (file != null && !file.isEmpty()) {
+                return MetricRules.load(file.trim());
+            } else if (inline != null && !inline.isEmpty()) {
+                Properties properties = new Properties();
+                properties.load(new StringReader(inline.replace(';', '\n')));
+                return new MetricRules(properties);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid metric rules: " + e.getMessage(), e);
+        }
+        return null;
+    }
+
     private boolean initialized() {
         Enumeration<Collector.MetricFamilySamples> samples = CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(new HashSet<String>(Arrays.asList("tomcat_info")));
         return samples.hasMoreElements();
     }
-}
 
+    /**
+     * Returns the servlet init parameter with the given name, or if not present the context parameter with that name.
+     * Context parameters can be set without modifying the war, e.g. in $CATALINA_BASE/conf/Catalina/localhost/metrics.xml.
+     */
+    private String getParameter(ServletConfig config, String name) {
+        String value = config.getInitParameter(name);
+        if (value == null && config.getServletContext() != null) {
+            value = config.getServletContext().getInitParameter(name);
+        }
+        return value;
+    }
 
+    private long getLongParameter(ServletConfig config, String name, long defaultValue) {
+        String value = getParameter(config, name);
+        return value != null && !value.isEmpty() ? Long.parseLong(value.trim()) : defaultValue;
+    }
+}
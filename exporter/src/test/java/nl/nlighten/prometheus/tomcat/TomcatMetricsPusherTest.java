@@ -0,0 +1,149 @@
+package nl.nlighten.prometheus.tomcat;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+public class TomcatMetricsPusherTest {
+
+    private HttpServer server;
+    private final List<String> bodies = new CopyOnWriteArrayList<String>();
+    private final List<String> methods = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private CollectorRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new CollectorRegistry();
+        Counter.build().name("pusher_test_requests_total").help("test counter").register(registry).inc(3);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/metrics/job/tomcat", exchange -> {
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            if (failuresLeft.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                methods.add(exchange.getRequestMethod());
+                bodies.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testPush() throws Exception {
+        TomcatMetricsPusher pusher = new TomcatMetricsPusher(registry, url(), "PUT", 100, false, 10, 10);
+        registry.register(pusher);
+        pusher.start();
+        try {
+            waitFor(() -> !bodies.isEmpty() && pusher.getPushed() > 0);
+        } finally {
+            pusher.close();
+        }
+        assertThat(methods.get(0), is("PUT"));
+        assertThat(bodies.get(0), containsString("pusher_test_requests_total 3.0\n"));
+        assertThat(bodies.get(0), containsString("tomcat_push_failed_total 0.0\n"));
+        assertTrue(registry.getSampleValue("tomcat_push_success_total") > 0);
+        assertTrue(registry.getSampleValue("tomcat_push_last_success_timestamp_seconds") > 0);
+    }
+
+    @Test
+    public void testCollectorError() throws Exception {
+        // e.g. a collector of an undeployed application, of which the classes can no longer be loaded
+        AtomicInteger errorsLeft = new AtomicInteger(2);
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                if (errorsLeft.getAndDecrement() > 0) {
+                    throw new NoClassDefFoundError("Undeployed");
+                }
+                return Collections.emptyList();
+            }
+        }.register(registry);
+        TomcatMetricsPusher pusher = new TomcatMetricsPusher(registry, url(), "PUT", 100, false, 10, 10);
+        pusher.start();
+        try {
+            waitFor(() -> !bodies.isEmpty());
+        } finally {
+            pusher.close();
+        }
+        assertThat(bodies.get(0), containsString("pusher_test_requests_total 3.0\n"));
+    }
+
+    @Test
+    public void testRetryWithBacklog() throws Exception {
+        failuresLeft.set(2);
+        // the backoff after the second failure is 1s, so about 15 snapshots are collected of which 5 are kept
+        TomcatMetricsPusher pusher = new TomcatMetricsPusher(registry, url(), "POST", 100, true, 5, 5);
+        pusher.start();
+        try {
+            waitFor(() -> !bodies.isEmpty());
+        } finally {
+            pusher.close();
+        }
+        assertThat(pusher.getFailed(), is(2L));
+        assertTrue(pusher.getDropped() > 0);
+        String body = bodies.get(0);
+        assertThat(body.split("# TYPE pusher_test_requests_total").length, is(2));
+        int samples = 0;
+        for (String line : body.split("\n")) {
+            if (line.startsWith("pusher_test_requests_total ")) {
+                assertThat(line.split(" ").length, is(3));
+                samples++;
+            }
+        }
+        assertThat(samples, is(5));
+    }
+
+    private URL url() throws Exception {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/metrics/job/tomcat");
+    }
+
+    private void waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.met() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.met());
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+}